@@ -11,18 +11,54 @@ public class Connection {
     private String host = "incognito.njco.dev";
     private int port = 58239;
 
+    // Time allowed for the server to answer the binary protocol hello
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
     private Socket socket;
+    // Use the binary protocol, falling back to Java serialization with older servers
+    private boolean binaryProtocol = true;
+    // Negotiated binary protocol version, 0 when speaking Java serialization
+    private int protocolVersion;
 
     public Socket getSocket() {
         return socket;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
     public boolean connect() {
         try {
             socket = new Socket(host, port);
+            protocolVersion = 0;
+            if (binaryProtocol) {
+                try {
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    protocolVersion = WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream());
+                    socket.setSoTimeout(0);
+                } catch (ConnectionRejectedException e) {
+                    socket.close();
+                    throw e;
+                } catch (IOException e) {
+                    // An older server drops the connection on the unknown hello: reconnect the old way
+                    logger.info("Binary protocol handshake failed (" + e.getMessage()
+                            + "), falling back to Java serialization");
+                    socket.close();
+                    socket = new Socket(host, port);
+                }
+            }
             LocalLogger.logInfo("Connecting to server at " + host + ":" + port);
-            logger.info("Connected to server at " + host + ":" + port);
+            logger.info("Connected to server at " + host + ":" + port
+                    + (protocolVersion > 0 ? " (binary protocol v" + protocolVersion + ")" : " (Java serialization)"));
             return true;
+        } catch (ConnectionRejectedException e) {
+            ErrorHandler.handleConnectionError(
+                    null,
+                    "Server refused the connection: " + e.getMessage(),
+                    true,
+                    () -> connect()
+            );
         } catch (UnknownHostException e) {
             ErrorHandler.handleConnectionError(
                     null,
@@ -47,6 +83,24 @@ public class Connection {
         return false;
     }
 
+    /**
+     * Opens the message output of the connected socket, in the protocol agreed at
+     * connect. Each connection is used by one reader and one writer.
+     */
+    public MessageOutput openOutput() throws IOException {
+        if (protocolVersion > 0) {
+            return MessageOutput.binary(socket.getOutputStream());
+        }
+        return MessageOutput.serialized(socket.getOutputStream());
+    }
+
+    public MessageInput openInput() throws IOException {
+        if (protocolVersion > 0) {
+            return MessageInput.binary(socket.getInputStream());
+        }
+        return MessageInput.serialized(socket.getInputStream());
+    }
+
     public void close() {
         try {
             if (socket != null && !socket.isClosed()) {
@@ -17,7 +17,9 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
@@ -250,8 +252,8 @@ public class UI extends JFrame {
         }
 
         BlockingQueue<String> loginResponseQueue = new ArrayBlockingQueue<>(1);
-        readThread = new ReadThread(connection.getSocket(), this, cryptoManager, loginResponseQueue);
-        writeThread = new WriteThread(connection.getSocket(), this, cryptoManager);
+        readThread = new ReadThread(connection, this, cryptoManager, loginResponseQueue);
+        writeThread = new WriteThread(connection, this, cryptoManager);
 
         readThread.start();
         writeThread.start();
@@ -260,7 +262,7 @@ public class UI extends JFrame {
         usersModel.clear();
         usersModel.addElement(userName + " (you)");
 
-        writeThread.sendMessage("USERLIST:" + username);
+        writeThread.sendControl("USERLIST:" + username);
 
         try {
             String response = loginResponseQueue.poll(5, java.util.concurrent.TimeUnit.SECONDS);
@@ -274,7 +276,7 @@ public class UI extends JFrame {
                     AutoKeyExchange.performKeyExchange(targetUser, username, cryptoManager, writeThread);
                 } else if (isManualKeyExchange) {
                     // Manual key exchange flow - enable chat immediately
-                    writeThread.sendMessage("REQUEST_USERLIST");
+                    writeThread.sendControl("REQUEST_USERLIST");
                     isSessionActive = true;
                     messageField.setEnabled(true);
                     sendButton.setEnabled(true);
@@ -342,8 +344,8 @@ public class UI extends JFrame {
 
             try {
                 // Start read and write threads
-                writeThread = new WriteThread(connection.getSocket(), this, this.cryptoManager);
-                readThread = new ReadThread(connection.getSocket(), this, this.cryptoManager, loginQueue);
+                writeThread = new WriteThread(connection, this, this.cryptoManager);
+                readThread = new ReadThread(connection, this, this.cryptoManager, loginQueue);
 
                 writeThread.start();
                 readThread.start();
@@ -364,7 +366,7 @@ public class UI extends JFrame {
                 final String sessionInputName = inputName;
                 // Send username to server
                 logger.info("Sending username: " + inputName);
-                writeThread.sendMessage("USERLIST:" + this.userName);
+                writeThread.sendControl("USERLIST:" + this.userName);
 
                 // Update UI with current user's name
                 setTitle("Incognito Chat - " + this.userName);
@@ -374,7 +376,7 @@ public class UI extends JFrame {
                 String sessionId = generateSessionId();
 
                 if (sessionId != null) {
-                    writeThread.sendMessage("PRIVATE_CHAT:" + inputName + ":" + sessionId);
+                    writeThread.sendControl("PRIVATE_CHAT:" + inputName + ":" + sessionId);
                     logger.info("Sending message PRIVATE_CHAT with sessionId: " + sessionId);
                 } else {
                     ErrorHandler.handleSessionError(
@@ -385,7 +387,7 @@ public class UI extends JFrame {
                                     try {
                                         String newSessionId = generateSessionId();
                                         writeThread
-                                                .sendMessage("PRIVATE_CHAT:" + sessionInputName + ":" + newSessionId);
+                                                .sendControl("PRIVATE_CHAT:" + sessionInputName + ":" + newSessionId);
                                     } catch (Exception e) {
                                         ErrorHandler.handleFatalError(
                                                 this,
@@ -482,6 +484,17 @@ public class UI extends JFrame {
      * @param userListStr
      */
     public void updateUsersList(String userListStr) {
+        // Parse userListStr (format: "user1,user2,user3")
+        List<String> users = new ArrayList<>();
+        if (userListStr != null && !userListStr.isEmpty()) {
+            for (String user : userListStr.split(",")) {
+                users.add(user.trim());
+            }
+        }
+        updateUsersList(users);
+    }
+
+    public void updateUsersList(List<String> users) {
         try {
             SwingUtilities.invokeLater(() -> {
                 // Clear current list except for the current user
@@ -490,19 +503,14 @@ public class UI extends JFrame {
                 // Adds first the current user
                 usersModel.addElement(userName + " (you)");
 
-                if (userListStr != null && !userListStr.isEmpty()) {
-                    // Parse userListStr (format: "user1,user2,user3")
-                    String[] users = userListStr.split(",");
-                    for (String user : users) {
-                        user = user.trim();
-                        // Avoid adding current user twice
-                        if (!user.isEmpty() && !user.equals(userName)) {
-                            usersModel.addElement(user + " (contact)");
-                            break; // Only add the first user for now in a 1-to-1 chat
-                        }
+                for (String user : users) {
+                    // Avoid adding current user twice
+                    if (!user.isEmpty() && !user.equals(userName)) {
+                        usersModel.addElement(user + " (contact)");
+                        break; // Only add the first user for now in a 1-to-1 chat
                     }
                 }
-                logger.info("Updated users list: " + userListStr);
+                logger.info("Updated users list: " + users);
             });
         } catch (Exception e) {
             logger.severe("Error updating users list: " + e.getMessage());
@@ -510,7 +518,21 @@ public class UI extends JFrame {
         }
     }
 
-    // Method to remove a user from the list
+    // A user became available, shown if no contact is listed yet (1-to-1 chat)
+    public void addUser(String username) {
+        SwingUtilities.invokeLater(() -> {
+            if (username.equals(userName)) {
+                return;
+            }
+            for (int i = 0; i < usersModel.getSize(); i++) {
+                if (usersModel.getElementAt(i).endsWith(" (contact)")) {
+                    return;
+                }
+            }
+            usersModel.addElement(username + " (contact)");
+        });
+    }
+
     public void removeUser(String username) {
         SwingUtilities.invokeLater(() -> {
             for (int i = 0; i < usersModel.getSize(); i++) {
@@ -696,6 +718,10 @@ public class UI extends JFrame {
                         }
                     }
                 }
+            } else if (serverMessage.startsWith("PEER_WAIT_EXPIRED:")) {
+                // The server dropped our request after waiting too long for the contact
+                chatArea.append("Contact did not join in time. Press \"Exit Chat\" to choose again.\n");
+                logger.info("Private chat request expired: " + serverMessage.substring("PEER_WAIT_EXPIRED:".length()));
             } else if (serverMessage.startsWith("ERROR:You are not in an active private chat session.")) {
                 chatArea.append("[System] Server error: You are not in an active chat session.\n");
                 logger.warning("Received 'not in an active private chat session' error from server");
@@ -1,12 +1,19 @@
 package org.incognito.GUI;
 
 import org.incognito.Connection;
+import org.incognito.Heartbeat;
+import org.incognito.MessageInput;
+import org.incognito.MessageOutput;
+import org.incognito.Presence;
+import org.incognito.PresenceTracker;
 import org.incognito.GUI.theme.ModernTheme;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 import java.io.IOException;
 
@@ -19,7 +26,9 @@ public class UserSelectionPage extends JFrame {
     private UserSelectionListener listener;
     private String currentUsername;
     private Connection connection;
-    private java.io.ObjectOutputStream serverOutput;
+    // Follows the user list; set once the listener runs
+    private volatile PresenceTracker presence;
+    private MessageOutput serverOutput;
 
     public interface UserSelectionListener {
         void onAutomaticChatRequested(Connection connection, String targetUser, UserSelectionPage userSelectionPage);
@@ -198,28 +207,38 @@ public class UserSelectionPage extends JFrame {
     }
 
     public void updateUsersList(String userListStr) {
+        List<String> users = new ArrayList<>();
+        if (userListStr != null && !userListStr.isEmpty()) {
+            for (String user : userListStr.split(",")) {
+                user = user.trim();
+                if (!user.isEmpty()) {
+                    users.add(user);
+                }
+            }
+        }
+        updateUsersList(users);
+    }
+
+    public void updateUsersList(List<String> users) {
         SwingUtilities.invokeLater(() -> {
             usersModel.clear();
-
-            if (userListStr != null && !userListStr.isEmpty()) {
-                String[] users = userListStr.split(",");
-                for (String user : users) {
-                    user = user.trim();
-                    if (!user.isEmpty()) {
-                        usersModel.addElement(user);
-                    }
-                }
-                if (usersModel.getSize() <= 1) { // Only current user or empty
-                    statusLabel.setText("No other users online - waiting for contacts...");
-                } else {
-                    statusLabel.setText("Select a user to start chatting");
-                }
-            } else {
-                statusLabel.setText("No users online");
+            for (String user : users) {
+                usersModel.addElement(user);
             }
+            updateStatusForUserCount();
         });
     }
 
+    private void updateStatusForUserCount() {
+        if (usersModel.getSize() == 0) {
+            statusLabel.setText("No users online");
+        } else if (usersModel.getSize() <= 1) { // Only current user
+            statusLabel.setText("No other users online - waiting for contacts...");
+        } else {
+            statusLabel.setText("Select a user to start chatting");
+        }
+    }
+
     public void setStatus(String status) {
         SwingUtilities.invokeLater(() -> statusLabel.setText(status));
     }
@@ -230,8 +249,11 @@ public class UserSelectionPage extends JFrame {
         // Send request to server for updated user list
         if (serverOutput != null) {
             try {
-                serverOutput.writeObject("REQUEST_USERLIST");
-                serverOutput.flush();
+                // Lets the server answer in a few bytes when nothing changed
+                PresenceTracker tracker = presence;
+                boolean conditional = tracker != null && connection != null
+                        && connection.getProtocolVersion() >= Presence.CONDITIONAL_REQUEST_MIN_PROTOCOL_VERSION;
+                serverOutput.writeMessage(conditional ? tracker.userListRequest() : Presence.REQUEST);
             } catch (Exception e) {
                 logger.warning("Error requesting user list update: " + e.getMessage());
                 SwingUtilities.invokeLater(() -> {
@@ -325,8 +347,8 @@ public class UserSelectionPage extends JFrame {
     private void initializeServerCommunication() {
         try {
             // Simple direct communication for user list only
-            serverOutput = new java.io.ObjectOutputStream(connection.getSocket().getOutputStream());
-            java.io.ObjectInputStream in = new java.io.ObjectInputStream(connection.getSocket().getInputStream());
+            serverOutput = connection.openOutput();
+            MessageInput in = connection.openInput();
 
             // Try authentication with username, retry if taken
             boolean authenticated = false;
@@ -334,11 +356,10 @@ public class UserSelectionPage extends JFrame {
 
             while (!authenticated) {
                 // Send username authentication
-                serverOutput.writeObject("USERLIST:" + usernameToTry);
-                serverOutput.flush();
+                serverOutput.writeMessage("USERLIST:" + usernameToTry);
 
                 // Wait for authentication response
-                Object response = in.readObject();
+                Object response = in.readMessage();
 
                 if (response instanceof String str) {
                     if ("USERNAME_ACCEPTED".equals(str)) {
@@ -407,15 +428,46 @@ public class UserSelectionPage extends JFrame {
         }
     }
 
-    private void startUserListListener(java.io.ObjectInputStream in) {
+    private void startUserListListener(MessageInput in) {
+        // Applies presence deltas one user at a time instead of rebuilding the list
+        PresenceTracker presence = new PresenceTracker(new PresenceTracker.Listener() {
+            @Override
+            public void usersReset(List<String> users) {
+                updateUsersList(users);
+            }
+
+            @Override
+            public void userAdded(String username) {
+                addUserToList(username);
+            }
+
+            @Override
+            public void userRemoved(String username) {
+                removeUserFromList(username);
+            }
+
+            @Override
+            public void usersUnchanged() {
+                SwingUtilities.invokeLater(() -> updateStatusForUserCount());
+            }
+        });
+        this.presence = presence;
+
         // Background thread to listen for server messages
         new Thread(() -> {
             try {
                 while (!Thread.currentThread().isInterrupted() && connection != null
                         && !connection.getSocket().isClosed()) {
-                    Object message = in.readObject();
+                    Object message = in.readMessage();
                     if (message instanceof String msgStr) {
-                        if (msgStr.startsWith("USERLIST:")) {
+                        if (msgStr.startsWith(Heartbeat.PING)) {
+                            serverOutput.writeMessage(Heartbeat.pong(msgStr));
+                        } else if (Presence.isPresenceMessage(msgStr)) {
+                            String resync = presence.handle(msgStr);
+                            if (resync != null) {
+                                serverOutput.writeMessage(resync);
+                            }
+                        } else if (msgStr.startsWith("USERLIST:")) {
                             String userListStr = msgStr.substring("USERLIST:".length());
                             updateUsersList(userListStr);
                         } else if (msgStr.startsWith("CONNECT:")) {
@@ -435,12 +487,22 @@ public class UserSelectionPage extends JFrame {
         }, "UserListListener").start();
     }
 
+    private void addUserToList(String username) {
+        SwingUtilities.invokeLater(() -> {
+            if (!usersModel.contains(username)) {
+                usersModel.addElement(username);
+                updateStatusForUserCount();
+            }
+        });
+    }
+
     private void removeUserFromList(String username) {
         SwingUtilities.invokeLater(() -> {
             for (int i = 0; i < usersModel.getSize(); i++) {
                 String element = usersModel.getElementAt(i);
                 if (element.equals(username) || element.startsWith(username + " ")) {
                     usersModel.removeElementAt(i);
+                    updateStatusForUserCount();
                     break;
                 }
             }
@@ -462,8 +524,7 @@ public class UserSelectionPage extends JFrame {
                 if (serverOutput != null && connection != null &&
                         connection.getSocket() != null && !connection.getSocket().isClosed()) {
                     try {
-                        serverOutput.writeObject("DISCONNECT:" + currentUsername);
-                        serverOutput.flush();
+                        serverOutput.writeMessage("DISCONNECT:" + currentUsername);
                         logger.info("Sent disconnect notification to server");
                     } catch (IOException e) {
                         // Non-critical error - connection might already be down
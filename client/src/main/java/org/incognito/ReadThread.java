@@ -6,11 +6,11 @@ import org.incognito.GUI.UI;
 
 import javax.swing.*;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
-import java.io.ObjectInputStream;
 import java.io.IOException;
 import java.net.Socket;
 
@@ -18,23 +18,40 @@ public class ReadThread extends Thread {
     private static Logger logger = Logger.getLogger(ReadThread.class.getName());
 
     private CryptoManager cryptoManager;
-    private ObjectInputStream inputStream;
+    private MessageInput inputStream;
     private Socket socket;
     private UI client;
 
     private final BlockingQueue<Object> messageQueue = new LinkedBlockingQueue<>();
+    private final PresenceTracker presence;
     private BlockingQueue<String> loginResponseQueue;
 
-    public ReadThread(Socket socket, UI client, CryptoManager cryptoManager) {
-        this(socket, client, cryptoManager, null);
+    public ReadThread(Connection connection, UI client, CryptoManager cryptoManager) {
+        this(connection, client, cryptoManager, null);
     }
 
-    public ReadThread(Socket socket, UI client, CryptoManager cryptoManager,
+    public ReadThread(Connection connection, UI client, CryptoManager cryptoManager,
             BlockingQueue<String> loginResponseQueue) {
-        this.socket = socket;
+        this.socket = connection.getSocket();
         this.client = client;
         this.cryptoManager = cryptoManager;
         this.loginResponseQueue = loginResponseQueue;
+        this.presence = new PresenceTracker(new PresenceTracker.Listener() {
+            @Override
+            public void usersReset(List<String> users) {
+                client.updateUsersList(users);
+            }
+
+            @Override
+            public void userAdded(String username) {
+                client.addUser(username);
+            }
+
+            @Override
+            public void userRemoved(String username) {
+                client.removeUser(username);
+            }
+        });
 
         try {
             if (socket.isClosed()) {
@@ -45,7 +62,7 @@ public class ReadThread extends Thread {
                         null);
                 return;
             }
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            inputStream = connection.openInput();
         } catch (IOException ex) {
             ErrorHandler.handleConnectionError(
                     client,
@@ -53,7 +70,7 @@ public class ReadThread extends Thread {
                     true,
                     () -> {
                         try {
-                            inputStream = new ObjectInputStream(socket.getInputStream());
+                            inputStream = connection.openInput();
                         } catch (IOException retryEx) {
                             ErrorHandler.handleFatalError(
                                     client,
@@ -82,6 +99,32 @@ public class ReadThread extends Thread {
                         continue;
                     }
 
+                    // Answered right away, the server measures the round trip
+                    if (msgStr.startsWith(Heartbeat.PING)) {
+                        client.getWriteThread().sendControl(Heartbeat.pong(msgStr));
+                        continue;
+                    }
+
+                    // The connection is about to close, the server says when it expects us back
+                    if (msgStr.startsWith(ServerShutdown.NOTICE)) {
+                        long reconnectAfter = ServerShutdown.parseReconnectAfter(msgStr);
+                        logger.info("Server shutting down, reconnect hint " + reconnectAfter + " ms");
+                        client.appendMessage(reconnectAfter >= 0
+                                ? "[Server] Shutting down, try reconnecting in "
+                                        + Math.max(1, (reconnectAfter + 999) / 1000) + " s"
+                                : "[Server] Shutting down");
+                        continue;
+                    }
+
+                    // Presence snapshots and deltas only update the users list
+                    if (Presence.isPresenceMessage(msgStr)) {
+                        String resync = presence.handle(msgStr);
+                        if (resync != null) {
+                            client.getWriteThread().sendControl(resync);
+                        }
+                        continue;
+                    }
+
                     // Store in messageQueue for blocking reads
                     messageQueue.put(msgStr);
 
@@ -92,6 +135,7 @@ public class ReadThread extends Thread {
                             msgStr.startsWith("SERVER:") ||
                             msgStr.startsWith("ERROR:") ||
                             msgStr.startsWith("PEER_CONNECTED:") ||
+                            msgStr.startsWith("PEER_WAIT_EXPIRED:") ||
                             msgStr.startsWith("INFO:")) {
                         processSystemMessage(msgStr);
                     } else {
@@ -153,7 +197,7 @@ public class ReadThread extends Thread {
 
     private Object receiveObject() {
         try {
-            return inputStream.readObject();
+            return inputStream.readMessage();
         } catch (IOException | ClassNotFoundException e) {
             // Se il thread è stato interrotto, ignora silenziosamente l'errore di socket
             // chiusa
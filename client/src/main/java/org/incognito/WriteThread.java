@@ -6,7 +6,6 @@ import org.incognito.GUI.UI;
 
 import java.util.Base64;
 
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.concurrent.BlockingQueue;
@@ -18,18 +17,22 @@ public class WriteThread extends Thread {
 
     private CryptoManager cryptoManager;
 
-    private BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
-    private ObjectOutputStream outputStream;
+    // Protocol messages, written as they are; anything else queued is chat text
+    private record Control(String message) {
+    }
+
+    private BlockingQueue<Object> messageQueue = new LinkedBlockingQueue<>();
+    private MessageOutput outputStream;
     private Socket socket;
     private UI client;
 
-    public WriteThread(Socket socket, UI client, CryptoManager cryptoManager) {
-        this.socket = socket;
+    public WriteThread(Connection connection, UI client, CryptoManager cryptoManager) {
+        this.socket = connection.getSocket();
         this.client = client;
         this.cryptoManager = cryptoManager;
 
         try {
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream = connection.openOutput();
         } catch (IOException e) {
             ErrorHandler.handleConnectionError(
                     client,
@@ -37,7 +40,7 @@ public class WriteThread extends Thread {
                     true,
                     () -> {
                         try {
-                            outputStream = new ObjectOutputStream(socket.getOutputStream());
+                            outputStream = connection.openOutput();
                         } catch (IOException retryEx) {
                             ErrorHandler.handleFatalError(
                                     client,
@@ -52,7 +55,7 @@ public class WriteThread extends Thread {
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                String message = messageQueue.take();
+                Object queued = messageQueue.take();
 
                 if (outputStream == null) {
                     ErrorHandler.handleConnectionError(
@@ -62,7 +65,7 @@ public class WriteThread extends Thread {
                             () -> {
                                 try {
                                     client.initializeConnection(new Connection());
-                                    messageQueue.put(message); // Retry sending the message
+                                    messageQueue.put(queued); // Retry sending the message
                                 } catch (Exception ex) {
                                     ErrorHandler.handleFatalError(
                                             client,
@@ -73,11 +76,10 @@ public class WriteThread extends Thread {
                     continue;
                 }
 
-                if (message.startsWith("USERLIST:") ||
-                        message.startsWith("CONNECT:") ||
-                        message.startsWith("DISCONNECT:")) {
-                    outputStream.writeObject(message);
+                if (queued instanceof Control control) {
+                    outputStream.writeMessage(control.message());
                 } else {
+                    String message = (String) queued;
                     if (cryptoManager.getAesSessionKey() == null) {
                         ErrorHandler.handleCryptoError(
                                 client,
@@ -95,7 +97,7 @@ public class WriteThread extends Thread {
                         byte[] encrypted = cryptoManager.encryptAES(message);
                         String encoded = Base64.getEncoder().encodeToString(encrypted);
                         ChatMessage chatMsg = new ChatMessage(client.getUserName(), encoded);
-                        outputStream.writeObject(chatMsg);
+                        outputStream.writeMessage(chatMsg);
                     } catch (Exception e) {
                         ErrorHandler.handleCryptoError(
                                 client,
@@ -112,8 +114,6 @@ public class WriteThread extends Thread {
                     }
                 }
 
-                outputStream.flush();
-
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
                 break;
@@ -152,10 +152,22 @@ public class WriteThread extends Thread {
         }
     }
 
+    /**
+     * Queues chat text typed by the user. It is always encrypted with the
+     * session key, whatever it looks like.
+     */
     public void sendMessage(String message) {
         messageQueue.offer(message);
     }
 
+    /**
+     * Queues a protocol message for the server, written as it is: the username,
+     * user list requests, private chat requests, presence resyncs, heartbeats.
+     */
+    public void sendControl(String message) {
+        messageQueue.offer(new Control(message));
+    }
+
     public void sendKeyExchangeMessage(KeyExchangeMessage keyExchangeMessage) {
         try {
             if (outputStream == null) {
@@ -178,8 +190,7 @@ public class WriteThread extends Thread {
             }
 
             logger.info("Sending key exchange message: " + keyExchangeMessage.getType());
-            outputStream.writeObject(keyExchangeMessage);
-            outputStream.flush();
+            outputStream.writeMessage(keyExchangeMessage);
         } catch (Exception e) {
             ErrorHandler.handleCryptoError(
                     client,
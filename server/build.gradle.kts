@@ -23,6 +23,12 @@ application {
     mainClass = "org.incognito.Server"
 }
 
+// Prints an event journal: gradle server:decodeJournal --args="[--csv] <journal>"
+tasks.register<JavaExec>("decodeJournal") {
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "org.incognito.EventJournalDecoder"
+}
+
 tasks.named<Test>("test") {
     useJUnitPlatform()
 }
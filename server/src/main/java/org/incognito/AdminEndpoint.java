@@ -0,0 +1,68 @@
+package org.incognito;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Plain-text metrics on a port of the loopback interface only, for scripts
+ * and for a look by hand: {@code nc 127.0.0.1 <port>}. Each connection gets one
+ * "name value" line per metric and is closed; nothing is read from it. With
+ * several nodes, each one's metrics follow a "# port N" line.
+ */
+final class AdminEndpoint implements Closeable {
+    private static final Logger logger = Logger.getLogger(AdminEndpoint.class.getName());
+
+    private final ServerSocket serverSocket;
+    private final List<Connection> nodes;
+
+    AdminEndpoint(int port, List<Connection> nodes) throws IOException {
+        this.nodes = List.copyOf(nodes);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread thread = new Thread(this::acceptLoop, "admin-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try (Socket client = serverSocket.accept()) {
+                OutputStream out = client.getOutputStream();
+                out.write(report().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.fine("Error answering admin connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    String report() {
+        if (nodes.size() == 1) {
+            return nodes.get(0).getMetrics().format();
+        }
+        StringBuilder report = new StringBuilder();
+        for (Connection node : nodes) {
+            report.append("# port ").append(node.getLocalPort()).append('\n').append(node.getMetrics().format());
+        }
+        return report.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,86 @@
+package org.incognito;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides at accept time whether a new connection may be served, so that a
+ * flood of connections cannot take threads and memory from registered users.
+ *
+ * Limits the total number of open connections and the number from one address.
+ * A refused connection gets a short message (see
+ * {@link WireCodec#encodeRejection}) written by the acceptor, without any
+ * handler being created.
+ */
+class AdmissionControl {
+
+    static final String SERVER_FULL = "Server is full, try again later.";
+    static final String TOO_MANY_FROM_ADDRESS = "Too many connections from your address.";
+
+    private static final byte[] SERVER_FULL_REJECTION = WireCodec.encodeRejection(SERVER_FULL);
+    private static final byte[] TOO_MANY_FROM_ADDRESS_REJECTION = WireCodec.encodeRejection(TOO_MANY_FROM_ADDRESS);
+
+    private volatile int maxConnections;
+    private volatile int maxConnectionsPerAddress;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Integer> connectionsByAddress = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    AdmissionControl(int maxConnections, int maxConnectionsPerAddress) {
+        setLimits(maxConnections, maxConnectionsPerAddress);
+    }
+
+    void setLimits(int maxConnections, int maxConnectionsPerAddress) {
+        if (maxConnections < 1 || maxConnectionsPerAddress < 1) {
+            throw new IllegalArgumentException("Connection limits must be positive");
+        }
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * Counts a new connection if the limits allow it. An admitted connection
+     * must be {@link #release released} when it closes.
+     *
+     * @return null if admitted, otherwise the rejection to write to the client
+     */
+    byte[] admit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejected.incrementAndGet();
+            return SERVER_FULL_REJECTION;
+        }
+        boolean[] admitted = new boolean[1];
+        connectionsByAddress.compute(address, (a, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxConnectionsPerAddress) {
+                return count;
+            }
+            admitted[0] = true;
+            return current + 1;
+        });
+        if (!admitted[0]) {
+            connections.decrementAndGet();
+            rejected.incrementAndGet();
+            return TOO_MANY_FROM_ADDRESS_REJECTION;
+        }
+        return null;
+    }
+
+    void release(InetAddress address) {
+        connectionsByAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+        connections.decrementAndGet();
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,96 @@
+package org.incognito;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Members of a group chat room. They are kept in a plain array, replaced on
+ * every join or leave, so that a message is fanned out without locking or
+ * copying. Joins and leaves are far rarer than messages in a room.
+ *
+ * Only the server changes the membership, and only within
+ * {@code ConcurrentHashMap.compute} on the room's name, which serializes the
+ * changes to one room.
+ */
+final class ChatRoom {
+    private static final Peer[] NO_MEMBERS = new Peer[0];
+
+    private final String name;
+    private volatile Peer[] members = NO_MEMBERS;
+
+    ChatRoom(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int size() {
+        return members.length;
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    boolean contains(Peer client) {
+        return indexOf(members, client) >= 0;
+    }
+
+    // Called within compute on the room's name
+    void add(Peer client) {
+        Peer[] current = members;
+        if (indexOf(current, client) < 0) {
+            Peer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = client;
+            members = grown;
+        }
+    }
+
+    // Called within compute on the room's name
+    boolean remove(Peer client) {
+        Peer[] current = members;
+        int index = indexOf(current, client);
+        if (index < 0) {
+            return false;
+        }
+        Peer[] shrunk = new Peer[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, index);
+        System.arraycopy(current, index + 1, shrunk, index, shrunk.length - index);
+        members = shrunk;
+        return true;
+    }
+
+    List<String> memberNames() {
+        return Arrays.stream(members).map(Peer::getUsername).toList();
+    }
+
+    /**
+     * Sends the message to every member but the sender, encoded once for all of
+     * them.
+     *
+     * @return the number of members it was sent to
+     */
+    int fanOut(Peer sender, Object message) {
+        Peer[] recipients = members;
+        EncodedMessage encoded = EncodedMessage.of(message);
+        int sent = 0;
+        for (Peer member : recipients) {
+            if (member != sender) {
+                member.send(encoded);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    private static int indexOf(Peer[] members, Peer client) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == client) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
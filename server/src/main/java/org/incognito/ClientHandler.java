@@ -2,34 +2,96 @@ package org.incognito;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, Peer {
     private static Logger logger = Logger.getLogger(ClientHandler.class.getName());
 
     private Socket socket;
     private Connection server;
-    private ObjectInputStream inputStream;
-    private ObjectOutputStream outputStream;
-    private String username;
+    private MessageInput inputStream;
+    private MessageOutput outputStream;
+    private volatile String username;
+    // Negotiated binary protocol version, 0 for a Java serialization client
+    private volatile int protocolVersion;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // send() is called from other clients' threads: messages are queued and written
+    // by a single writer, so a client that stops reading only stalls its own queue
+    private final OutboundQueue outbound;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    // Checked by the reading thread before each message is handled
+    private final RateLimiter rateLimiter;
+
+    // Heartbeat state, read by the server's idle reaper
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile long roundTripNanos = -1;
+
+    // Set when the server counted the connection against its limits
+    private volatile boolean admitted;
+    private volatile HashedWheelTimer.Timeout handshakeDeadline;
 
     public ClientHandler(Connection server, Socket socket) {
         this.server = server;
         this.socket = socket;
+        this.outbound = server.newOutboundQueue();
+        this.rateLimiter = server.newRateLimiter();
+    }
 
+    // Called on the handler's own thread: the client's first bytes are awaited here,
+    // which must not hold up the accept loop
+    private boolean openStreams() {
         try {
-            // Initialize streams - important to create output stream first to avoid
-            // deadlock
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            outputStream.flush(); // Ensure the stream is flushed before reading
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            OutputStream out = Metrics.countingOutput(socket.getOutputStream(), server.getBytesOut());
+            // The serialization stream header always goes out first: older clients
+            // block on it when opening their input stream, binary clients skip it
+            MessageOutput serializedOutput = MessageOutput.serialized(out);
+
+            BufferedInputStream in = new BufferedInputStream(
+                    Metrics.countingInput(socket.getInputStream(), server.getBytesIn()),
+                    server.getSocketTuning().readBufferSize());
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first < 0) {
+                throw new EOFException();
+            }
+
+            if (first == WireCodec.MAGIC[0]) {
+                byte[] hello = new byte[WireCodec.CLIENT_HELLO_LENGTH];
+                new DataInputStream(in).readFully(hello);
+                protocolVersion = WireCodec.negotiate(hello);
+                out.write(WireCodec.encodeHello(protocolVersion));
+                out.flush();
+                outputStream = MessageOutput.binary(out);
+                inputStream = MessageInput.binary(in, true); // Chat messages are relayed undecoded
+                logger.fine("Client " + socket.getRemoteSocketAddress() + " speaks binary protocol v"
+                        + protocolVersion);
+            } else {
+                outputStream = serializedOutput;
+                if (!server.isLegacyClientsAllowed()) {
+                    outputStream.writeMessage("ERROR:This server requires a newer client.");
+                    logger.info("Rejected Java serialization client " + socket.getRemoteSocketAddress());
+                    return false;
+                }
+                inputStream = MessageInput.serialized(in);
+            }
+            return true;
+        } catch (EOFException e) {
+            logger.info("Client " + socket.getRemoteSocketAddress() + " disconnected before the handshake.");
+            return false;
         } catch (IOException e) {
             ErrorHandler.handleServerError("Error creating streams for client " + socket.getRemoteSocketAddress(), e,
                     false);
-            closeConnection();
+            return false;
         }
     }
 
+    protected Connection getServer() {
+        return server;
+    }
+
     public Socket getSocket() {
         return socket;
     }
@@ -37,92 +99,21 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
+            if (!openStreams()) {
+                return;
+            }
+
             // Wait for the client to send a username
             // This is a blocking call, so it will wait until the client sends a message
             // The client should send a message starting with "USERLIST:"
             // to indicate the username they want to use
-            while (this.username == null) {
-                if (socket.isClosed() || inputStream == null) { // Check if the connection is closed
+            while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+                if (inputStream == null) { // Check if the stream is unavailable
                     logger.warning("Authentication failed: connection closed or stream unavailable.");
                     return; // exit run() if the connection is closed
                 }
-                Object initialMsg = inputStream.readObject();
-                if (initialMsg instanceof String) {
-                    String command = (String) initialMsg;
-                    if (command.startsWith("USERLIST:")) { // Client sends USERLIST:username
-                        String attemptedUsername = command.substring("USERLIST:".length());
-                        if (server.isUsernameTaken(attemptedUsername)) {
-                            send("USERNAME_TAKEN");
-                            // Client should handle this response and prompt for a new username
-                        } else {
-                            this.username = attemptedUsername;
-                            server.registerUser(this.username, this);
-                            // USERNAME_ACCEPTED is sent from server.registerUser()
-                            // server.broadcast("CONNECT:" + this.username);
-                            break; // Exit the loop if username is accepted
-                        }
-                    } else {
-                        send("INVALID_COMMAND:Expected USERLIST:username");
-                        logger.warning("Client " + socket.getRemoteSocketAddress() + " sent invalid initial command: "
-                                + command);
-                        // Consider closing the connection if the command is invalid
-                    }
-                } else {
-                    send("INVALID_COMMAND_TYPE:Expected String for username registration.");
-                    logger.warning("Client " + socket.getRemoteSocketAddress() + " sent non-string initial message.");
-                    // Consider closing the connection if the message is invalid
-                }
-            }
-            if (this.username == null) { // If it was not possible to register the username
-                logger.warning(
-                        "Failed to register username for client " + socket.getRemoteSocketAddress()
-                                + ". Closing connection.");
-                closeConnection();
-                return;
-            }
-
-            logger.info("User " + username + " successfully authenticated. Ready for messages.");
-
-            // Main loop for handling messages
-            label: while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
-                Object obj = inputStream.readObject();
-
-                switch (obj) {
-                    case String command:
-                        if (command.startsWith("PRIVATE_CHAT:")) {
-                            // Expected format: "PRIVATE_CHAT:username:sessionId"
-                            String[] parts = command.split(":", 3);
-
-                            if (parts.length == 3) {
-                                String sessionId = parts[2];
-                                server.handlePrivateChatRequest(this, sessionId, this.username);
-                            } else {
-                                send("ERROR:Invalid PRIVATE_CHAT command format. Expected PRIVATE_CHAT:yourUsername:sessionId");
-                                logger.warning("User " + username + " sent invalid PRIVATE_CHAT command: " + command);
-                            }
-                        } else if (command.equalsIgnoreCase("REQUEST_USERLIST")) {
-                            server.broadcastUserList();
-                        }
-                        // Other string commands could be handled here
-                        else {
-                            logger.info("Received unhandled String command from " + username + ": " + command);
-                        }
-                        break;
-                    case ChatMessage chatMsg:
-                        // Forward the private message instead of broadcasting
-                        server.forwardPrivateMessage(this, chatMsg);
-                        break;
-                    case KeyExchangeMessage keyExchangeMsg:
-                        // Handle automated key exchange messages
-                        server.handleKeyExchange(this, keyExchangeMsg);
-                        break;
-                    case null: // Stream closed or null object received (sent by client)
-                        logger.info("Client " + username + " closed the stream (null object received).");
-                        break label; // Exit the loop if null object is received
-                    default:
-                        logger.warning(
-                                "Received unknown object type from " + username + ": " + obj.getClass().getName());
-                        break;
+                if (!handleObject(inputStream.readMessage())) {
+                    break; // Exit the loop if the client closed the stream
                 }
             }
 
@@ -131,7 +122,7 @@ public class ClientHandler implements Runnable {
                     + " disconnected (EOF).");
         } catch (IOException e) {
             if ("Connection reset".equals(e.getMessage()) || "Socket closed".equals(e.getMessage())
-                    || e.getMessage().contains("Socket write error")) {
+                    || (e.getMessage() != null && e.getMessage().contains("Socket write error"))) {
                 logger.info("Client " + (username != null ? username : socket.getRemoteSocketAddress())
                         + " connection issue: "
                         + e.getMessage());
@@ -152,22 +143,267 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Processes one object received from the client, independently of how it was
+     * read from the wire. Until a username is registered only "USERLIST:username"
+     * is accepted, afterwards commands and messages are dispatched to the server.
+     *
+     * @param obj the decoded object
+     * @return false if the client closed the stream and the connection should end
+     */
+    protected boolean handleObject(Object obj) {
+        long now = System.nanoTime();
+        lastActivityNanos = now;
+        if (obj != null && !withinRateLimit(obj, now)) {
+            return !isClosed();
+        }
+        if (this.username == null) {
+            handleRegistration(obj);
+            return true;
+        }
+
+        switch (obj) {
+            case String command:
+                if (command.startsWith("PRIVATE_CHAT:")) {
+                    // Expected format: "PRIVATE_CHAT:username:sessionId"
+                    String[] parts = command.split(":", 3);
+
+                    if (parts.length == 3) {
+                        String sessionId = parts[2];
+                        server.handlePrivateChatRequest(this, sessionId, this.username);
+                    } else {
+                        send("ERROR:Invalid PRIVATE_CHAT command format. Expected PRIVATE_CHAT:yourUsername:sessionId");
+                        logger.warning("User " + username + " sent invalid PRIVATE_CHAT command: " + command);
+                    }
+                } else if (command.startsWith(Room.JOIN)) {
+                    server.joinRoom(this, command.substring(Room.JOIN.length()));
+                } else if (command.equals(Room.LEAVE)) {
+                    server.leaveRoom(this, true);
+                } else if (command.equalsIgnoreCase(Presence.REQUEST)) {
+                    server.sendUserList(this); // Only the requester needs it
+                } else if (command.startsWith(Presence.REQUEST + ":")) {
+                    try {
+                        server.sendUserList(this, Presence.parseVersion(command));
+                    } catch (IllegalArgumentException e) {
+                        logger.warning("User " + username + " sent invalid user list request: " + command);
+                    }
+                } else if (command.startsWith(Heartbeat.PONG)) {
+                    try {
+                        roundTripNanos = System.nanoTime() - Heartbeat.parseToken(command);
+                    } catch (IllegalArgumentException e) {
+                        logger.warning("User " + username + " sent invalid heartbeat: " + command);
+                    }
+                } else if (command.startsWith(Presence.SYNC)) {
+                    try {
+                        server.resyncPresence(this, Presence.parseVersion(command));
+                    } catch (IllegalArgumentException e) {
+                        logger.warning("User " + username + " sent invalid presence sync: " + command);
+                    }
+                }
+                // Other string commands could be handled here
+                else {
+                    logger.info("Received unhandled String command from " + username + ": " + command);
+                }
+                break;
+            case ChatFrame chatFrame:
+                // Forward the private message instead of broadcasting
+                server.forwardPrivateMessage(this, chatFrame);
+                break;
+            case ChatMessage chatMsg: // From a Java serialization client
+                server.forwardPrivateMessage(this, ChatFrame.of(chatMsg));
+                break;
+            case KeyExchangeMessage keyExchangeMsg:
+                // Handle automated key exchange messages
+                server.handleKeyExchange(this, keyExchangeMsg);
+                break;
+            case null: // Stream closed or null object received (sent by client)
+                logger.info("Client " + username + " closed the stream (null object received).");
+                return false;
+            default:
+                logger.warning(
+                        "Received unknown object type from " + username + ": " + obj.getClass().getName());
+                break;
+        }
+        return true;
+    }
+
+    private static Connection.MessageClass classify(Object message) {
+        if (message instanceof ChatFrame || message instanceof ChatMessage) {
+            return Connection.MessageClass.CHAT;
+        }
+        if (message instanceof KeyExchangeMessage) {
+            return Connection.MessageClass.KEY_EXCHANGE;
+        }
+        return Connection.MessageClass.CONTROL;
+    }
+
+    /**
+     * @return false if the message must be dropped; the client is disconnected if
+     *         it keeps going over its limit
+     */
+    private boolean withinRateLimit(Object message, long now) {
+        Connection.MessageClass messageClass = classify(message);
+        boolean alreadyThrottled = rateLimiter.isThrottling();
+        RateLimiter.Decision decision = rateLimiter.check(messageClass, now);
+        switch (decision) {
+            case ALLOWED:
+                return true;
+            case THROTTLED:
+                server.recordRateLimitDecision(messageClass, decision);
+                if (!alreadyThrottled) {
+                    // Once per burst, so the answers cannot be used to amplify the flood
+                    send("ERROR:Too many messages, slow down.");
+                    logger.info("Throttling " + messageClass + " messages from "
+                            + (username != null ? username : socket.getRemoteSocketAddress()));
+                }
+                return false;
+            default:
+                server.recordRateLimitDecision(messageClass, decision);
+                logger.warning("Client " + (username != null ? username : socket.getRemoteSocketAddress())
+                        + " keeps exceeding its " + messageClass + " rate limit, disconnecting.");
+                closeConnection();
+                return false;
+        }
+    }
+
+    private void handleRegistration(Object initialMsg) {
+        if (initialMsg instanceof String) {
+            String command = (String) initialMsg;
+            if (command.startsWith("USERLIST:")) { // Client sends USERLIST:username
+                String attemptedUsername = command.substring("USERLIST:".length());
+                // Answers USERNAME_ACCEPTED, or USERNAME_TAKEN and the client prompts for a new username
+                if (server.registerUser(attemptedUsername, this)) {
+                    logger.info("User " + username + " successfully authenticated. Ready for messages.");
+                }
+            } else {
+                send("INVALID_COMMAND:Expected USERLIST:username");
+                logger.warning("Client " + socket.getRemoteSocketAddress() + " sent invalid initial command: "
+                        + command);
+                // Consider closing the connection if the command is invalid
+            }
+        } else {
+            send("INVALID_COMMAND_TYPE:Expected String for username registration.");
+            logger.warning("Client " + socket.getRemoteSocketAddress() + " sent non-string initial message.");
+            // Consider closing the connection if the message is invalid
+        }
+    }
+
+    /**
+     * Queues a message for the client. Never blocks, unless the server runs with
+     * {@link Connection.SlowConsumerPolicy#BLOCK} and the queue is full.
+     */
+    @Override
     public void send(Object message) {
-        if (socket.isClosed() || outputStream == null) {
+        send(message, mayBlockSender());
+    }
+
+    /**
+     * Queues a message without ever waiting for room, for callers holding a
+     * lock that other threads need. A full queue is an overflow, even with
+     * {@link Connection.SlowConsumerPolicy#BLOCK}.
+     */
+    void sendWithoutBlocking(Object message) {
+        send(message, false);
+    }
+
+    private void send(Object message, boolean mayBlock) {
+        if (isClosed()) {
             logger.warning("Cannot send message to " + (username != null ? username : "disconnected client")
-                    + ", socket/stream closed.");
+                    + ", connection closed.");
+            return;
+        }
+        switch (outbound.offer(message, isPresenceUpdate(message), mayBlock)) {
+            case QUEUED:
+                scheduleDrain();
+                break;
+            case DROPPED:
+                server.recordDroppedMessage();
+                logger.fine("Dropped presence update for slow client " + username);
+                break;
+            case OVERFLOW:
+                logger.warning("Client " + (username != null ? username : socket.getRemoteSocketAddress())
+                        + " is not keeping up (" + outbound.depth() + " messages queued), disconnecting.");
+                closeConnection();
+                server.recordSlowConsumerDisconnect();
+                break;
+        }
+    }
+
+    // Full user lists are superseded by the next one, so they can be skipped. Presence
+    // snapshots and deltas are never dropped, they build on each other.
+    private static boolean isPresenceUpdate(Object message) {
+        if (message instanceof EncodedMessage encoded) {
+            message = encoded.getMessage();
+        }
+        return message instanceof String text && text.startsWith("USERLIST:");
+    }
+
+    protected boolean mayBlockSender() {
+        return true;
+    }
+
+    // Starts the writer unless it is already running
+    protected void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) {
             return;
         }
         try {
-            outputStream.writeObject(message);
-            outputStream.flush();
-        } catch (IOException e) {
-            ErrorHandler.handleServerError(
-                    "Error sending message to client " + (username != null ? username : "unknown"), e, false);
+            server.getWriterExecutor().execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            draining.set(false); // Server shutting down
         }
     }
 
-    private void closeConnection() {
+    private void drain() {
+        do {
+            Object message;
+            while (!isClosed() && (message = outbound.poll()) != null) {
+                try {
+                    outputStream.writeMessage(message);
+                } catch (IOException e) {
+                    if (!isClosed()) { // Otherwise the write was cut short by closeConnection()
+                        ErrorHandler.handleServerError(
+                                "Error sending message to client " + (username != null ? username : "unknown"), e,
+                                false);
+                    }
+                    draining.set(false);
+                    closeConnection();
+                    return;
+                }
+            }
+            draining.set(false);
+            // A message queued after the last poll but before the flag was cleared
+        } while (!outbound.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * @return true while queued messages have not all been written to the
+     *         socket; false once the connection is closed
+     */
+    boolean hasPendingOutput() {
+        return !isClosed() && (!outbound.isEmpty() || draining.get());
+    }
+
+    protected OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public int getOutboundQueueDepth() {
+        return outbound.depth();
+    }
+
+    public int getPeakOutboundQueueDepth() {
+        return outbound.peakDepth();
+    }
+
+    protected void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return; // Already closed by another path (read error, server shutdown...)
+        }
+        outbound.clear();
+        if (admitted) {
+            server.connectionClosed(this);
+        }
         logger.info("Closing connection for client " + (username != null ? username : socket.getRemoteSocketAddress()));
         if (username != null) {
             server.removeUser(username, this);
@@ -194,7 +430,65 @@ public class ClientHandler implements Runnable {
         logger.info("Connection closed and resources released for " + (username != null ? username : "client"));
     }
 
+    @Override
     public String getUsername() {
         return username;
     }
+
+    // The token is the send time, echoed back in the PONG. Never waits: the peers
+    // the reaper pings are the ones likely to have stalled
+    void sendPing() {
+        sendWithoutBlocking(Heartbeat.ping(System.nanoTime()));
+    }
+
+    boolean supportsHeartbeat() {
+        return protocolVersion >= Heartbeat.MIN_PROTOCOL_VERSION;
+    }
+
+    // Time since the last message received from the client
+    long getIdleNanos(long now) {
+        return now - lastActivityNanos;
+    }
+
+    /**
+     * @return round trip time measured by the last heartbeat, or -1 before the
+     *         first answer
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    // The connection is closed if no username is registered by the deadline
+    void setHandshakeDeadline(HashedWheelTimer.Timeout deadline) {
+        this.handshakeDeadline = deadline;
+        this.admitted = true;
+    }
+
+    void cancelHandshakeDeadline() {
+        HashedWheelTimer.Timeout deadline = handshakeDeadline;
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    // Set by the server once the name is claimed
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * @return the negotiated binary protocol version, or 0 for a client speaking
+     *         Java serialization
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    protected void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package org.incognito;
+
+/**
+ * Connects the nodes of a cluster, so that users of different server processes
+ * can see and talk to each other.
+ *
+ * Besides carrying messages from node to node, the bus keeps the two pieces of
+ * state that have to be agreed on by every node: which node holds each username,
+ * and which user is waiting for a peer under each private chat session ID. Both
+ * must be updated atomically across the cluster, like a compare-and-set in a
+ * shared store. Any call may therefore wait for another process: callers hold
+ * no lock while making one, nor call it from inside a map's compute.
+ *
+ * Messages from one node to another must be delivered in the order they were
+ * sent. Payloads are ChatFrame, KeyExchangeMessage, String or Boolean; a bus that
+ * crosses process boundaries carries chat frames as their bytes, undecoded.
+ */
+public interface ClusterBus {
+
+    /** A user and the node it is connected to. */
+    record Member(String node, String username) {
+    }
+
+    interface Listener {
+        void onMessage(ClusterMessage message);
+    }
+
+    /**
+     * Adds a node. Its messages are handed to the listener one at a time.
+     */
+    void join(String node, Listener listener);
+
+    /**
+     * Removes a node with its usernames and waiting requests. The other nodes
+     * get NODE_LEFT.
+     */
+    void leave(String node);
+
+    void send(String node, ClusterMessage message);
+
+    // To every node but the origin of the message
+    void publish(ClusterMessage message);
+
+    /**
+     * Claims a username for a node.
+     *
+     * @param key normalized username, see {@link UserRegistry#normalize}
+     * @return false if the name is held by any node
+     */
+    boolean claimUser(String key, String node);
+
+    // Only if the name still belongs to the node
+    void releaseUser(String key, String node);
+
+    /**
+     * @return the node holding the username, or null
+     */
+    String locateUser(String key);
+
+    /**
+     * Meets the user waiting under a session ID, or becomes the one waiting.
+     *
+     * @return the member that was waiting, now removed, or null if this member
+     *         waits
+     */
+    Member rendezvous(String sessionId, Member member);
+
+    // Stops waiting, if still waiting
+    void withdraw(String sessionId, Member member);
+}
@@ -0,0 +1,25 @@
+package org.incognito;
+
+/**
+ * A message between two nodes of a cluster (see {@link ClusterBus}).
+ *
+ * @param origin    node that sent it
+ * @param sender    user it comes from, if any
+ * @param recipient user it is meant for, if any
+ * @param payload   for RELAY the ChatFrame, KeyExchangeMessage or String to hand
+ *                  to the recipient; for USER_STATE whether the user is available
+ */
+public record ClusterMessage(Type type, String origin, String sender, String recipient, String sessionId,
+        Object payload) {
+
+    public enum Type {
+        NODE_JOINED, // A node started, the others tell it about their users
+        NODE_LEFT, // Published by the bus when a node leaves or is lost
+        USER_STATE, // A user registered or changed availability
+        USER_LEFT,
+        RELAY, // Message for a user of the receiving node
+        SESSION_OPENED, // A user was paired with a user of the receiving node
+        SESSION_CONFIRMED, // The receiving node's user was claimed for the session too
+        SESSION_REFUSED // It could not be, the session is undone
+    }
+}
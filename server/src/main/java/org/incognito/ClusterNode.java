@@ -0,0 +1,186 @@
+package org.incognito;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The server's membership in a cluster: claims its users' names in the shared
+ * directory, tells the other nodes about its users, and hands the messages they
+ * send to {@link Connection}.
+ *
+ * Users of other nodes are represented by a {@link RemoteClient} each, created
+ * when first needed and dropped when the user or its node leaves.
+ */
+class ClusterNode implements ClusterBus.Listener {
+    private static Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    private final Connection server;
+    private final ClusterBus bus;
+    private final String nodeId;
+    // Keyed by node and normalized username
+    private final Map<ClusterBus.Member, RemoteClient> remoteClients = new ConcurrentHashMap<>();
+    // Users of the other nodes shown in the user list, with their node
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+
+    ClusterNode(Connection server, ClusterBus bus, String nodeId) {
+        this.server = server;
+        this.bus = bus;
+        this.nodeId = nodeId;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    void start() {
+        bus.join(nodeId, this);
+        bus.publish(message(ClusterMessage.Type.NODE_JOINED, null, null, null, null));
+    }
+
+    void stop() {
+        stopped = true;
+        bus.leave(nodeId);
+    }
+
+    /**
+     * @return false if a user of any node has the name
+     */
+    boolean claim(String username) {
+        return bus.claimUser(UserRegistry.normalize(username), nodeId);
+    }
+
+    boolean isTaken(String username) {
+        return bus.locateUser(UserRegistry.normalize(username)) != null;
+    }
+
+    void release(String username) {
+        if (stopped) {
+            return; // The bus already dropped this node's users
+        }
+        bus.releaseUser(UserRegistry.normalize(username), nodeId);
+        bus.publish(message(ClusterMessage.Type.USER_LEFT, username, null, null, null));
+    }
+
+    // Availability of a local user, as shown in the other nodes' user lists
+    void announce(String username, boolean available) {
+        if (!stopped) {
+            bus.publish(message(ClusterMessage.Type.USER_STATE, username, null, null, available));
+        }
+    }
+
+    /**
+     * @return the stand-in for a user of another node, or null if no other node
+     *         has the name
+     */
+    RemoteClient locate(String username) {
+        String node = bus.locateUser(UserRegistry.normalize(username));
+        if (node == null || node.equals(nodeId)) {
+            return null;
+        }
+        return remoteClient(new ClusterBus.Member(node, username));
+    }
+
+    /**
+     * Meets the user of another node waiting for this session ID, or registers
+     * the local user as waiting.
+     *
+     * @return the remote peer, or null if the local user waits
+     */
+    RemoteClient rendezvous(String sessionId, String username) {
+        ClusterBus.Member waiting = bus.rendezvous(sessionId, new ClusterBus.Member(nodeId, username));
+        return waiting != null ? remoteClient(waiting) : null;
+    }
+
+    void withdraw(String sessionId, String username) {
+        bus.withdraw(sessionId, new ClusterBus.Member(nodeId, username));
+    }
+
+    void relay(ClusterBus.Member recipient, Object payload) {
+        bus.send(recipient.node(), message(ClusterMessage.Type.RELAY, null, recipient.username(), null, payload));
+    }
+
+    // SESSION_OPENED, SESSION_CONFIRMED or SESSION_REFUSED from a local user to its remote peer
+    void sendSession(ClusterMessage.Type type, String username, RemoteClient peer, String sessionId) {
+        bus.send(peer.getNode(), message(type, username, peer.getUsername(), sessionId, null));
+    }
+
+    @Override
+    public void onMessage(ClusterMessage message) {
+        switch (message.type()) {
+            case NODE_JOINED:
+                for (ClientHandler client : server.getRegisteredClients()) {
+                    String username = client.getUsername();
+                    if (username == null) {
+                        continue; // Still registering, announced once accepted
+                    }
+                    bus.send(message.origin(), message(ClusterMessage.Type.USER_STATE, username, null,
+                            null, !server.isInSession(client)));
+                }
+                break;
+            case NODE_LEFT:
+                logger.warning("Node " + message.origin() + " left the cluster, dropping its users");
+                Iterator<Map.Entry<ClusterBus.Member, RemoteClient>> entries = remoteClients.entrySet().iterator();
+                while (entries.hasNext()) {
+                    RemoteClient client = entries.next().getValue();
+                    if (client.getNode().equals(message.origin())) {
+                        entries.remove();
+                        server.remoteUserLeft(client);
+                    }
+                }
+                remoteUsers.entrySet().removeIf(user -> {
+                    if (!user.getValue().equals(message.origin())) {
+                        return false;
+                    }
+                    server.remoteUserState(user.getKey(), null);
+                    return true;
+                });
+                break;
+            case USER_STATE:
+                remoteUsers.put(message.sender(), message.origin());
+                server.remoteUserState(message.sender(), (Boolean) message.payload());
+                break;
+            case USER_LEFT:
+                RemoteClient left = remoteClients.remove(key(message.origin(), message.sender()));
+                if (left != null) {
+                    server.remoteUserLeft(left);
+                }
+                if (remoteUsers.remove(message.sender(), message.origin())) {
+                    server.remoteUserState(message.sender(), null);
+                }
+                break;
+            case RELAY:
+                server.deliver(message.recipient(), message.payload());
+                break;
+            case SESSION_OPENED:
+                server.remoteSessionOpened(sender(message), message.recipient(), message.sessionId());
+                break;
+            case SESSION_CONFIRMED:
+                server.remoteSessionConfirmed(sender(message), message.recipient(), message.sessionId());
+                break;
+            case SESSION_REFUSED:
+                server.remoteSessionRefused(sender(message), message.recipient(), message.sessionId());
+                break;
+        }
+    }
+
+    private RemoteClient sender(ClusterMessage message) {
+        return remoteClient(new ClusterBus.Member(message.origin(), message.sender()));
+    }
+
+    private RemoteClient remoteClient(ClusterBus.Member member) {
+        return remoteClients.computeIfAbsent(key(member.node(), member.username()),
+                key -> new RemoteClient(this, member));
+    }
+
+    private static ClusterBus.Member key(String node, String username) {
+        return new ClusterBus.Member(node, UserRegistry.normalize(username));
+    }
+
+    private ClusterMessage message(ClusterMessage.Type type, String sender, String recipient, String sessionId,
+            Object payload) {
+        return new ClusterMessage(type, nodeId, sender, recipient, sessionId, payload);
+    }
+}
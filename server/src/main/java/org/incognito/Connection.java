@@ -2,60 +2,715 @@ package org.incognito;
 
 import org.incognito.ChatSessionLogger;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Connection {
     private static Logger logger = Logger.getLogger(Connection.class.getName());
 
-    private ServerSocket socket;
-    public final int PORT = 58239;
+    /** How client sockets are served. */
+    public enum Engine {
+        THREAD_POOL, // One pooled thread per client, blocking on its socket
+        VIRTUAL_THREADS, // One virtual thread per client, blocking on its socket
+        NIO // A few selector event loops shared by all clients
+    }
+
+    /** What happens to a client whose outbound queue fills up. */
+    public enum SlowConsumerPolicy {
+        DROP_PRESENCE, // Skip user list updates past the high-water mark, disconnect when full
+        DISCONNECT, // Disconnect as soon as the high-water mark is reached
+        BLOCK // Senders wait up to the send timeout for room, then disconnect (NIO event loops never wait)
+    }
+
+    /** Kinds of client messages, each rate limited on its own. */
+    public enum MessageClass {
+        CONTROL, // Commands such as REQUEST_USERLIST, and the registration
+        CHAT,
+        KEY_EXCHANGE
+    }
+
+    /** Sustained rate and burst allowed to each client for one kind of message. */
+    public record RateLimit(double perSecond, int burst) {
+    }
+
+    /**
+     * Options of every accepted connection. A buffer size of 0 keeps the system
+     * default; the read buffer is where incoming bytes are collected before they
+     * are decoded (the initial size with the NIO engine, which grows it as needed).
+     */
+    public record SocketTuning(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize, int readBufferSize) {
+        public static final SocketTuning DEFAULT = new SocketTuning(false, 0, 0, 8 * 1024);
+
+        public SocketTuning {
+            if (sendBufferSize < 0 || receiveBufferSize < 0 || readBufferSize < 1) {
+                throw new IllegalArgumentException("Invalid socket buffer sizes");
+            }
+        }
+    }
+
+    /**
+     * Outcome of a shutdown: of the connections open when it began, how many had
+     * all their messages written, or left by themselves, before being closed.
+     */
+    public record DrainReport(int connections, int drained, long elapsedMillis) {
+        public int forced() {
+            return connections - drained;
+        }
+    }
+
+    public static final int DEFAULT_PORT = 58239;
+
+    // One listener per acceptor shard, all bound to the same port
+    private final List<ServerSocket> sockets = new ArrayList<>();
+    private AtomicLongArray acceptedPerShard = new AtomicLongArray(1);
+    public final int PORT;
+    private final Engine engine;
+    // Compatibility mode: also serve clients speaking Java serialization
+    private volatile boolean legacyClientsAllowed = true;
+
+    // Outbound queue settings, read when a client connects
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_PRESENCE;
+    private volatile int outboundQueueCapacity = 1024;
+    private volatile int outboundHighWaterMark = 256;
+    private volatile long sendTimeoutMillis = 1000;
+    private final AtomicLong droppedOutboundMessages = new AtomicLong();
+    private final AtomicLong slowConsumerDisconnects = new AtomicLong();
+
+    // Per-client rate limits, read when a client connects
+    private volatile Map<MessageClass, RateLimit> rateLimits = Map.of(
+            MessageClass.CONTROL, new RateLimit(5, 20),
+            MessageClass.CHAT, new RateLimit(20, 50),
+            MessageClass.KEY_EXCHANGE, new RateLimit(2, 10));
+    private volatile int rateLimitStrikes = 50;
+
+    private volatile SocketTuning socketTuning = SocketTuning.DEFAULT;
+    private final Map<MessageClass, AtomicLong> throttledMessages = new EnumMap<>(MessageClass.class);
+    private final Map<MessageClass, AtomicLong> rateLimitDisconnects = new EnumMap<>(MessageClass.class);
 
     // threadPool that will handle user connections
     private ExecutorService clientHandlerPool;
+
+    // Used instead of sockets and clientHandlerPool by the NIO engine
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private NioEngine nioEngine;
     private ArrayList<ClientHandler> connectedClients = new ArrayList<>();
-    private Map<String, ClientHandler> usersClientMap = new ConcurrentHashMap<>();
-    private Set<String> connectedUsers = ConcurrentHashMap.newKeySet();
+    // Registered users, looked up case-insensitively
+    private final UserRegistry users = new UserRegistry();
 
     // Data structures for private chat sessions
-    private Map<String, ClientHandler> pendingPrivateChats = new ConcurrentHashMap<>();
+    private Map<String, PendingRequest> pendingPrivateChats = new ConcurrentHashMap<>();
+    // Reverse index of pendingPrivateChats: the session IDs each client waits for
+    private Map<ClientHandler, Set<String>> pendingByClient = new ConcurrentHashMap<>();
     private Map<String, PrivateChatSession> activePrivateSessions = new ConcurrentHashMap<>();
-    private Map<ClientHandler, String> clientToSessionIdMap = new ConcurrentHashMap<>();
+    private Map<Peer, String> clientToSessionIdMap = new ConcurrentHashMap<>();
+
+    // Group chat rooms by name, and the room each client is in. Rooms are local
+    // to this node.
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    private final Map<ClientHandler, ChatRoom> clientRooms = new ConcurrentHashMap<>();
+    private volatile int maxRoomMembers = 256;
+
+    // Deadlines of pending requests and of connections that have not registered yet
+    private final HashedWheelTimer timer = new HashedWheelTimer("connection-timer", 100, 512);
+    private volatile long pendingRequestTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private final AtomicLong expiredPendingRequests = new AtomicLong();
+
+    // Admission of new connections
+    private final AdmissionControl admission = new AdmissionControl(10_000, 50);
+    private volatile long handshakeTimeoutMillis = 10_000;
+    private final AtomicLong handshakeTimeouts = new AtomicLong();
+    // A rejected socket is closed a little later, so the client can read why
+    private static final long REJECTED_CLOSE_DELAY_MILLIS = 1000;
+
+    // Heartbeats, 0 disables them
+    private volatile long heartbeatIntervalMillis = 15_000;
+    private volatile long idleTimeoutMillis = 45_000;
+    private IdleReaper idleReaper;
+
+    // Presence changes are published together once per window
+    private final PresenceBroadcaster presence = new PresenceBroadcaster(this, 100);
+
+    // Set when the server is one node of a cluster
+    private volatile ClusterNode cluster;
+
+    // Shutdown: time allowed to write what is queued, and the range clients are
+    // told to wait before reconnecting
+    private volatile long drainTimeoutMillis = 5000;
+    private volatile long reconnectMinMillis = 1000;
+    private volatile long reconnectMaxMillis = 30_000;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private volatile DrainReport drainReport;
+
+    // Session events, or null when not journaled
+    private volatile EventJournal journal;
+
+    // Counters of the relay path; the gauges are registered by the constructor
+    private final Metrics metrics = new Metrics();
+    private final LongAdder relayedMessages = metrics.counter("messages.relayed",
+            "Chat messages delivered, counted once per recipient");
+    private final LongAdder bytesIn = metrics.counter("bytes.in", "Bytes read from clients");
+    private final LongAdder bytesOut = metrics.counter("bytes.out", "Bytes written to clients");
+    private final Map<KeyExchangeMessage.Type, LongAdder> keyExchanges = new EnumMap<>(KeyExchangeMessage.Type.class);
 
     public Connection() {
+        this(Engine.THREAD_POOL, 0);
+    }
+
+    public Connection(Engine engine, int eventLoops) {
+        this(engine, eventLoops, DEFAULT_PORT);
+    }
+
+    /**
+     * @param engine     how client sockets are served
+     * @param eventLoops number of selector threads for the NIO engine, 0 for one
+     *                   per processor; ignored by the other engines
+     * @param port       port to listen on, 0 for any free port (see
+     *                   {@link #getLocalPort()})
+     */
+    public Connection(Engine engine, int eventLoops, int port) {
+        this(engine, eventLoops, port, 0);
+    }
+
+    /**
+     * @param backlog length of the queue of connections not yet accepted, 0 for
+     *                the system default
+     */
+    public Connection(Engine engine, int eventLoops, int port, int backlog) {
+        this(engine, eventLoops, port, backlog, 1);
+    }
+
+    /**
+     * @param acceptors number of listeners sharing the port with SO_REUSEPORT, each
+     *                  with its own accept loop, so that the kernel spreads new
+     *                  connections over several threads. Falls back to one where
+     *                  SO_REUSEPORT is not supported.
+     */
+    public Connection(Engine engine, int eventLoops, int port, int backlog, int acceptors) {
+        this.engine = engine;
+        this.PORT = port;
+        for (MessageClass messageClass : MessageClass.values()) {
+            throttledMessages.put(messageClass, new AtomicLong());
+            rateLimitDisconnects.put(messageClass, new AtomicLong());
+        }
+        registerMetrics();
         try {
-            this.socket = new ServerSocket(PORT);
-            this.clientHandlerPool = Executors.newCachedThreadPool();
-            logger.fine("Initialized on port " + PORT);
+            int shards = acceptorShards(engine, acceptors);
+            acceptedPerShard = new AtomicLongArray(shards);
+            int boundPort = PORT;
+            for (int shard = 0; shard < shards; shard++) {
+                // Later shards join the port the first one got, which matters for port 0
+                if (engine == Engine.NIO) {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    if (shards > 1) {
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    channel.bind(new InetSocketAddress(boundPort), backlog);
+                    boundPort = channel.socket().getLocalPort();
+                    serverChannels.add(channel);
+                } else {
+                    ServerSocket serverSocket = new ServerSocket();
+                    if (shards > 1) {
+                        serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    serverSocket.bind(new InetSocketAddress(boundPort), backlog);
+                    boundPort = serverSocket.getLocalPort();
+                    sockets.add(serverSocket);
+                }
+            }
+            if (engine == Engine.NIO) {
+                this.nioEngine = new NioEngine(this, serverChannels, eventLoops);
+            } else {
+                if (engine == Engine.VIRTUAL_THREADS) {
+                    this.clientHandlerPool = Executors.newThreadPerTaskExecutor(
+                            Thread.ofVirtual().name("client-handler-", 0).factory());
+                } else {
+                    this.clientHandlerPool = Executors.newCachedThreadPool();
+                }
+            }
+            logger.fine("Initialized " + engine + " engine on port " + PORT + " with " + shards + " acceptors");
         } catch (IOException e) {
             ErrorHandler.handleServerError("Could not initialize socket", e, true);
         }
     }
 
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public boolean isLegacyClientsAllowed() {
+        return legacyClientsAllowed;
+    }
+
+    /**
+     * @param maxConnections most connections open at once, registered or not
+     * @param maxPerAddress  most connections open at once from one IP address
+     */
+    public void setConnectionLimits(int maxConnections, int maxPerAddress) {
+        admission.setLimits(maxConnections, maxPerAddress);
+    }
+
+    // Time a new connection has to register a username before it is closed
+    public void setHandshakeTimeoutMillis(long handshakeTimeoutMillis) {
+        if (handshakeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Handshake timeout must be positive");
+        }
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    public int getConnectionCount() {
+        return admission.getConnectionCount();
+    }
+
+    public long getRejectedConnections() {
+        return admission.getRejectedCount();
+    }
+
+    // Connections closed because they did not register in time
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.get();
+    }
+
+    /**
+     * Whether clients that predate the binary protocol may still connect. Turn it
+     * off once every client speaks {@link WireCodec}.
+     */
+    public void setLegacyClientsAllowed(boolean legacyClientsAllowed) {
+        this.legacyClientsAllowed = legacyClientsAllowed;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Sizes the queue of messages waiting to be written to each client. Applies to
+     * clients connecting afterwards.
+     *
+     * @param capacity      most messages queued for one client
+     * @param highWaterMark depth at which the slow-consumer policy kicks in
+     */
+    public void setOutboundQueueLimits(int capacity, int highWaterMark) {
+        if (capacity < 1 || highWaterMark < 1) {
+            throw new IllegalArgumentException("Outbound queue limits must be positive");
+        }
+        this.outboundQueueCapacity = capacity;
+        this.outboundHighWaterMark = highWaterMark;
+    }
+
+    // How long a sender waits for room with SlowConsumerPolicy.BLOCK
+    public void setSendTimeoutMillis(long sendTimeoutMillis) {
+        this.sendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    /**
+     * Sets how long presence changes are collected before they are published as
+     * one update. 0 publishes every change immediately.
+     */
+    public void setPresenceWindowMillis(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Presence window must not be negative");
+        }
+        presence.setFlushWindowMillis(windowMillis);
+    }
+
+    // Applies to connections accepted from now on
+    public void setSocketTuning(SocketTuning socketTuning) {
+        this.socketTuning = Objects.requireNonNull(socketTuning);
+    }
+
+    SocketTuning getSocketTuning() {
+        return socketTuning;
+    }
+
+    // Called by the accept loops before the connection is handed to its handler
+    void tune(Socket clientSocket) throws IOException {
+        SocketTuning tuning = socketTuning;
+        clientSocket.setKeepAlive(true); // Finds dead peers of clients without heartbeats
+        clientSocket.setTcpNoDelay(tuning.tcpNoDelay());
+        if (tuning.sendBufferSize() > 0) {
+            clientSocket.setSendBufferSize(tuning.sendBufferSize());
+        }
+        if (tuning.receiveBufferSize() > 0) {
+            clientSocket.setReceiveBufferSize(tuning.receiveBufferSize());
+        }
+    }
+
+    /**
+     * Records joins, pairings, session ends and every relayed message in the
+     * journal, instead of a line per message in the chat session log. Null
+     * stops journaling. The journal is not closed by stop(), as nodes may share
+     * it: whoever opened it closes it, as {@link ServerConfig#closeJournal}
+     * does for the server.
+     */
+    public void setEventJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    // Records the event if there is a journal
+    private void journal(EventJournal.Type type, String user, String peer, String session, int value) {
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            journal.record(type, user, peer, session, value);
+        }
+    }
+
+    // How long stop() waits for the clients' queued messages to be written
+    public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+        if (drainTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Drain timeout must not be negative");
+        }
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * Sets the range of the delay clients are told to wait before reconnecting
+     * when the server stops. Each client gets its own delay, drawn uniformly.
+     */
+    public void setReconnectHintMillis(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid reconnect delay range");
+        }
+        this.reconnectMinMillis = minMillis;
+        this.reconnectMaxMillis = maxMillis;
+    }
+
+    /**
+     * @param limit null to let the messages through unlimited
+     */
+    public void setRateLimit(MessageClass messageClass, RateLimit limit) {
+        Map<MessageClass, RateLimit> limits = new EnumMap<>(MessageClass.class);
+        limits.putAll(rateLimits);
+        if (limit != null) {
+            limits.put(messageClass, limit);
+        } else {
+            limits.remove(messageClass);
+        }
+        rateLimits = limits;
+    }
+
+    /**
+     * @param strikes messages over the limit a client may send, forgiven at one per
+     *                second, before it is disconnected; 0 to only drop them
+     */
+    public void setRateLimitStrikes(int strikes) {
+        this.rateLimitStrikes = strikes;
+    }
+
+    RateLimiter newRateLimiter() {
+        return new RateLimiter(rateLimits, rateLimitStrikes, System.nanoTime());
+    }
+
+    void recordRateLimitDecision(MessageClass messageClass, RateLimiter.Decision decision) {
+        Map<MessageClass, AtomicLong> counters = decision == RateLimiter.Decision.DISCONNECT
+                ? rateLimitDisconnects
+                : throttledMessages;
+        counters.get(messageClass).incrementAndGet();
+    }
+
+    // Messages dropped for exceeding the rate limit, by kind
+    public Map<MessageClass, Long> getThrottledMessages() {
+        return snapshot(throttledMessages);
+    }
+
+    // Clients disconnected for exceeding the rate limit, by kind of the last message
+    public Map<MessageClass, Long> getRateLimitDisconnects() {
+        return snapshot(rateLimitDisconnects);
+    }
+
+    private static Map<MessageClass, Long> snapshot(Map<MessageClass, AtomicLong> counters) {
+        Map<MessageClass, Long> values = new EnumMap<>(MessageClass.class);
+        counters.forEach((messageClass, count) -> values.put(messageClass, count.get()));
+        return values;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueCapacity, outboundHighWaterMark, slowConsumerPolicy, sendTimeoutMillis);
+    }
+
+    // Runs the single writer of each threaded client while it has messages queued
+    Executor getWriterExecutor() {
+        return clientHandlerPool;
+    }
+
+    void recordDroppedMessage() {
+        droppedOutboundMessages.incrementAndGet();
+    }
+
+    void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.incrementAndGet();
+    }
+
+    /**
+     * @return number of messages waiting to be written, for each registered user
+     */
+    public Map<String, Integer> getOutboundQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (ClientHandler client : users.clients()) {
+            depths.put(client.getUsername(), client.getOutboundQueueDepth());
+        }
+        return depths;
+    }
+
+    public long getDroppedOutboundMessages() {
+        return droppedOutboundMessages.get();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.get();
+    }
+
+    // How long a private chat request waits for the peer before it is dropped
+    public void setPendingRequestTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Pending request timeout must be positive");
+        }
+        this.pendingRequestTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how often silent clients are pinged, and after how long without any
+     * message they are disconnected. Read when the server starts.
+     *
+     * @param intervalMillis    ping interval, 0 to disable heartbeats
+     * @param idleTimeoutMillis silence after which a client is dropped, longer
+     *                          than the interval
+     */
+    public void setHeartbeat(long intervalMillis, long idleTimeoutMillis) {
+        if (intervalMillis < 0 || (intervalMillis > 0 && idleTimeoutMillis <= intervalMillis)) {
+            throw new IllegalArgumentException("Idle timeout must be longer than the heartbeat interval");
+        }
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return round trip time of the last heartbeat in microseconds, for each
+     *         registered user that answered one
+     */
+    public Map<String, Long> getRoundTripMicros() {
+        Map<String, Long> roundTrips = new TreeMap<>();
+        for (ClientHandler client : users.clients()) {
+            long roundTrip = client.getRoundTripNanos();
+            if (roundTrip >= 0) {
+                roundTrips.put(client.getUsername(), TimeUnit.NANOSECONDS.toMicros(roundTrip));
+            }
+        }
+        return roundTrips;
+    }
+
+    // Connections closed for being silent past the idle timeout
+    public long getIdleConnectionsClosed() {
+        IdleReaper reaper = idleReaper;
+        return reaper == null ? 0 : reaper.getReapedCount();
+    }
+
+    /**
+     * Makes the server one node of a cluster: usernames are unique across the
+     * nodes, every node's users are listed, and private chats and key exchanges
+     * work between users of different nodes. Call before clients connect.
+     */
+    public void joinCluster(ClusterBus bus, String nodeId) {
+        ClusterNode node = new ClusterNode(this, bus, nodeId);
+        this.cluster = node;
+        node.start();
+    }
+
+    public void setMaxRoomMembers(int maxRoomMembers) {
+        if (maxRoomMembers < 2) {
+            throw new IllegalArgumentException("A room must admit at least two members");
+        }
+        this.maxRoomMembers = maxRoomMembers;
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    public int getPendingPrivateChatCount() {
+        return pendingPrivateChats.size();
+    }
+
+    public long getExpiredPendingRequests() {
+        return expiredPendingRequests.get();
+    }
+
+    // How many presence changes each published update carried
+    PresenceBroadcaster.Stats getPresenceStats() {
+        return presence.getStats();
+    }
+
+    // Actual listening port, differs from PORT when started on port 0
+    public int getLocalPort() {
+        if (!sockets.isEmpty()) {
+            return sockets.get(0).getLocalPort();
+        }
+        if (!serverChannels.isEmpty()) {
+            return serverChannels.get(0).socket().getLocalPort();
+        }
+        return PORT;
+    }
+
+    public int getAcceptorCount() {
+        return acceptedPerShard.length();
+    }
+
+    // Connections accepted by each acceptor shard, refused ones included
+    public long[] getAcceptedPerAcceptor() {
+        long[] accepted = new long[acceptedPerShard.length()];
+        for (int shard = 0; shard < accepted.length; shard++) {
+            accepted[shard] = acceptedPerShard.get(shard);
+        }
+        return accepted;
+    }
+
+    void recordAccepted(int shard) {
+        acceptedPerShard.incrementAndGet(shard);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Added to by the handlers as they read and write
+    LongAdder getBytesIn() {
+        return bytesIn;
+    }
+
+    LongAdder getBytesOut() {
+        return bytesOut;
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("connections.accepted", "Connections accepted, refused ones included", () -> {
+            long accepted = 0;
+            for (long shard : getAcceptedPerAcceptor()) {
+                accepted += shard;
+            }
+            return accepted;
+        });
+        metrics.gauge("connections.rejected", "Connections refused by the connection limits",
+                admission::getRejectedCount);
+        metrics.gauge("connections.open", "Connections currently open", admission::getConnectionCount);
+        for (KeyExchangeMessage.Type type : KeyExchangeMessage.Type.values()) {
+            keyExchanges.put(type, metrics.counter("key-exchanges." + type.name().toLowerCase().replace('_', '-'),
+                    "Key exchange messages of type " + type + " received"));
+        }
+        metrics.gauge("users", "Registered users", users::size);
+        metrics.gauge("sessions.active", "Private chat sessions open", () -> activePrivateSessions.size());
+        metrics.gauge("chats.pending", "Private chat requests waiting for a peer", () -> pendingPrivateChats.size());
+        metrics.gauge("outbound.queued", "Messages waiting to be written, over every client", () -> {
+            long queued = 0;
+            for (ClientHandler client : users.clients()) {
+                queued += client.getOutboundQueueDepth();
+            }
+            return queued;
+        });
+    }
+
+    private static int acceptorShards(Engine engine, int acceptors) throws IOException {
+        if (acceptors <= 1) {
+            return 1;
+        }
+        boolean supported;
+        if (engine == Engine.NIO) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        } else {
+            try (ServerSocket probe = new ServerSocket()) {
+                supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        if (!supported) {
+            logger.warning("SO_REUSEPORT is not supported here, using a single acceptor");
+            return 1;
+        }
+        return acceptors;
+    }
+
     public void start() {
-        if (this.socket == null) {
+        if (this.sockets.isEmpty() && this.nioEngine == null) {
             ErrorHandler.handleServerError("Socket is unavailable. Unable to start server.", null, true);
             return;
         }
 
-        logger.info("Server ready and listening on port " + PORT);
+        logger.info("Server ready and listening on port " + getLocalPort() + " (" + engine + " engine)");
+        if (heartbeatIntervalMillis > 0) {
+            idleReaper = new IdleReaper(this, heartbeatIntervalMillis, idleTimeoutMillis);
+            idleReaper.start();
+        }
+        if (nioEngine != null) {
+            nioEngine.run(); // Blocking, like the accept loop below
+            return;
+        }
+
+        // Every shard but the first accepts on its own thread
+        for (int shard = 1; shard < sockets.size(); shard++) {
+            int acceptor = shard;
+            Thread thread = new Thread(() -> acceptLoop(acceptor), "acceptor-" + acceptor);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptLoop(0);
+    }
+
+    private void acceptLoop(int shard) {
+        ServerSocket socket = sockets.get(shard);
         while (true) {
             try {
                 logger.fine("Listening for a new client...");
 
-                Socket clientSocket = this.socket.accept();
-                logger.fine("Connection established with " + clientSocket.getInetAddress());
+                Socket clientSocket = socket.accept();
+                recordAccepted(shard);
+                if (!admit(clientSocket)) {
+                    continue;
+                }
+                ClientHandler clientHandler = null; // Set once it holds the admission
+                try {
+                    tune(clientSocket);
+                    logger.fine("Connection established with " + clientSocket.getInetAddress());
 
-                ClientHandler clientHandler = new ClientHandler(this, clientSocket);
-                clientHandlerPool.execute(clientHandler);
+                    ClientHandler handler = new ClientHandler(this, clientSocket);
+                    connectionOpened(handler);
+                    clientHandler = handler;
+                    clientHandlerPool.execute(clientHandler);
+                } catch (IOException | RuntimeException e) {
+                    if (clientHandler != null) {
+                        clientHandler.closeConnection();
+                    } else {
+                        abandon(clientSocket);
+                    }
+                    throw e;
+                }
 
             } catch (IOException e) {
                 if (socket.isClosed()) {
@@ -69,111 +724,328 @@ public class Connection {
         }
     }
 
-    public void stop() {
+    /**
+     * Stops the server: no more connections are accepted, every client is told
+     * when to reconnect, and the connections are closed once their queued
+     * messages are written or the drain timeout has passed.
+     *
+     * @return how many connections drained cleanly; the report of the first call
+     *         if called again
+     */
+    public DrainReport stop() {
+        if (!stopping.compareAndSet(false, true)) {
+            return drainReport;
+        }
         logger.info("Attempting to stop server...");
-        broadcast("SERVER_SHUTDOWN"); // Notify all clients about server shutdown
+        if (cluster != null) {
+            cluster.stop();
+        }
+        closeListeners();
+        presence.shutdown(); // No presence update queued behind the drain, nor for each departure
+        DrainReport report = drain();
+        drainReport = report;
+        logger.info("Drained " + report.drained() + " of " + report.connections() + " connections in "
+                + report.elapsedMillis() + " ms, " + report.forced() + " closed with messages still queued");
+
+        if (clientHandlerPool != null) {
+            clientHandlerPool.shutdown();
+        }
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
+        timer.stop();
+        if (idleReaper != null) {
+            idleReaper.stop();
+        }
+        logger.info("Presence updates: " + presence.getStats());
+        logger.info("Server stopped.");
+        return report;
+    }
+
+    // Tells each client when to come back, waits for the queues to empty, then closes
+    private DrainReport drain() {
+        long start = System.nanoTime();
+        List<ClientHandler> clients = new ArrayList<>(users.clients());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (ClientHandler client : clients) {
+            long delay = reconnectMinMillis == reconnectMaxMillis ? reconnectMinMillis
+                    : random.nextLong(reconnectMinMillis, reconnectMaxMillis + 1);
+            client.send(ServerShutdown.notice(delay));
+        }
+
+        // A client closed meanwhile may have lost its messages (overflow, write
+        // error), so only queues seen empty while still open count as drained
+        Set<ClientHandler> drained = new HashSet<>();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
         try {
-            if (this.socket != null && !this.socket.isClosed()) {
-                this.socket.close();
+            while (!collectDrained(clients, drained) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Close what is left right away
+        }
+
+        for (ClientHandler client : clients) {
+            client.closeConnection();
+        }
+        return new DrainReport(clients.size(), drained.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Returns true once no open client has output left
+    private static boolean collectDrained(List<ClientHandler> clients, Set<ClientHandler> drained) {
+        boolean done = true;
+        for (ClientHandler client : clients) {
+            if (drained.contains(client)) {
+                continue;
+            }
+            boolean pending = client.hasPendingOutput(); // Before isClosed(): false once closed
+            if (client.isClosed()) {
+                continue;
+            }
+            if (pending) {
+                done = false;
+            } else {
+                drained.add(client);
+            }
+        }
+        return done;
+    }
+
+    private void closeListeners() {
+        try {
+            for (ServerSocket socket : sockets) {
+                if (!socket.isClosed()) {
+                    socket.close();
+                }
+            }
+            for (ServerSocketChannel channel : serverChannels) {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
             }
         } catch (IOException e) {
             ErrorHandler.handleServerError("Error while closing server socket", e, false);
-        } finally {
-            clientHandlerPool.shutdown();
-            logger.info("Server stopped.");
         }
     }
 
     public void broadcast(Object message) {
-        for (ClientHandler client : new ArrayList<>(usersClientMap.values())) {
-            client.send(message);
+        EncodedMessage encoded = EncodedMessage.of(message); // Once, whatever the number of recipients
+        for (ClientHandler client : new ArrayList<>(users.clients())) {
+            client.send(encoded);
         }
     } // add user to the list of connected users
 
-    public void registerUser(String username, ClientHandler clientHandler) {
-        // Store the username in its original case but check case-insensitively
-        if (isUsernameTaken(username)) {
-            clientHandler.send("USERNAME_TAKEN");
-            return;
+    /**
+     * Counts a newly accepted connection against the limits. A refused one is
+     * told why and closed, without creating a handler.
+     *
+     * @return false if the connection was refused
+     */
+    boolean admit(Socket clientSocket) {
+        byte[] rejection = admission.admit(clientSocket.getInetAddress());
+        if (rejection == null) {
+            return true;
+        }
+        logger.fine("Refused connection from " + clientSocket.getInetAddress());
+        try {
+            clientSocket.setSoTimeout(1);
+            clientSocket.getOutputStream().write(rejection); // Fits in the empty send buffer
+            clientSocket.shutdownOutput();
+            // Closing right away could reset the connection, unread client hello in hand,
+            // and discard the rejection
+            timer.schedule(() -> closeQuietly(clientSocket), REJECTED_CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException | IllegalStateException e) {
+            closeQuietly(clientSocket);
         }
+        return false;
+    }
+
+    // Undoes admit() for a connection that failed before getting a handler
+    void release(Socket clientSocket) {
+        admission.release(clientSocket.getInetAddress());
+    }
 
-        usersClientMap.put(username, clientHandler);
-        connectedUsers.add(username);
+    // Undoes admit() and closes a connection that failed before getting a handler
+    void abandon(Socket clientSocket) {
+        release(clientSocket);
+        closeQuietly(clientSocket);
+    }
+
+    // Called by the engines once an admitted connection has its handler
+    void connectionOpened(ClientHandler client) {
+        client.setHandshakeDeadline(timer.schedule(() -> {
+            if (client.getUsername() == null && !client.isClosed()) {
+                handshakeTimeouts.incrementAndGet();
+                logger.info("Closing connection from " + client.getSocket().getRemoteSocketAddress()
+                        + ": no username registered within " + handshakeTimeoutMillis + " ms");
+                client.closeConnection();
+            }
+        }, handshakeTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
 
+    void connectionClosed(ClientHandler client) {
+        client.cancelHandshakeDeadline();
+        admission.release(client.getSocket().getInetAddress());
+    }
+
+    private static void closeQuietly(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.fine("Error closing refused connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers a client under the given username, or answers USERNAME_TAKEN.
+     * Checking and claiming the name is atomic.
+     *
+     * @return true if the username was accepted
+     */
+    public boolean registerUser(String username, ClientHandler clientHandler) {
+        // Store the username in its original case but check case-insensitively
+        if (!users.register(username, clientHandler)) {
+            clientHandler.send("USERNAME_TAKEN");
+            return false;
+        }
+        ClusterNode cluster = this.cluster;
+        if (cluster != null && !cluster.claim(username)) {
+            users.unregister(username, clientHandler); // Held by a user of another node
+            clientHandler.send("USERNAME_TAKEN");
+            return false;
+        }
+        // Queued first: presence updates and cluster state only go to clients with a username
         clientHandler.send("USERNAME_ACCEPTED");
-        logger.info("User " + username + " registered from " + clientHandler.getSocket().getRemoteSocketAddress());
+        clientHandler.setUsername(username);
+        clientHandler.cancelHandshakeDeadline();
 
-        broadcastUserList();
+        logger.info("User " + username + " registered from " + clientHandler.getSocket().getRemoteSocketAddress());
+        journal(EventJournal.Type.USER_JOINED, username, null, null, 0);
 
-        // Notify all OTHER clients about the new user (not the user themselves)
-        for (ClientHandler client : new ArrayList<>(usersClientMap.values())) {
-            if (client != clientHandler && client.getUsername() != null) {
-                client.send("CONNECT:" + username);
-            }
+        // The others are notified with the next presence update
+        presence.join(clientHandler);
+        if (cluster != null) {
+            cluster.announce(username, true);
         }
+        return true;
     }
 
     public void removeUser(String username, ClientHandler handler) {
         if (username == null)
             return; // Avoid null pointer exception
 
-        usersClientMap.remove(username);
-        connectedUsers.remove(username);
+        if (!users.unregister(username, handler)) {
+            return; // Not registered, or the name belongs to another client
+        }
 
         logger.info("User " + username + " removed.");
-        broadcast("DISCONNECT:" + username);
-        broadcastUserList();
+        journal(EventJournal.Type.USER_LEFT, username, null, null, 0);
+        presence.leave(username);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.release(username); // Its node closes the session of a remote peer
+        }
 
-        // Close private chat sessions
-        String sessionId = clientToSessionIdMap.remove(handler);
-        if (sessionId != null) {
-            PrivateChatSession session = activePrivateSessions.remove(sessionId);
-            if (session != null) {
-                ClientHandler peer = session.getOtherClient(handler);
-                if (peer != null) {
-                    clientToSessionIdMap.remove(peer);
-                    peer.send("PEER_DISCONNECTED:" + username);
-                    logger.info("Closed private session " + sessionId + " due to disconnect of " + username);
-                }
+        closeSession(handler, username);
+        leaveRoom(handler, false);
+        // Remove from pending private chats
+        Set<String> pendingSessionIds = pendingByClient.remove(handler);
+        if (pendingSessionIds != null) {
+            for (String pendingSessionId : pendingSessionIds) {
+                pendingPrivateChats.computeIfPresent(pendingSessionId,
+                        (id, pending) -> pending.client == handler ? pending.discard() : pending);
+                withdraw(pendingSessionId, username);
             }
         }
-        // Remove from pending private chats
-        pendingPrivateChats.values().remove(handler);
     }
 
-    public void broadcastUserList() {
-        // Build set of users in any active session
-        Set<String> busyUsers = new java.util.HashSet<>();
-        for (PrivateChatSession session : activePrivateSessions.values()) {
-            for (ClientHandler client : session.getClients()) {
-                if (client != null && client.getUsername() != null) {
-                    busyUsers.add(client.getUsername());
-                }
+    // Ends the private chat of a user who left, and frees the peer
+    private void closeSession(Peer handler, String username) {
+        String sessionId = clientToSessionIdMap.remove(handler);
+        if (sessionId == null) {
+            return;
+        }
+        PrivateChatSession session = activePrivateSessions.remove(sessionId);
+        if (session == null) {
+            return;
+        }
+        Peer peer = session.getOtherClient(handler);
+        journal(EventJournal.Type.SESSION_CLOSED, username, peer != null ? peer.getUsername() : null, sessionId, 0);
+        if (peer != null) {
+            clientToSessionIdMap.remove(peer);
+            if (peer instanceof ClientHandler local) { // A remote peer is told by its own node
+                local.send("PEER_DISCONNECTED:" + username);
+                setBusy(local, false);
             }
+            logger.info("Closed private session " + sessionId + " due to disconnect of " + username);
         }
-        Set<String> availableUsers = new java.util.HashSet<>(connectedUsers);
-        availableUsers.removeAll(busyUsers);
-        if (availableUsers.isEmpty()) {
-            broadcast("USERLIST:");
-        } else {
-            String userListStr = String.join(",", availableUsers);
-            broadcast("USERLIST:" + userListStr);
+    }
+
+    // Users of other nodes are announced by their own node
+    private void setBusy(ClientHandler client, boolean busy) {
+        presence.setBusy(client.getUsername(), busy);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.announce(client.getUsername(), !busy);
         }
-        logger.fine("Broadcasting user list (available only): " + String.join(",", availableUsers));
     }
 
-    // Get client handler by username
-    public ClientHandler getClientByUsername(String username) {
-        return usersClientMap.get(username);
+    // Presence snapshot for one client
+    public void sendUserList(ClientHandler client) {
+        presence.sendUserList(client);
+    }
+
+    // Same, unless the client's list is already at the current version
+    public void sendUserList(ClientHandler client, long clientVersion) {
+        presence.sendUserList(client, clientVersion);
+    }
+
+    public void resyncPresence(ClientHandler client, long clientVersion) {
+        presence.resync(client, clientVersion);
+    }
+
+    Collection<ClientHandler> getRegisteredClients() {
+        return users.clients();
+    }
+
+    // Get client handler by username, a stand-in if the user is on another node
+    public Peer getClientByUsername(String username) {
+        Peer client = users.get(username);
+        ClusterNode cluster = this.cluster;
+        if (client == null && cluster != null && username != null) {
+            client = cluster.locate(username);
+        }
+        return client;
     } // Check if username is already taken (case-insensitive)
 
     public boolean isUsernameTaken(String username) {
-        return connectedUsers.stream()
-                .anyMatch(existingUser -> existingUser.equalsIgnoreCase(username));
+        ClusterNode cluster = this.cluster;
+        return users.isTaken(username) || (cluster != null && cluster.isTaken(username));
+    }
+
+    boolean isInSession(ClientHandler client) {
+        return clientToSessionIdMap.containsKey(client);
     }
 
-    // Methods for private chat session handling
-    public synchronized void handlePrivateChatRequest(ClientHandler requester, String sessionId,
+    // Outcome of an attempt to join or wait for a private chat
+    private enum Pairing {
+        WAITING, STILL_WAITING, PAIRED, SESSION_ACTIVE, ALREADY_IN_SESSION, PEER_IN_SESSION,
+        NO_LONGER_WAITING // Paired here, expired or left while meeting a remote peer
+    }
+
+    /**
+     * Joins the client waiting for this session ID, or waits for a peer.
+     *
+     * Lock-free: each session ID is resolved in one atomic compute on
+     * pendingPrivateChats, and clients are claimed with putIfAbsent on
+     * clientToSessionIdMap, so requests for different sessions run in parallel.
+     * A client is in at most one session, and an active session ID cannot be
+     * joined by a third client. Replies are sent after the compute, and so are
+     * the operations on the cluster bus, which may cross processes (see
+     * {@link #meetRemotePeer}).
+     */
+    public void handlePrivateChatRequest(ClientHandler requester, String sessionId,
             String requesterUsername) {
         // Prevent user from joining multiple sessions
         if (clientToSessionIdMap.containsKey(requester)) {
@@ -181,46 +1053,257 @@ public class Connection {
             logger.warning("User " + requesterUsername + " tried to start a new private chat while already in one.");
             return;
         }
-        // Prevent session hijacking: sessionId must not be in use by another session
-        if (activePrivateSessions.containsKey(sessionId)) {
-            requester.send("ERROR:Session already active.");
-            logger.warning("Session ID " + sessionId + " already active. Rejecting request from " + requesterUsername);
+        if (clientRooms.containsKey(requester)) {
+            requester.send("ERROR:Leave the room first.");
             return;
         }
-        if (pendingPrivateChats.containsKey(sessionId)) {
-            ClientHandler peerHandler = pendingPrivateChats.remove(sessionId);
-            if (peerHandler == requester) {
-                // Same client sent the request again
-                pendingPrivateChats.put(sessionId, requester);
+
+        Pairing[] result = new Pairing[1];
+        Peer[] peer = new Peer[1];
+        pendingPrivateChats.compute(sessionId, (id, waiting) -> {
+            // Prevent session hijacking: sessionId must not be in use by another session
+            if (activePrivateSessions.containsKey(id)) {
+                result[0] = Pairing.SESSION_ACTIVE;
+                return waiting;
+            }
+            if (waiting == null) {
+                // Nobody waits here; in a cluster, someone may wait on another node
+                result[0] = Pairing.WAITING;
+                return new PendingRequest(requester, id);
+            }
+            if (waiting.client == requester) {
+                // Same client sent the request again: wait a full timeout again
+                waiting.restartTimeout();
+                result[0] = Pairing.STILL_WAITING;
+                return waiting;
+            }
+            peer[0] = waiting.client;
+            result[0] = pairing(openSession(id, requester, waiting.client));
+            // Unless the requester is the one unable to join, the waiting client is done
+            return result[0] == Pairing.PAIRED || result[0] == Pairing.PEER_IN_SESSION ? waiting.discard() : waiting;
+        });
+
+        if (result[0] == Pairing.PAIRED || result[0] == Pairing.PEER_IN_SESSION) {
+            withdraw(sessionId, peer[0]);
+        }
+        ClusterNode cluster = this.cluster;
+        if (result[0] == Pairing.WAITING && cluster != null) {
+            result[0] = meetRemotePeer(cluster, requester, sessionId, peer);
+        }
+        reply(result[0], requester, sessionId, requesterUsername, peer[0]);
+    }
+
+    /**
+     * Offers a client that waits here for a session ID to the other nodes, and
+     * pairs it with the member of another node waiting for it, if any. Runs
+     * outside any compute, as the rendezvous is a cluster-wide compare-and-set.
+     *
+     * The rendezvous takes the remote member off the bus. Should the client no
+     * longer be waiting, or the session not open, the member's node is sent
+     * SESSION_REFUSED and offers it again (see {@link #remoteSessionRefused}).
+     */
+    private Pairing meetRemotePeer(ClusterNode cluster, ClientHandler client, String sessionId, Peer[] peer) {
+        RemoteClient remote = cluster.rendezvous(sessionId, client.getUsername());
+        if (remote == null) {
+            PendingRequest pending = pendingPrivateChats.get(sessionId);
+            if (pending == null || pending.client != client) {
+                withdraw(sessionId, client); // Done meanwhile, before it was on the bus
+                return Pairing.NO_LONGER_WAITING;
+            }
+            return Pairing.WAITING;
+        }
+
+        peer[0] = remote;
+        Pairing[] result = new Pairing[1];
+        pendingPrivateChats.compute(sessionId, (id, pending) -> {
+            if (pending == null || pending.client != client) {
+                result[0] = Pairing.NO_LONGER_WAITING;
+                return pending;
+            }
+            result[0] = pairing(openSession(id, client, remote));
+            return pending.discard();
+        });
+        if (result[0] != Pairing.PAIRED) {
+            cluster.sendSession(ClusterMessage.Type.SESSION_REFUSED, client.getUsername(), remote, sessionId);
+        }
+        return result[0];
+    }
+
+    private void reply(Pairing result, ClientHandler requester, String sessionId, String requesterUsername,
+            Peer peerHandler) {
+        switch (result) {
+            case WAITING:
+                requester.send("WAITING_FOR_PEER:" + sessionId);
+                ChatSessionLogger.logInfo("User " + requesterUsername + " is waiting for a peer for session " + sessionId);
+                journal(EventJournal.Type.SESSION_WAITING, requesterUsername, null, sessionId, 0);
+                logger.info("User " + requesterUsername + " is waiting for a peer for session " + sessionId);
+                break;
+            case STILL_WAITING:
                 requester.send("WAITING_FOR_PEER");
                 logger.info("User " + requesterUsername + " re-initiated wait for session " + sessionId);
-                return;
-            }
-            // Double-check peer is not in a session
-            if (clientToSessionIdMap.containsKey(peerHandler)) {
+                break;
+            case SESSION_ACTIVE:
+                requester.send("ERROR:Session already active.");
+                logger.warning("Session ID " + sessionId + " already active. Rejecting request from " + requesterUsername);
+                break;
+            case ALREADY_IN_SESSION:
+                requester.send("ERROR:Already in a session or pending request.");
+                logger.warning("User " + requesterUsername + " tried to start a new private chat while already in one.");
+                break;
+            case PEER_IN_SESSION:
                 requester.send("ERROR:Peer is already in a session.");
                 logger.warning("Peer " + peerHandler.getUsername() + " already in a session. Rejecting join for " + requesterUsername);
-                return;
+                break;
+            case PAIRED:
+                ChatSessionLogger.logInfo("Private chat session " + sessionId + " created between " + requesterUsername + " and " + peerHandler.getUsername());
+                journal(EventJournal.Type.SESSION_OPENED, requesterUsername, peerHandler.getUsername(), sessionId, 0);
+                logger.info("Private session " + sessionId + " started between " + requesterUsername + " and " + peerHandler.getUsername());
+                sessionOpened(sessionId, requester, peerHandler);
+                break;
+            case NO_LONGER_WAITING:
+                logger.fine("User " + requesterUsername + " stopped waiting for session " + sessionId
+                        + " while meeting a peer on another node");
+                break;
+        }
+    }
+
+    // Takes a client that no longer waits for a session ID off the bus; never inside a compute
+    private void withdraw(String sessionId, Peer client) {
+        withdraw(sessionId, client.getUsername());
+    }
+
+    private void withdraw(String sessionId, String username) {
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.withdraw(sessionId, username);
+        }
+    }
+
+    private static Pairing pairing(SessionClaim claim) {
+        return switch (claim) {
+            case OPENED -> Pairing.PAIRED;
+            case SESSION_ACTIVE -> Pairing.SESSION_ACTIVE;
+            case FIRST_IN_SESSION -> Pairing.ALREADY_IN_SESSION;
+            case SECOND_IN_SESSION -> Pairing.PEER_IN_SESSION; // Joined another session meanwhile
+        };
+    }
+
+    /**
+     * Tells both clients of a newly opened session. A peer on another node must
+     * first be claimed by its node too: the local client hears of the session
+     * once the node confirms (see {@link #remoteSessionConfirmed}).
+     */
+    private void sessionOpened(String sessionId, ClientHandler local, Peer peer) {
+        if (peer instanceof RemoteClient remote) {
+            cluster.sendSession(ClusterMessage.Type.SESSION_OPENED, local.getUsername(), remote, sessionId);
+            return;
+        }
+        ClientHandler other = (ClientHandler) peer;
+        local.send("PEER_CONNECTED:" + other.getUsername() + ":" + sessionId);
+        other.send("PEER_CONNECTED:" + local.getUsername() + ":" + sessionId);
+        setBusy(local, true);
+        setBusy(other, true);
+    }
+
+    /**
+     * A client waiting for a peer to join its session ID. Created, restarted and
+     * discarded only inside a compute on pendingPrivateChats for its session ID.
+     */
+    private final class PendingRequest {
+        final ClientHandler client;
+        final String sessionId;
+        private HashedWheelTimer.Timeout timeout;
+        private int generation; // Tells a stale timeout from the current one
+
+        PendingRequest(ClientHandler client, String sessionId) {
+            this.client = client;
+            this.sessionId = sessionId;
+            pendingByClient.compute(client, (c, sessionIds) -> {
+                Set<String> ids = sessionIds != null ? sessionIds : new HashSet<>();
+                ids.add(sessionId);
+                return ids;
+            });
+            startTimeout();
+        }
+
+        void restartTimeout() {
+            timeout.cancel();
+            generation++;
+            startTimeout();
+        }
+
+        /**
+         * Stops the timeout and drops the reverse index entry; returns null to
+         * remove the request. In a cluster, the caller also withdraws the client
+         * from the bus, once out of the compute.
+         */
+        PendingRequest discard() {
+            timeout.cancel();
+            pendingByClient.computeIfPresent(client, (c, ids) -> {
+                ids.remove(sessionId);
+                return ids.isEmpty() ? null : ids;
+            });
+            return null;
+        }
+
+        private void startTimeout() {
+            int current = generation;
+            timeout = timer.schedule(() -> expire(current), pendingRequestTimeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        // Runs on the timer thread
+        private void expire(int expiredGeneration) {
+            boolean[] expired = new boolean[1];
+            pendingPrivateChats.computeIfPresent(sessionId, (id, pending) -> {
+                if (pending != this || generation != expiredGeneration) {
+                    return pending;
+                }
+                expired[0] = true;
+                return discard();
+            });
+            if (expired[0]) {
+                withdraw(sessionId, client);
+                expiredPendingRequests.incrementAndGet();
+                // On the shared timer thread: a stalled client must not hold up every other deadline
+                client.sendWithoutBlocking("PEER_WAIT_EXPIRED:" + sessionId);
+                logger.info("Private chat request of " + client.getUsername() + " for session " + sessionId
+                        + " expired, no peer joined");
             }
-            PrivateChatSession newSession = new PrivateChatSession(requester, peerHandler, sessionId);
-            activePrivateSessions.put(sessionId, newSession);
-            clientToSessionIdMap.put(requester, sessionId);
-            clientToSessionIdMap.put(peerHandler, sessionId);
-            ChatSessionLogger.logInfo("Private chat session " + sessionId + " created between " + requesterUsername + " and " + peerHandler.getUsername());
-            requester.send("PEER_CONNECTED:" + peerHandler.getUsername() + ":" + sessionId);
-            peerHandler.send("PEER_CONNECTED:" + requesterUsername + ":" + sessionId);
-            logger.info("Private session " + sessionId + " started between " + requesterUsername + " and " + peerHandler.getUsername());
-            broadcastUserList(); // Auto-refresh user list for all clients
-        } else {
-            pendingPrivateChats.put(sessionId, requester);
-            requester.send("WAITING_FOR_PEER:" + sessionId);
-            ChatSessionLogger.logInfo("User " + requesterUsername + " is waiting for a peer for session " + sessionId);
-            logger.info("User " + requesterUsername + " is waiting for a peer for session " + sessionId);
-            broadcastUserList();
         }
     }
 
-    public void forwardPrivateMessage(ClientHandler sender, ChatMessage message) {
+    private enum SessionClaim {
+        OPENED, SESSION_ACTIVE, FIRST_IN_SESSION, SECOND_IN_SESSION
+    }
+
+    /**
+     * Registers a session and claims both clients for it, or undoes everything.
+     * The session is registered before the claims, so a client found in
+     * clientToSessionIdMap always has its session in activePrivateSessions.
+     */
+    private SessionClaim openSession(String sessionId, Peer first, Peer second) {
+        PrivateChatSession session = new PrivateChatSession(first, second, sessionId);
+        if (activePrivateSessions.putIfAbsent(sessionId, session) != null) {
+            return SessionClaim.SESSION_ACTIVE;
+        }
+        if (clientToSessionIdMap.putIfAbsent(first, sessionId) != null) {
+            activePrivateSessions.remove(sessionId, session);
+            return SessionClaim.FIRST_IN_SESSION;
+        }
+        if (clientToSessionIdMap.putIfAbsent(second, sessionId) != null) {
+            clientToSessionIdMap.remove(first, sessionId);
+            activePrivateSessions.remove(sessionId, session);
+            return SessionClaim.SECOND_IN_SESSION;
+        }
+        return SessionClaim.OPENED;
+    }
+
+    /**
+     * Relays an encrypted chat message to the sender's peer. The message is passed
+     * on in the form it was received; the ciphertext is never decoded here.
+     */
+    public void forwardPrivateMessage(ClientHandler sender, ChatFrame message) {
         String senderUsername = sender.getUsername();
         if (senderUsername == null && sender.getSocket() != null) {
             senderUsername = "[NoUsername:" + sender.getSocket().getRemoteSocketAddress() + "]";
@@ -228,31 +1311,41 @@ public class Connection {
             senderUsername = "[NoUsername:SocketInfoUnavailable]";
         }
         String sessionId = clientToSessionIdMap.get(sender);
+        ChatRoom room = sessionId == null ? clientRooms.get(sender) : null;
+        if (room != null) {
+            int sent = room.fanOut(sender, message);
+            relayedMessages.add(sent);
+            journal(EventJournal.Type.ROOM_MESSAGE, senderUsername, null, room.getName(), sent);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Forwarded room message from " + senderUsername + " to " + sent + " members of room "
+                        + room.getName());
+            }
+            return;
+        }
         if (sessionId == null) {
             // Check if this is a manual key exchange user who doesn't need a traditional
             // session
             // For manual key exchange, broadcast the message to all other connected users
-            if (usersClientMap.containsValue(sender)) {
-                logger.info("Broadcasting message from manual key exchange user: " + senderUsername + " to "
-                        + (usersClientMap.size() - 1) + " other users");
-                ChatSessionLogger.logInfo(
-                        "Manual key exchange message from " + senderUsername + ": " + message.getEncryptedContent());
-
+            if (users.contains(sender)) {
                 // Broadcast the message to all other connected users (excluding the sender)
                 int messagesSent = 0;
-                for (ClientHandler client : new ArrayList<>(usersClientMap.values())) {
+                EncodedMessage encoded = EncodedMessage.of(message);
+                for (ClientHandler client : new ArrayList<>(users.clients())) {
                     if (client != sender && client.getUsername() != null) {
-                        client.send(message);
+                        client.send(encoded);
                         messagesSent++;
-                        logger.info("Forwarded manual key exchange message from " + senderUsername + " to "
-                                + client.getUsername());
                     }
                 }
-                logger.info("Total messages sent: " + messagesSent);
+                relayedMessages.add(messagesSent);
+                journal(EventJournal.Type.BROADCAST_MESSAGE, senderUsername, null, null, messagesSent);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Broadcast message from manual key exchange user " + senderUsername + " ("
+                            + message.length() + " bytes) to " + messagesSent + " other users");
+                }
                 return;
             }
 
-            logger.warning("User " + senderUsername + " not found in usersClientMap, denying message");
+            logger.warning("User " + senderUsername + " not registered, denying message");
             sender.send("ERROR:You are not in an active private chat session.");
             ChatSessionLogger
                     .logWarning(
@@ -271,31 +1364,123 @@ public class Connection {
             return;
         }
 
-        ClientHandler recipient = session.getOtherClient(sender);
+        Peer recipient = session.getOtherClient(sender);
         if (recipient != null) {
             // IMPORTANTE!!!!!
             // Assicurati che ChatMessage contenga il sessionId se il client deve conoscerlo
             // o che il client possa dedurlo dal contesto.
             // Per ora, il server inoltra semplicemente il messaggio.
             recipient.send(message);
-            ChatSessionLogger
-                    .logInfo("Forwarded private message from " + senderUsername + " to " + recipient.getUsername()
-                            + " in session " + sessionId);
-            logger.fine("Forwarded private message from " + sender.getUsername() + " to " + recipient.getUsername()
-                    + " in session " + sessionId);
+            relayedMessages.increment();
+            journal(EventJournal.Type.MESSAGE_FORWARDED, senderUsername, recipient.getUsername(), sessionId,
+                    message.length());
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Forwarded private message from " + sender.getUsername() + " to "
+                        + recipient.getUsername() + " in session " + sessionId);
+            }
         } else {
             sender.send("ERROR:Peer not found in your session.");
             logger.warning("Peer not found for " + sender.getUsername() + " in session " + sessionId);
         }
     }
 
+    // Outcome of an attempt to join a room
+    private enum RoomJoin {
+        JOINED, ALREADY_MEMBER, FULL
+    }
+
+    /**
+     * Adds the client to a room, created on first use, after taking it out of
+     * the room it was in. Only the room's members hear about it, the client's
+     * presence does not change.
+     */
+    public void joinRoom(ClientHandler client, String name) {
+        if (!Room.isValidName(name)) {
+            client.send("ERROR:Invalid room name.");
+            return;
+        }
+        Set<String> pending = pendingByClient.get(client);
+        if (clientToSessionIdMap.containsKey(client) || (pending != null && !pending.isEmpty())) {
+            client.send("ERROR:Already in a session or pending request.");
+            return;
+        }
+        ChatRoom current = clientRooms.get(client);
+        if (current != null && !current.getName().equals(name)) {
+            leaveRoom(client, true);
+        }
+
+        RoomJoin[] result = new RoomJoin[1];
+        ChatRoom room = rooms.compute(name, (n, existing) -> {
+            ChatRoom joined = existing != null ? existing : new ChatRoom(n);
+            if (joined.contains(client)) {
+                result[0] = RoomJoin.ALREADY_MEMBER;
+            } else if (joined.size() >= maxRoomMembers) {
+                result[0] = RoomJoin.FULL;
+                return existing;
+            } else {
+                joined.add(client);
+                result[0] = RoomJoin.JOINED;
+            }
+            return joined;
+        });
+
+        switch (result[0]) {
+            case FULL:
+                client.send("ERROR:Room is full.");
+                return;
+            case ALREADY_MEMBER:
+                client.send(Room.joined(name, room.memberNames()));
+                return;
+            default:
+                clientRooms.put(client, room);
+                if (!users.contains(client)) {
+                    leaveRoom(client, false); // Disconnected meanwhile
+                    return;
+                }
+                client.send(Room.joined(name, room.memberNames()));
+                room.fanOut(client, Room.memberJoined(name, client.getUsername()));
+                journal(EventJournal.Type.ROOM_JOINED, client.getUsername(), null, name, room.size());
+                logger.info("User " + client.getUsername() + " joined room " + name + " (" + room.size() + " members)");
+        }
+    }
+
+    /**
+     * Takes the client out of its room, which is dropped once empty.
+     *
+     * @param answer whether to answer the client; not when it is leaving the
+     *               server
+     */
+    public void leaveRoom(ClientHandler client, boolean answer) {
+        ChatRoom room = clientRooms.remove(client);
+        if (room == null) {
+            if (answer) {
+                client.send("ERROR:Not in a room.");
+            }
+            return;
+        }
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room.getName(), (name, existing) -> {
+            removed[0] = existing.remove(client);
+            return existing.isEmpty() ? null : existing;
+        });
+        if (removed[0]) {
+            room.fanOut(client, Room.memberLeft(room.getName(), client.getUsername()));
+            journal(EventJournal.Type.ROOM_LEFT, client.getUsername(), null, room.getName(), room.size());
+            logger.info("User " + client.getUsername() + " left room " + room.getName());
+        }
+        if (answer) {
+            client.send(Room.left(room.getName()));
+        }
+    }
+
     public void handleKeyExchange(ClientHandler sender, KeyExchangeMessage message) {
+        keyExchanges.get(message.getType()).increment();
         String senderUsername = sender.getUsername();
         String targetUsername = message.getTargetUsername();
 
         logger.info("Handling key exchange: " + message);
 
-        ClientHandler targetClient = usersClientMap.get(targetUsername);
+        Peer targetClient = getClientByUsername(targetUsername);
         if (targetClient == null) {
             KeyExchangeMessage errorMsg = new KeyExchangeMessage(
                     KeyExchangeMessage.Type.EXCHANGE_ERROR,
@@ -329,15 +1514,10 @@ public class Connection {
             case EXCHANGE_COMPLETE:
                 // Both users confirm - create private chat session if not exists
                 String sessionId = message.getSessionId();
-                if (!activePrivateSessions.containsKey(sessionId)) {
-                    PrivateChatSession session = new PrivateChatSession(sender, targetClient, sessionId);
-                    activePrivateSessions.put(sessionId, session);
-                    clientToSessionIdMap.put(sender, sessionId);
-                    clientToSessionIdMap.put(targetClient, sessionId);
-
+                if (!activePrivateSessions.containsKey(sessionId)
+                        && openSession(sessionId, sender, targetClient) == SessionClaim.OPENED) {
                     // Notify both clients that session is ready
-                    sender.send("PEER_CONNECTED:" + targetUsername + ":" + sessionId);
-                    targetClient.send("PEER_CONNECTED:" + senderUsername + ":" + sessionId);
+                    sessionOpened(sessionId, sender, targetClient);
 
                     logger.info("Key exchange completed and chat session created for " + sessionId);
                 }
@@ -349,4 +1529,94 @@ public class Connection {
                 break;
         }
     }
+
+    // Cluster events, called on the bus thread of this node
+
+    // A user of another node registered, changed availability, or left (null)
+    void remoteUserState(String username, Boolean available) {
+        presence.updateRemote(username, available);
+    }
+
+    // Message for a local user relayed by another node
+    void deliver(String username, Object message) {
+        ClientHandler client = users.get(username);
+        if (client != null) {
+            client.send(message);
+        } else {
+            logger.fine("Dropped relayed message for " + username + ", no longer connected");
+        }
+    }
+
+    // Ends the session a user of another node had here, as when a local user leaves
+    void remoteUserLeft(RemoteClient client) {
+        closeSession(client, client.getUsername());
+    }
+
+    // The peer's node paired it with a local user, who is claimed here too or refused
+    void remoteSessionOpened(RemoteClient peer, String username, String sessionId) {
+        ClientHandler local = users.get(username);
+        if (local == null) {
+            cluster.sendSession(ClusterMessage.Type.SESSION_REFUSED, username, peer, sessionId);
+            return;
+        }
+        PrivateChatSession existing = activePrivateSessions.get(sessionId);
+        if (existing != null && existing.getOtherClient(local) == peer) {
+            // Both nodes opened it at once, each confirms to the other
+            cluster.sendSession(ClusterMessage.Type.SESSION_CONFIRMED, username, peer, sessionId);
+            return;
+        }
+        // The local user may have been waiting for this session on its own
+        pendingPrivateChats.computeIfPresent(sessionId,
+                (id, pending) -> pending.client == local ? pending.discard() : pending);
+        withdraw(sessionId, local);
+        if (openSession(sessionId, local, peer) != SessionClaim.OPENED) {
+            cluster.sendSession(ClusterMessage.Type.SESSION_REFUSED, username, peer, sessionId);
+            logger.info("Refused session " + sessionId + " from " + peer.getUsername() + " on node "
+                    + peer.getNode() + ", " + username + " is busy");
+            return;
+        }
+        local.send("PEER_CONNECTED:" + peer.getUsername() + ":" + sessionId);
+        setBusy(local, true);
+        cluster.sendSession(ClusterMessage.Type.SESSION_CONFIRMED, username, peer, sessionId);
+        logger.info("Private session " + sessionId + " started between " + username + " and " + peer.getUsername()
+                + " on node " + peer.getNode());
+    }
+
+    void remoteSessionConfirmed(RemoteClient peer, String username, String sessionId) {
+        ClientHandler local = users.get(username);
+        PrivateChatSession session = activePrivateSessions.get(sessionId);
+        if (local == null || session == null || session.getOtherClient(local) != peer) {
+            return; // Ended meanwhile
+        }
+        local.send("PEER_CONNECTED:" + peer.getUsername() + ":" + sessionId);
+        setBusy(local, true);
+    }
+
+    /**
+     * The peer's node refused a session with a local user: either the session
+     * this node opened, or the meeting of a local user waiting on the bus,
+     * which the rendezvous took off it. A user still waiting is offered again.
+     */
+    void remoteSessionRefused(RemoteClient peer, String username, String sessionId) {
+        ClientHandler local = users.get(username);
+        if (local == null) {
+            return;
+        }
+        PrivateChatSession session = activePrivateSessions.get(sessionId);
+        if (session == null || session.getOtherClient(local) != peer) {
+            PendingRequest pending = pendingPrivateChats.get(sessionId);
+            if (pending != null && pending.client == local) {
+                Peer[] other = new Peer[1];
+                Pairing result = meetRemotePeer(cluster, local, sessionId, other);
+                if (result != Pairing.WAITING) { // It was told it waits already
+                    reply(result, local, sessionId, username, other[0]);
+                }
+            }
+            return;
+        }
+        clientToSessionIdMap.remove(local, sessionId);
+        clientToSessionIdMap.remove(peer, sessionId);
+        activePrivateSessions.remove(sessionId, session);
+        local.send("ERROR:Peer is already in a session.");
+    }
 }
@@ -0,0 +1,74 @@
+package org.incognito;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Finds dead connections, such as half-open ones whose peer vanished without
+ * closing the socket.
+ *
+ * Every heartbeat interval, each registered client that has been silent for an
+ * interval is pinged. A client silent past the idle timeout, pings included, is
+ * disconnected. Clients predating heartbeats cannot answer pings, so they are
+ * left to TCP keepalive.
+ */
+class IdleReaper {
+    private static Logger logger = Logger.getLogger(IdleReaper.class.getName());
+
+    private final Connection server;
+    private final long intervalNanos;
+    private final long idleTimeoutNanos;
+    private final AtomicLong reaped = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+
+    IdleReaper(Connection server, long intervalMillis, long idleTimeoutMillis) {
+        this.server = server;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    long getReapedCount() {
+        return reaped.get();
+    }
+
+    void check() {
+        long now = System.nanoTime();
+        for (ClientHandler client : new ArrayList<>(server.getRegisteredClients())) {
+            if (!client.supportsHeartbeat()) {
+                continue;
+            }
+            try {
+                long idle = client.getIdleNanos(now);
+                if (idle >= idleTimeoutNanos) {
+                    logger.info("Closing connection of " + client.getUsername() + ", silent for "
+                            + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+                    reaped.incrementAndGet(); // Counted before the user disappears from the registry
+                    client.closeConnection();
+                } else if (idle >= intervalNanos) {
+                    client.sendPing();
+                }
+            } catch (Exception e) {
+                ErrorHandler.handleServerError("Error checking connection of " + client.getUsername(), e, false);
+            }
+        }
+    }
+}
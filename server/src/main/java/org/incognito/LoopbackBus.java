@@ -0,0 +1,113 @@
+package org.incognito;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * {@link ClusterBus} for nodes running in the same process, used to run and test
+ * a cluster on one machine. Each node receives its messages on its own thread,
+ * in the order they were sent; shared state lives in concurrent maps.
+ */
+public class LoopbackBus implements ClusterBus {
+    private static Logger logger = Logger.getLogger(LoopbackBus.class.getName());
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    private final Map<String, Member> waiting = new ConcurrentHashMap<>();
+
+    private record Node(Listener listener, ExecutorService inbox) {
+    }
+
+    @Override
+    public void join(String node, Listener listener) {
+        ExecutorService inbox = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-inbox-" + node);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (nodes.putIfAbsent(node, new Node(listener, inbox)) != null) {
+            inbox.shutdown();
+            throw new IllegalStateException("Node " + node + " already joined the cluster");
+        }
+        logger.info("Node " + node + " joined the cluster");
+    }
+
+    @Override
+    public void leave(String node) {
+        Node removed = nodes.remove(node);
+        if (removed == null) {
+            return;
+        }
+        directory.values().removeIf(node::equals);
+        waiting.values().removeIf(member -> member.node().equals(node));
+        removed.inbox().shutdown();
+        publish(new ClusterMessage(ClusterMessage.Type.NODE_LEFT, node, null, null, null, null));
+        logger.info("Node " + node + " left the cluster");
+    }
+
+    @Override
+    public void send(String node, ClusterMessage message) {
+        Node target = nodes.get(node);
+        if (target == null) {
+            logger.fine("Dropped " + message.type() + " for unknown node " + node);
+            return;
+        }
+        try {
+            target.inbox().execute(() -> {
+                try {
+                    target.listener().onMessage(message);
+                } catch (Exception e) {
+                    ErrorHandler.handleServerError("Error handling " + message.type() + " on node " + node, e, false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.fine("Dropped " + message.type() + " for stopped node " + node);
+        }
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        for (String node : nodes.keySet()) {
+            if (!node.equals(message.origin())) {
+                send(node, message);
+            }
+        }
+    }
+
+    @Override
+    public boolean claimUser(String key, String node) {
+        return directory.putIfAbsent(key, node) == null;
+    }
+
+    @Override
+    public void releaseUser(String key, String node) {
+        directory.remove(key, node);
+    }
+
+    @Override
+    public String locateUser(String key) {
+        return directory.get(key);
+    }
+
+    @Override
+    public Member rendezvous(String sessionId, Member member) {
+        Member[] found = new Member[1];
+        waiting.compute(sessionId, (id, waiter) -> {
+            if (waiter == null || waiter.equals(member)) {
+                return member;
+            }
+            found[0] = waiter;
+            return null;
+        });
+        return found[0];
+    }
+
+    @Override
+    public void withdraw(String sessionId, Member member) {
+        waiting.remove(sessionId, member);
+    }
+}
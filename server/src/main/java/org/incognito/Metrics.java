@@ -0,0 +1,207 @@
+package org.incognito;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Named counters and gauges of one server, readable through JMX, where each
+ * metric is a read-only attribute, and as text through {@link AdminEndpoint}.
+ *
+ * Counters are {@link LongAdder}s: each thread adds to its own cell without a
+ * lock, and the cells are only summed when the counter is read, so counting on
+ * the relay path costs about as much as incrementing a field. Gauges and the
+ * counters the server already keeps are read from their source when asked.
+ */
+public final class Metrics implements DynamicMBean {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private record Metric(String description, LongSupplier value) {
+    }
+
+    private final NavigableMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    private volatile ObjectName objectName;
+
+    /** Registers a new counter, summed from its cells when read. */
+    public LongAdder counter(String name, String description) {
+        LongAdder counter = new LongAdder();
+        register(name, description, counter::sum);
+        return counter;
+    }
+
+    /** Registers a value computed when read: a gauge, or a counter kept elsewhere. */
+    public void gauge(String name, String description, LongSupplier value) {
+        register(name, description, value);
+    }
+
+    private void register(String name, String description, LongSupplier value) {
+        if (metrics.putIfAbsent(name, new Metric(description, value)) != null) {
+            throw new IllegalArgumentException("Metric " + name + " already registered");
+        }
+    }
+
+    public long get(String name) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            throw new IllegalArgumentException("No metric " + name);
+        }
+        return metric.value().getAsLong();
+    }
+
+    // Every metric, by name
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Metric> metric : metrics.entrySet()) {
+            snapshot.put(metric.getKey(), metric.getValue().value().getAsLong());
+        }
+        return snapshot;
+    }
+
+    // One "name value" line per metric
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> metric : snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Makes the metrics readable through the platform MBean server, for
+     * jconsole and other JMX clients. A failure is logged, the server runs on.
+     */
+    public void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            logger.warning("Cannot register metrics as " + name + ": " + e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        ObjectName objectName = this.objectName;
+        if (objectName == null) {
+            return;
+        }
+        this.objectName = null;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.fine("Metrics " + objectName + " already unregistered");
+        }
+    }
+
+    // Counts the bytes read from a stream
+    static InputStream countingInput(InputStream in, LongAdder bytes) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    bytes.increment();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = in.read(buffer, offset, length);
+                if (read > 0) {
+                    bytes.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    // Counts the bytes written to a stream
+    static OutputStream countingOutput(OutputStream out, LongAdder bytes) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length); // Not byte by byte as FilterOutputStream does
+                bytes.add(length);
+            }
+        };
+    }
+
+    // DynamicMBean: every metric is a read-only long attribute
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Metric metric = metrics.get(attribute);
+        if (metric == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return metric.value().getAsLong();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Metric metric = metrics.get(attribute);
+            if (metric != null) {
+                list.add(new Attribute(attribute, metric.value().getAsLong()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // None set
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "No operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Metric> metric : metrics.entrySet()) {
+            attributes.add(new MBeanAttributeInfo(metric.getKey(), "long", metric.getValue().description(), true,
+                    false, false));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Incognito server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,340 @@
+package org.incognito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Client connection served by a {@link NioEngine} event loop.
+ *
+ * Reads are non-blocking: bytes accumulate until a complete message is
+ * available, which is then decoded and dispatched through
+ * {@link ClientHandler#handleObject(Object)} exactly like the threaded engine.
+ * Binary clients send length-prefixed {@link WireCodec} frames; for Java
+ * serialization clients the {@link SerializationFrameScanner} finds object
+ * boundaries and the connection's ObjectInputStream decodes them. Sends may come
+ * from any thread; messages wait in the client's outbound queue until the owning
+ * event loop encodes and writes them.
+ */
+public class NioClientHandler extends ClientHandler {
+    private static Logger logger = Logger.getLogger(NioClientHandler.class.getName());
+
+    // Largest frame or object accepted from a client
+    private static final int MAX_READ_BUFFER_SIZE = 4 + WireCodec.MAX_FRAME_LENGTH;
+
+    // Decided by the first bytes the client sends
+    private enum Protocol {
+        UNKNOWN, SERIALIZED, BINARY
+    }
+
+    private final SocketChannel channel;
+    private final NioEngine.EventLoop eventLoop;
+    private SelectionKey key;
+
+    private volatile Protocol protocol = Protocol.UNKNOWN;
+
+    // Inbound state, only touched by the event loop
+    private ByteBuffer readBuffer;
+    private final SerializationFrameScanner scanner = new SerializationFrameScanner();
+    private final FrameInputStream frameInput = new FrameInputStream();
+    private ObjectInputStream inputStream;
+
+    // Outbound state, only touched by the event loop except for flushScheduled
+    private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream();
+    private final ObjectOutputStream outputStream;
+    private volatile ByteBuffer pendingWrite; // Partially written message
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    NioClientHandler(Connection server, SocketChannel channel, NioEngine.EventLoop eventLoop) throws IOException {
+        super(server, channel.socket());
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.readBuffer = ByteBuffer.allocate(Math.min(server.getSocketTuning().readBufferSize(), MAX_READ_BUFFER_SIZE));
+
+        // The stream header goes out first, clients block on it when opening their input stream
+        outputStream = new ObjectOutputStream(encodeBuffer);
+        outputStream.flush();
+        send(ByteBuffer.wrap(encodeBuffer.toByteArray()));
+        encodeBuffer.reset();
+    }
+
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        flush();
+    }
+
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                logger.info("Client " + describe() + " disconnected (EOF).");
+                closeConnection();
+                return;
+            }
+            getServer().getBytesIn().add(read);
+
+            readBuffer.flip();
+            try {
+                processObjects();
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_READ_BUFFER_SIZE) {
+                    throw new StreamCorruptedException("Object larger than " + MAX_READ_BUFFER_SIZE + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER_SIZE));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        } catch (EOFException e) {
+            logger.info("Client " + describe() + " disconnected (EOF).");
+            closeConnection();
+        } catch (IOException e) {
+            logger.info("Client " + describe() + " connection issue: " + e.getMessage());
+            closeConnection();
+        } catch (ClassNotFoundException e) {
+            ErrorHandler.handleServerError("ClassNotFoundException from client " + describe(), e, false);
+            closeConnection();
+        } catch (Throwable e) { // Catch-all: only this client's connection may fail, never its event loop
+            ErrorHandler.handleServerError("Unexpected error in NioClientHandler for " + describe(), e, false);
+            closeConnection();
+        }
+    }
+
+    private void processObjects() throws IOException, ClassNotFoundException {
+        while (!isClosed()) {
+            Object obj;
+            if (protocol == Protocol.UNKNOWN) {
+                if (!readHandshake()) {
+                    return;
+                }
+                continue;
+            } else if (protocol == Protocol.BINARY) {
+                if (readBuffer.remaining() < 4) {
+                    return;
+                }
+                int length = WireCodec.checkFrameLength(readBuffer.getInt(readBuffer.position()));
+                if (readBuffer.remaining() < 4 + length) {
+                    return; // Wait for the rest of the frame
+                }
+                ByteBuffer frame = readBuffer.slice(readBuffer.position() + 4, length);
+                if (frame.get(0) == WireCodec.TYPE_CHAT) {
+                    // Relayed as received: keep a copy of the bytes, the read buffer is reused
+                    WireCodec.checkChatFrame(frame);
+                    byte[] bytes = new byte[4 + length];
+                    readBuffer.get(bytes);
+                    obj = ChatFrame.wrap(bytes);
+                } else {
+                    readBuffer.position(readBuffer.position() + 4 + length);
+                    obj = WireCodec.decode(frame);
+                }
+            } else {
+                int length = scanner.scan(readBuffer);
+                if (length < 0) {
+                    return; // Wait for the rest of the object, the scan resumes where it stopped
+                }
+                frameInput.reset(readBuffer, length);
+                obj = inputStream.readObject();
+                if (frameInput.available() != 0) {
+                    throw new StreamCorruptedException("Object boundary mismatch (" + frameInput.available()
+                            + " bytes left)");
+                }
+            }
+            if (!handleObject(obj)) {
+                closeConnection();
+                return;
+            }
+        }
+    }
+
+    // Tells a binary client hello from a serialization stream header
+    private boolean readHandshake() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            return false;
+        }
+        if (readBuffer.get(readBuffer.position()) == WireCodec.MAGIC[0]) {
+            if (readBuffer.remaining() < WireCodec.CLIENT_HELLO_LENGTH) {
+                return false;
+            }
+            byte[] hello = new byte[WireCodec.CLIENT_HELLO_LENGTH];
+            readBuffer.get(hello);
+            setProtocolVersion(WireCodec.negotiate(hello));
+            send(ByteBuffer.wrap(WireCodec.encodeHello(getProtocolVersion())));
+            protocol = Protocol.BINARY;
+            logger.fine("Client " + describe() + " speaks binary protocol v" + getProtocolVersion());
+            return true;
+        }
+
+        if (!getServer().isLegacyClientsAllowed()) {
+            send("ERROR:This server requires a newer client.");
+            logger.info("Rejected Java serialization client " + describe());
+            closeConnection();
+            return false;
+        }
+        if (readBuffer.remaining() < 4) { // STREAM_MAGIC + STREAM_VERSION
+            return false;
+        }
+        frameInput.reset(readBuffer, 4);
+        inputStream = new ObjectInputStream(frameInput);
+        protocol = Protocol.SERIALIZED;
+        return true;
+    }
+
+    @Override
+    boolean hasPendingOutput() {
+        return super.hasPendingOutput() || (!isClosed() && pendingWrite != null);
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    // With the NIO engine senders are event loops, which must not wait
+    @Override
+    protected boolean mayBlockSender() {
+        return !NioEngine.isEventLoopThread();
+    }
+
+    @Override
+    protected void scheduleDrain() {
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (eventLoop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    // Writes as much as the socket accepts, then waits for OP_WRITE for the rest
+    private void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (pendingWrite == null) {
+                    Object message = getOutbound().poll();
+                    if (message == null) {
+                        break;
+                    }
+                    pendingWrite = encode(message);
+                    if (pendingWrite == null) {
+                        continue;
+                    }
+                }
+                getServer().getBytesOut().add(channel.write(pendingWrite));
+                if (pendingWrite.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrite = null;
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            logger.info("Error writing to client " + describe() + ": " + e.getMessage());
+            closeConnection();
+        }
+    }
+
+    // Returns null if the message cannot be encoded, it is then skipped
+    private ByteBuffer encode(Object message) {
+        if (message instanceof ByteBuffer bytes) {
+            return bytes; // Already encoded: stream header, handshake
+        }
+        if (message instanceof EncodedMessage encoded) {
+            // Shared by every recipient, only the view is this client's
+            return protocol == Protocol.BINARY
+                    ? encoded.frameBuffer()
+                    : ByteBuffer.wrap(encoded.getSerialized()).asReadOnlyBuffer();
+        }
+        if (protocol == Protocol.BINARY) {
+            return ByteBuffer.wrap(WireCodec.encode(message));
+        }
+        try {
+            if (message instanceof ChatFrame chatFrame) {
+                message = chatFrame.getMessage();
+            }
+            outputStream.writeObject(message);
+            // Drop the handle table so the stream does not keep every object ever sent
+            outputStream.reset();
+            outputStream.flush();
+            ByteBuffer bytes = ByteBuffer.wrap(encodeBuffer.toByteArray());
+            encodeBuffer.reset();
+            return bytes;
+        } catch (IOException e) {
+            encodeBuffer.reset();
+            ErrorHandler.handleServerError(
+                    "Error encoding message for client " + (getUsername() != null ? getUsername() : "unknown"), e,
+                    false);
+            return null;
+        }
+    }
+
+    private String describe() {
+        if (getUsername() != null) {
+            return getUsername();
+        }
+        return String.valueOf(getSocket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Exposes exactly one scanned object of the read buffer to the
+     * ObjectInputStream, so the stream never blocks nor reads ahead.
+     */
+    private static final class FrameInputStream extends InputStream {
+        private ByteBuffer buffer;
+        private int remaining;
+
+        void reset(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = Math.min(len, remaining);
+            buffer.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+    }
+}
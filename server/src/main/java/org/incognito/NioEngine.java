@@ -0,0 +1,244 @@
+package org.incognito;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Server engine built on {@link Selector}: a fixed number of event-loop threads
+ * serve every client, instead of one parked pool thread per connection.
+ *
+ * The thread calling {@link #run()} accepts connections and hands them out to the
+ * event loops round-robin; with several listeners (acceptor shards) the others
+ * get their own accept threads. Each loop owns the channels registered with it and does
+ * all their reads, decoding and dispatch to {@link Connection}; sends coming from
+ * other threads are queued on the target's loop (see {@link NioClientHandler}).
+ */
+public class NioEngine {
+    private static Logger logger = Logger.getLogger(NioEngine.class.getName());
+
+    // Set on event loop threads
+    private static final ThreadLocal<EventLoop> CURRENT_LOOP = new ThreadLocal<>();
+
+    private final Connection server;
+    private final List<ServerSocketChannel> serverChannels;
+    private final EventLoop[] eventLoops;
+
+    /**
+     * @param eventLoopCount number of selector threads, or 0 for one per available
+     *                       processor
+     */
+    public NioEngine(Connection server, List<ServerSocketChannel> serverChannels, int eventLoopCount)
+            throws IOException {
+        this.server = server;
+        this.serverChannels = serverChannels;
+        if (eventLoopCount <= 0) {
+            eventLoopCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("nio-event-loop-" + i);
+        }
+    }
+
+    static boolean isEventLoopThread() {
+        return CURRENT_LOOP.get() != null;
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread until
+     * the server channel is closed. This call is blocking.
+     */
+    public void run() {
+        for (EventLoop loop : eventLoops) {
+            loop.start();
+        }
+        logger.info("NIO engine running with " + eventLoops.length + " event loops and "
+                + serverChannels.size() + " acceptors");
+
+        for (int shard = 1; shard < serverChannels.size(); shard++) {
+            int acceptor = shard;
+            Thread thread = new Thread(() -> acceptLoop(acceptor), "nio-acceptor-" + acceptor);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptLoop(0);
+    }
+
+    private void acceptLoop(int shard) {
+        ServerSocketChannel serverChannel = serverChannels.get(shard);
+        int nextLoop = shard % eventLoops.length; // Shards start on different loops
+        while (true) {
+            try {
+                logger.fine("Listening for a new client...");
+
+                SocketChannel clientChannel = serverChannel.accept();
+                server.recordAccepted(shard);
+                if (!server.admit(clientChannel.socket())) {
+                    continue; // Refused while the channel is still blocking
+                }
+                try {
+                    server.tune(clientChannel.socket());
+                    clientChannel.configureBlocking(false);
+                    logger.fine("Connection established with " + clientChannel.getRemoteAddress());
+
+                    EventLoop loop = eventLoops[nextLoop];
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                    loop.execute(() -> loop.register(server, clientChannel));
+                } catch (IOException | RuntimeException e) {
+                    server.abandon(clientChannel.socket()); // Not handed to a loop: give the slot back here
+                    throw e;
+                }
+
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    logger.info("Server channel closed, stopping listener.");
+                    break;
+                }
+                ErrorHandler.handleServerError("Error while accepting client connection", e, false);
+            } catch (Exception e) {
+                ErrorHandler.handleServerError("Unexpected error in NIO accept loop", e, true);
+            }
+        }
+    }
+
+    /**
+     * Closes every client connection and stops the event loops. The server channel
+     * is closed by the caller.
+     */
+    public void stop() {
+        for (EventLoop loop : eventLoops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * A selector thread. Tasks submitted from other threads are run on the loop
+     * between two selections.
+     */
+    static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            execute(() -> running = false);
+        }
+
+        private void register(Connection server, SocketChannel channel) {
+            NioClientHandler handler = null;
+            try {
+                handler = new NioClientHandler(server, channel, this);
+                server.connectionOpened(handler);
+                handler.register(selector);
+            } catch (ClosedChannelException e) {
+                logger.info("Client channel closed before registration");
+                abandon(server, channel, handler);
+            } catch (IOException e) {
+                abandon(server, channel, handler);
+                ErrorHandler.handleServerError("Error registering client channel", e, false);
+                try {
+                    channel.close();
+                } catch (IOException closeEx) {
+                    logger.fine("Error closing rejected channel: " + closeEx.getMessage());
+                }
+            }
+        }
+
+        // Gives back the admission of a connection that could not be registered
+        private void abandon(Connection server, SocketChannel channel, NioClientHandler handler) {
+            if (handler != null) {
+                handler.closeConnection();
+            } else {
+                server.release(channel.socket());
+            }
+        }
+
+        @Override
+        public void run() {
+            CURRENT_LOOP.set(this);
+            while (running) {
+                try {
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                handler.onWritable();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                handler.onReadable();
+                            }
+                        } catch (Throwable e) { // One failing client must not stop the others on this loop
+                            ErrorHandler.handleServerError("Unexpected error in " + thread.getName(), e, false);
+                            handler.closeConnection();
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                } catch (IOException e) {
+                    ErrorHandler.handleServerError("I/O error in " + thread.getName(), e, false);
+                } catch (Exception e) {
+                    ErrorHandler.handleServerError("Unexpected error in " + thread.getName(), e, false);
+                }
+            }
+
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof NioClientHandler handler) {
+                    handler.closeConnection();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                ErrorHandler.handleServerError("Error closing selector of " + thread.getName(), e, false);
+            }
+            logger.fine(thread.getName() + " stopped.");
+        }
+    }
+}
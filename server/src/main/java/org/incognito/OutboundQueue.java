@@ -0,0 +1,97 @@
+package org.incognito;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Any thread may
+ * offer messages; a single writer drains them. When the client does not read
+ * fast enough the queue fills up and the server's
+ * {@link Connection.SlowConsumerPolicy} decides what happens.
+ */
+final class OutboundQueue {
+
+    enum Result {
+        QUEUED, // The message will be written
+        DROPPED, // The message was discarded, the client stays connected
+        OVERFLOW // The client cannot keep up and must be disconnected
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final Connection.SlowConsumerPolicy policy;
+    private final int highWaterMark;
+    private final long blockTimeoutMillis;
+    private volatile int peakDepth;
+
+    OutboundQueue(int capacity, int highWaterMark, Connection.SlowConsumerPolicy policy, long blockTimeoutMillis) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.highWaterMark = Math.min(highWaterMark, capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * @param presence whether the message is a presence update, which a newer one
+     *                 supersedes and can therefore be dropped
+     * @param mayBlock whether the calling thread may wait for room
+     */
+    Result offer(Object message, boolean presence, boolean mayBlock) {
+        int depth = queue.size();
+        boolean accepted;
+        switch (policy) {
+            case DISCONNECT:
+                if (depth >= highWaterMark) {
+                    return Result.OVERFLOW;
+                }
+                accepted = queue.offer(message);
+                break;
+            case BLOCK:
+                if (!mayBlock) {
+                    accepted = queue.offer(message);
+                    break;
+                }
+                try {
+                    accepted = queue.offer(message, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return Result.DROPPED;
+                }
+                break;
+            case DROP_PRESENCE:
+            default:
+                if (presence && depth >= highWaterMark) {
+                    return Result.DROPPED;
+                }
+                accepted = queue.offer(message);
+                break;
+        }
+        if (!accepted) {
+            return Result.OVERFLOW;
+        }
+        if (depth + 1 > peakDepth) {
+            peakDepth = depth + 1; // Approximate under contention, good enough for a metric
+        }
+        return Result.QUEUED;
+    }
+
+    Object poll() {
+        return queue.poll();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int peakDepth() {
+        return peakDepth;
+    }
+}
@@ -0,0 +1,20 @@
+package org.incognito;
+
+/**
+ * A user as seen by sessions and rooms: either a client of this server
+ * ({@link ClientHandler}) or a user of another node of the cluster
+ * ({@link RemoteClient}). Peers are compared by identity.
+ */
+public interface Peer {
+
+    /**
+     * Passes a message on to the user: queued for a local client, relayed to
+     * the user's node for a remote one.
+     */
+    void send(Object message);
+
+    /**
+     * @return the registered username, or null before registration
+     */
+    String getUsername();
+}
@@ -0,0 +1,376 @@
+package org.incognito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the availability of every registered user and tells clients about
+ * changes (see {@link Presence}).
+ *
+ * Changes are collected over a flush window and published together: one delta
+ * with the net change of each user, under a single new version, and one full
+ * user list for older clients. A user who joins and leaves within a window is
+ * never announced. With a window of 0 every change is published right away.
+ *
+ * Snapshots describe the state as of the last published version, so that the
+ * deltas that follow apply to them exactly. They only change with the version,
+ * so the snapshot and the full list are built once per version and shared by all
+ * the clients asking for them. Publishing happens while holding the
+ * lock, so every client queues the deltas in version order. Nothing sent under
+ * the lock waits for room in a client's queue: with the BLOCK policy, a client
+ * whose queue is full is disconnected as if its send had timed out, rather
+ * than holding up every login and logout while it stalls.
+ */
+class PresenceBroadcaster {
+    private static Logger logger = Logger.getLogger(PresenceBroadcaster.class.getName());
+
+    /** Batch statistics since startup. */
+    public record Stats(long flushes, long changes, long published, int largestBatch) {
+        // Changes recorded per flush
+        public double averageBatch() {
+            return flushes == 0 ? 0 : (double) changes / flushes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d flushes, %d changes (%.1f per flush, largest %d), %d published after merging",
+                    flushes, changes, averageBatch(), largestBatch, published);
+        }
+    }
+
+    private final Connection server;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile long flushWindowMillis;
+
+    // Registered users, true when not in a private chat
+    private final Map<String, Boolean> users = new HashMap<>();
+    // Same, as of the last published version
+    private final Map<String, Boolean> publishedUsers = new LinkedHashMap<>();
+    private long version;
+    // Users whose state changed since the last flush
+    private final Set<String> dirty = new LinkedHashSet<>();
+    // Built on demand for the current version
+    private EncodedMessage cachedSnapshot;
+    private EncodedMessage cachedUserList;
+    private int pendingChanges;
+    private boolean flushScheduled;
+    private boolean publishing; // A client closed while publishing leaves in the next flush
+    private boolean stopped; // Server stopping: departures are no longer published
+
+    // Statistics, guarded by the lock
+    private long flushes;
+    private long recordedChanges;
+    private long publishedChanges;
+    private int largestBatch;
+
+    PresenceBroadcaster(Connection server, long flushWindowMillis) {
+        this.server = server;
+        this.flushWindowMillis = flushWindowMillis;
+    }
+
+    static boolean isPresenceAware(ClientHandler client) {
+        return client.getProtocolVersion() >= Presence.MIN_PROTOCOL_VERSION;
+    }
+
+    void setFlushWindowMillis(long flushWindowMillis) {
+        this.flushWindowMillis = flushWindowMillis;
+    }
+
+    /**
+     * Sends the current list to a newly registered user, and announces it to the
+     * others with the next flush.
+     */
+    void join(ClientHandler client) {
+        String username = client.getUsername();
+        lock.lock();
+        try {
+            if (isPresenceAware(client)) {
+                client.sendWithoutBlocking(snapshot()); // Its own JOIN follows in the next delta
+            }
+            users.put(username, true);
+            changed(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void leave(String username) {
+        lock.lock();
+        try {
+            if (users.remove(username) != null) {
+                changed(username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Users in a private chat are not offered to others
+    void setBusy(String username, boolean busy) {
+        lock.lock();
+        try {
+            Boolean available = users.get(username);
+            if (available == null || available != busy) {
+                return; // Unknown user or no change
+            }
+            users.put(username, !busy);
+            changed(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a user of another cluster node: it joins or changes availability, or
+     * leaves if available is null. Unlike local users it gets no snapshot.
+     */
+    void updateRemote(String username, Boolean available) {
+        lock.lock();
+        try {
+            Boolean previous = available != null ? users.put(username, available) : users.remove(username);
+            if (!Objects.equals(previous, available)) {
+                changed(username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the current list to one client: a snapshot, or the full user list to
+     * an older client.
+     */
+    void sendUserList(ClientHandler client) {
+        lock.lock();
+        try {
+            client.sendWithoutBlocking(isPresenceAware(client) ? snapshot() : legacyUserList());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Answers a conditional REQUEST_USERLIST
+    void sendUserList(ClientHandler client, long clientVersion) {
+        lock.lock();
+        try {
+            if (!isPresenceAware(client)) {
+                client.sendWithoutBlocking(legacyUserList());
+            } else if (clientVersion == version) {
+                client.sendWithoutBlocking(Presence.notModified(version));
+            } else {
+                client.sendWithoutBlocking(snapshot());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Answers PRESENCE_SYNC from a client that missed a delta
+    void resync(ClientHandler client, long clientVersion) {
+        lock.lock();
+        try {
+            if (clientVersion != version) {
+                logger.fine("Resynchronizing presence of " + client.getUsername() + " from version " + clientVersion
+                        + " to " + version);
+                client.sendWithoutBlocking(snapshot());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(flushes, recordedChanges, publishedChanges, largestBatch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops publishing: the server is closing every client, and telling each one
+     * about the others leaving would only queue messages nobody reads.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            stopped = true;
+            dirty.clear();
+            pendingChanges = 0;
+        } finally {
+            lock.unlock();
+        }
+        scheduler.shutdownNow();
+    }
+
+    // Called with the lock held
+    private void changed(String username) {
+        if (stopped) {
+            return;
+        }
+        dirty.add(username);
+        pendingChanges++;
+        long window = flushWindowMillis;
+        if (window <= 0) {
+            if (!publishing) {
+                flush();
+            }
+        } else if (!flushScheduled) {
+            try {
+                scheduler.schedule(this::scheduledFlush, window, TimeUnit.MILLISECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                flush(); // Server stopping, clients are leaving
+            }
+        }
+    }
+
+    private void scheduledFlush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            flush();
+        } catch (Exception e) {
+            ErrorHandler.handleServerError("Error publishing presence changes", e, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Publishes the net change of every dirty user. Called with the lock held.
+    private void flush() {
+        List<Presence.Update> updates = new ArrayList<>();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (String username : dirty) {
+            Boolean before = publishedUsers.get(username);
+            Boolean after = users.get(username);
+            if (before == null && after != null) {
+                updates.add(new Presence.Update(Presence.Change.JOIN, username));
+                if (!after) {
+                    updates.add(new Presence.Update(Presence.Change.BUSY, username));
+                }
+                publishedUsers.put(username, after);
+                joined.add(username);
+            } else if (before != null && after == null) {
+                updates.add(new Presence.Update(Presence.Change.LEAVE, username));
+                publishedUsers.remove(username);
+                left.add(username);
+            } else if (before != null && !before.equals(after)) {
+                updates.add(new Presence.Update(after ? Presence.Change.AVAILABLE : Presence.Change.BUSY, username));
+                publishedUsers.put(username, after);
+            }
+        }
+
+        flushes++;
+        recordedChanges += pendingChanges;
+        publishedChanges += updates.size();
+        largestBatch = Math.max(largestBatch, pendingChanges);
+        pendingChanges = 0;
+        dirty.clear();
+        if (updates.isEmpty()) {
+            return; // Changes cancelled out
+        }
+
+        version++;
+        cachedSnapshot = null;
+        cachedUserList = null;
+        // Every message below is encoded once and the same bytes go to each client
+        EncodedMessage delta = EncodedMessage.of(Presence.delta(version, updates));
+        publishing = true;
+        try {
+            publishToClients(delta, joined, left);
+        } finally {
+            publishing = false;
+        }
+        logger.fine("Presence version " + version + ": " + updates.size() + " changes");
+        if (!dirty.isEmpty() && flushWindowMillis <= 0) {
+            flush(); // Clients that overflowed while publishing
+        }
+    }
+
+    // Called with the lock held
+    private void publishToClients(EncodedMessage delta, List<String> joined, List<String> left) {
+        EncodedMessage userList = null;
+        List<EncodedMessage> notices = null;
+        for (ClientHandler client : server.getRegisteredClients()) {
+            if (client.getUsername() == null) {
+                continue;
+            }
+            if (isPresenceAware(client)) {
+                client.sendWithoutBlocking(delta);
+                continue;
+            }
+            if (userList == null) { // Built only if an older client is connected
+                userList = legacyUserList();
+                notices = new ArrayList<>(joined.size() + left.size());
+                for (String username : joined) {
+                    notices.add(EncodedMessage.of("CONNECT:" + username));
+                }
+                for (String username : left) {
+                    notices.add(EncodedMessage.of("DISCONNECT:" + username));
+                }
+            }
+            client.sendWithoutBlocking(userList);
+            // Older clients also expect a notice per user, but not about themselves
+            for (int i = 0; i < notices.size(); i++) {
+                if (i >= joined.size() || !joined.get(i).equals(client.getUsername())) {
+                    client.sendWithoutBlocking(notices.get(i));
+                }
+            }
+        }
+    }
+
+    // Encoded once per version, whatever the number of clients asking
+    private EncodedMessage snapshot() {
+        if (cachedSnapshot == null) {
+            cachedSnapshot = EncodedMessage.of(Presence.snapshot(version, availableUsers()));
+        }
+        return cachedSnapshot;
+    }
+
+    private EncodedMessage legacyUserList() {
+        if (cachedUserList == null) {
+            cachedUserList = EncodedMessage.of("USERLIST:" + String.join(",", availableUsers()));
+        }
+        return cachedUserList;
+    }
+
+    // As of the last published version
+    private List<String> availableUsers() {
+        List<String> available = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : publishedUsers.entrySet()) {
+            if (entry.getValue()) {
+                available.add(entry.getKey());
+            }
+        }
+        return available;
+    }
+}
@@ -5,11 +5,11 @@ import java.util.logging.Logger;
 public class PrivateChatSession {
     private static final Logger logger = Logger.getLogger(PrivateChatSession.class.getName());
 
-    private final ClientHandler client1;
-    private final ClientHandler client2;
+    private final Peer client1;
+    private final Peer client2;
     private final String sessionId;
 
-    public PrivateChatSession(ClientHandler client1, ClientHandler client2, String sessionId) {
+    public PrivateChatSession(Peer client1, Peer client2, String sessionId) {
         this.client1 = client1;
         this.client2 = client2;
         this.sessionId = sessionId;
@@ -17,7 +17,7 @@ public class PrivateChatSession {
                 client1.getUsername() + " and " + client2.getUsername());
     }
 
-    public ClientHandler getOtherClient(ClientHandler client) {
+    public Peer getOtherClient(Peer client) {
         if (client == client1) {
             return client2;
         } else if (client == client2) {
@@ -30,7 +30,7 @@ public class PrivateChatSession {
         return sessionId;
     }
 
-    public ClientHandler[] getClients() {
-        return new ClientHandler[] { client1, client2 };
+    public Peer[] getClients() {
+        return new Peer[] { client1, client2 };
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package org.incognito;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Limits how fast one client may send each kind of message (see
+ * {@link Connection.MessageClass}), with a token bucket per kind: a burst up to
+ * the bucket size is allowed, then the sustained rate.
+ *
+ * A message over the limit is dropped. Every dropped message is also a strike;
+ * strikes are forgiven at one per second, and a client that runs out of them is
+ * disconnected. Used by the client's reading thread only, so not thread-safe.
+ */
+final class RateLimiter {
+
+    enum Decision {
+        ALLOWED,
+        THROTTLED, // Dropped, the client stays connected
+        DISCONNECT // Over the limit for too long
+    }
+
+    /**
+     * Allows a burst of capacity tokens, then refills at a fixed rate.
+     */
+    static final class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double perSecond, double capacity, long now) {
+            this.tokensPerNano = perSecond / 1_000_000_000.0;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        boolean tryAcquire(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private final Map<Connection.MessageClass, TokenBucket> buckets = new EnumMap<>(Connection.MessageClass.class);
+    private final TokenBucket strikes; // Null when throttled clients are never disconnected
+    private boolean throttling;
+
+    RateLimiter(Map<Connection.MessageClass, Connection.RateLimit> limits, int maxStrikes, long now) {
+        for (Map.Entry<Connection.MessageClass, Connection.RateLimit> limit : limits.entrySet()) {
+            buckets.put(limit.getKey(), new TokenBucket(limit.getValue().perSecond(), limit.getValue().burst(), now));
+        }
+        this.strikes = maxStrikes > 0 ? new TokenBucket(1, maxStrikes, now) : null;
+    }
+
+    Decision check(Connection.MessageClass messageClass, long now) {
+        TokenBucket bucket = buckets.get(messageClass);
+        if (bucket == null || bucket.tryAcquire(now)) {
+            throttling = false;
+            return Decision.ALLOWED;
+        }
+        throttling = true;
+        if (strikes != null && !strikes.tryAcquire(now)) {
+            return Decision.DISCONNECT;
+        }
+        return Decision.THROTTLED;
+    }
+
+    // True until the client sends a message within its limits again
+    boolean isThrottling() {
+        return throttling;
+    }
+}
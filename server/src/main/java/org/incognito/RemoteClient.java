@@ -0,0 +1,31 @@
+package org.incognito;
+
+/**
+ * Stand-in for a user connected to another node of the cluster, so that sessions
+ * and key exchanges treat local and remote peers alike. Messages sent to it are
+ * relayed to its node, which hands them to the user.
+ */
+class RemoteClient implements Peer {
+    private final ClusterNode cluster;
+    private final ClusterBus.Member member;
+
+    RemoteClient(ClusterNode cluster, ClusterBus.Member member) {
+        this.cluster = cluster;
+        this.member = member;
+    }
+
+    String getNode() {
+        return member.node();
+    }
+
+    @Override
+    public String getUsername() {
+        return member.username();
+    }
+
+    @Override
+    public void send(Object message) {
+        // The peer's node encodes it for its own connection
+        cluster.relay(member, message instanceof EncodedMessage encoded ? encoded.getMessage() : message);
+    }
+}
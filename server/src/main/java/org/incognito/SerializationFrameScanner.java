@@ -0,0 +1,523 @@
+package org.incognito;
+
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds object boundaries in a Java serialization stream without deserializing.
+ *
+ * Clients write every message with a single long-lived ObjectOutputStream, so the
+ * bytes carry no length prefix and later objects refer back to class descriptors
+ * and strings by handle. The non-blocking engine can only hand bytes to its
+ * ObjectInputStream once a whole object has arrived, otherwise the stream would
+ * block or lose its handle table. This scanner walks the grammar of the
+ * serialization protocol (Java Object Serialization Specification, chapter 6),
+ * keeping the same handle numbering as the reader, to tell how many bytes the next
+ * top-level object takes.
+ *
+ * The scan keeps its place: when the bytes end in the middle of an object, the
+ * next call goes on from there rather than from the start of the object, so a
+ * client sending an object in small pieces costs each byte once. Nesting is
+ * followed on an explicit stack, at most {@value #MAX_DEPTH} levels deep.
+ */
+public class SerializationFrameScanner implements ObjectStreamConstants {
+
+    // Deep enough for any message a client sends; deeper streams are rejected
+    static final int MAX_DEPTH = 64;
+
+    /** Thrown internally when the buffer ends in the middle of an object. */
+    private static final class Incomplete extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() {
+            super(null, null, false, false); // Control flow: no stack trace
+        }
+    }
+
+    private static final Incomplete INCOMPLETE = new Incomplete();
+
+    private static final class ClassDesc {
+        final String name;
+        byte flags;
+        char[] fieldTypes = new char[0];
+        ClassDesc superDesc;
+
+        ClassDesc(String name) {
+            this.name = name;
+        }
+    }
+
+    // Marker for handles that are not class descriptors (strings, objects, arrays...)
+    private static final Object VALUE = new Object();
+
+    // What a frame of the stack reads
+    private enum Kind {
+        CONTENT, // content: object, string, reference, block data...
+        CLASS_DESC, // classDesc, its result goes to the frame below
+        CLASS_DATA, // field values and annotations of an object
+        ARRAY, // array size and elements
+        ANNOTATION // contents up to TC_ENDBLOCKDATA
+    }
+
+    // Steps within a frame
+    private static final int START = 0;
+    private static final int AFTER_CLASS = 1;
+    private static final int AFTER_ENUM = 2;
+    private static final int AFTER_OBJECT = 3;
+    private static final int AFTER_ARRAY = 4;
+    private static final int FIELDS = 5;
+    private static final int INTERFACES = 6;
+    private static final int ANNOTATED = 7;
+    private static final int SUPER_READ = 8;
+    private static final int ELEMENTS = 9;
+
+    private static final class Frame {
+        final Kind kind;
+        int step = START;
+        int index;
+        int count;
+        ClassDesc desc;
+        List<ClassDesc> chain; // CLASS_DATA: topmost serializable class first
+        boolean annotated;
+
+        Frame(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private List<Object> handles = new ArrayList<>();
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private ClassDesc returned; // Result of the CLASS_DESC frame popped last
+    private int offset; // Bytes of the current object read so far
+    private int position; // Where the step being read started, an incomplete scan resumes there
+    private ByteBuffer buf;
+    private int limit;
+
+    /**
+     * Returns the length in bytes of the next complete top-level object starting at
+     * the buffer's position, or -1 if more bytes are needed. The buffer is not
+     * modified. After -1, the next call must be given the same object from its
+     * start, with more bytes after it; the scan goes on where it stopped. A
+     * positive result commits the handles assigned by that object, so every
+     * object must then be passed to the reader exactly once.
+     *
+     * @throws StreamCorruptedException if the bytes are not a supported
+     *                                  serialization stream, or nest deeper
+     *                                  than {@value #MAX_DEPTH} levels
+     */
+    public int scan(ByteBuffer buffer) throws StreamCorruptedException {
+        this.buf = buffer;
+        this.limit = buffer.limit();
+        int start = buffer.position();
+        int p = start + offset;
+        try {
+            if (stack.isEmpty()) { // A new object
+                while (p < limit && buffer.get(p) == TC_RESET) {
+                    p++;
+                    handles = new ArrayList<>();
+                }
+                if (p == limit) {
+                    return -1; // Resets are read again with the object
+                }
+                stack.push(new Frame(Kind.CONTENT));
+            }
+            while (!stack.isEmpty()) {
+                p = step(stack.peek(), p);
+            }
+            offset = 0;
+            return p - start;
+        } catch (Incomplete e) {
+            offset = position - start;
+            return -1;
+        } catch (IndexOutOfBoundsException | ClassCastException e) {
+            reset();
+            throw new StreamCorruptedException("Malformed serialization stream: " + e);
+        } catch (StreamCorruptedException e) {
+            reset();
+            throw e;
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    private void reset() {
+        stack.clear();
+        offset = 0;
+    }
+
+    private void push(Kind kind) throws StreamCorruptedException {
+        if (stack.size() >= MAX_DEPTH) {
+            throw new StreamCorruptedException("Objects nested deeper than " + MAX_DEPTH + " levels");
+        }
+        stack.push(new Frame(kind));
+    }
+
+    // Swaps the top frame for another, at the same depth
+    private void replace(Kind kind) {
+        stack.pop();
+        stack.push(new Frame(kind));
+    }
+
+    /**
+     * Reads one token of the top frame and returns the position after it. A
+     * token is read whole or not at all, so an incomplete scan stops between
+     * two tokens and resumes there.
+     */
+    private int step(Frame frame, int p) throws StreamCorruptedException {
+        position = p;
+        switch (frame.kind) {
+            case CONTENT:
+                return content(frame, p);
+            case CLASS_DESC:
+                return classDesc(frame, p);
+            case CLASS_DATA:
+                return classData(frame, p);
+            case ARRAY:
+                return array(frame, p);
+            case ANNOTATION:
+            default:
+                if (u8(p) == TC_ENDBLOCKDATA) {
+                    stack.pop();
+                    return p + 1;
+                }
+                push(Kind.CONTENT);
+                return p;
+        }
+    }
+
+    private int content(Frame frame, int p) throws StreamCorruptedException {
+        switch (frame.step) {
+            case AFTER_CLASS:
+                handles.add(VALUE);
+                stack.pop();
+                return p;
+            case AFTER_ENUM:
+                handles.add(VALUE);
+                replace(Kind.CONTENT); // Constant name
+                return p;
+            case AFTER_OBJECT: {
+                if (returned == null) {
+                    throw new StreamCorruptedException("Object without class descriptor");
+                }
+                handles.add(VALUE);
+                ClassDesc desc = returned;
+                stack.pop();
+                Frame data = new Frame(Kind.CLASS_DATA);
+                data.chain = new ArrayList<>();
+                for (ClassDesc d = desc; d != null; d = d.superDesc) {
+                    data.chain.add(0, d);
+                }
+                stack.push(data);
+                return p;
+            }
+            case AFTER_ARRAY: {
+                if (returned == null || returned.name.length() < 2) {
+                    throw new StreamCorruptedException("Invalid array descriptor");
+                }
+                handles.add(VALUE);
+                ClassDesc desc = returned;
+                stack.pop();
+                Frame array = new Frame(Kind.ARRAY);
+                array.desc = desc;
+                stack.push(array);
+                return p;
+            }
+            default:
+                break;
+        }
+
+        byte tc = u8(p);
+        switch (tc) {
+            case TC_NULL:
+                stack.pop();
+                return p + 1;
+            case TC_REFERENCE:
+                need(p + 1, 4);
+                handle(buf.getInt(p + 1));
+                stack.pop();
+                return p + 5;
+            case TC_STRING: {
+                need(p + 1, 2);
+                int len = Short.toUnsignedInt(buf.getShort(p + 1));
+                p = skip(p + 3, len);
+                handles.add(VALUE);
+                stack.pop();
+                return p;
+            }
+            case TC_LONGSTRING: {
+                need(p + 1, 8);
+                long len = buf.getLong(p + 1);
+                if (len < 0 || len > Integer.MAX_VALUE) {
+                    throw new StreamCorruptedException("Invalid long string length " + len);
+                }
+                p = skip(p + 9, (int) len);
+                handles.add(VALUE);
+                stack.pop();
+                return p;
+            }
+            case TC_CLASSDESC:
+            case TC_PROXYCLASSDESC:
+                replace(Kind.CLASS_DESC); // Reads the type code itself
+                return p;
+            case TC_CLASS:
+                frame.step = AFTER_CLASS;
+                push(Kind.CLASS_DESC);
+                return p + 1;
+            case TC_ENUM:
+                frame.step = AFTER_ENUM;
+                push(Kind.CLASS_DESC);
+                return p + 1;
+            case TC_OBJECT:
+                frame.step = AFTER_OBJECT;
+                push(Kind.CLASS_DESC);
+                return p + 1;
+            case TC_ARRAY:
+                frame.step = AFTER_ARRAY;
+                push(Kind.CLASS_DESC);
+                return p + 1;
+            case TC_BLOCKDATA: {
+                int len = Byte.toUnsignedInt(u8(p + 1));
+                p = skip(p + 2, len);
+                stack.pop();
+                return p;
+            }
+            case TC_BLOCKDATALONG: {
+                need(p + 1, 4);
+                int len = buf.getInt(p + 1);
+                if (len < 0) {
+                    throw new StreamCorruptedException("Invalid block data length " + len);
+                }
+                p = skip(p + 5, len);
+                stack.pop();
+                return p;
+            }
+            default:
+                throw new StreamCorruptedException(String.format("Unsupported type code 0x%02X", tc));
+        }
+    }
+
+    // classDesc: newClassDesc | nullReference | (ClassDesc)prevObject
+    private int classDesc(Frame frame, int p) throws StreamCorruptedException {
+        switch (frame.step) {
+            case FIELDS: {
+                if (frame.index == frame.count) {
+                    frame.step = ANNOTATED;
+                    push(Kind.ANNOTATION);
+                    return p;
+                }
+                char type = (char) u8(p);
+                p = skip(p + 3, utfLength(p + 1)); // Field name
+                if (type != 'L' && type != '[' && primitiveSize(type) == 0) {
+                    throw new StreamCorruptedException("Invalid field type " + type);
+                }
+                frame.desc.fieldTypes[frame.index++] = type;
+                if (type == 'L' || type == '[') {
+                    push(Kind.CONTENT); // Field type signature string
+                }
+                return p;
+            }
+            case INTERFACES:
+                if (frame.index == frame.count) {
+                    frame.step = ANNOTATED;
+                    push(Kind.ANNOTATION);
+                    return p;
+                }
+                p = skip(p + 2, utfLength(p));
+                frame.index++;
+                return p;
+            case ANNOTATED:
+                frame.step = SUPER_READ;
+                push(Kind.CLASS_DESC);
+                return p;
+            case SUPER_READ:
+                frame.desc.superDesc = returned;
+                returned = frame.desc;
+                stack.pop();
+                return p;
+            default:
+                break;
+        }
+
+        byte tc = u8(p);
+        switch (tc) {
+            case TC_NULL:
+                returned = null;
+                stack.pop();
+                return p + 1;
+            case TC_REFERENCE: {
+                need(p + 1, 4);
+                Object h = handle(buf.getInt(p + 1));
+                if (!(h instanceof ClassDesc)) {
+                    throw new StreamCorruptedException("Reference is not a class descriptor");
+                }
+                returned = (ClassDesc) h;
+                stack.pop();
+                return p + 5;
+            }
+            case TC_CLASSDESC: {
+                int nameLen = utfLength(p + 1);
+                need(p + 3, nameLen + 8 + 1 + 2); // Name, serialVersionUID, flags, field count
+                String name = utf(p + 3, nameLen);
+                p += 3 + nameLen + 8;
+                ClassDesc desc = new ClassDesc(name);
+                desc.flags = buf.get(p);
+                desc.fieldTypes = new char[Short.toUnsignedInt(buf.getShort(p + 1))];
+                handles.add(desc);
+                frame.desc = desc;
+                frame.count = desc.fieldTypes.length;
+                frame.step = FIELDS;
+                return p + 3;
+            }
+            case TC_PROXYCLASSDESC: {
+                need(p + 1, 4);
+                int interfaces = buf.getInt(p + 1);
+                if (interfaces < 0) {
+                    throw new StreamCorruptedException("Invalid interface count " + interfaces);
+                }
+                ClassDesc desc = new ClassDesc("$Proxy");
+                desc.flags = SC_SERIALIZABLE;
+                handles.add(desc);
+                frame.desc = desc;
+                frame.count = interfaces;
+                frame.step = INTERFACES;
+                return p + 5;
+            }
+            default:
+                throw new StreamCorruptedException(String.format("Invalid class descriptor code 0x%02X", tc));
+        }
+    }
+
+    // Field values are written from the topmost serializable superclass down
+    private int classData(Frame frame, int p) throws StreamCorruptedException {
+        if (frame.index == frame.chain.size()) {
+            stack.pop();
+            return p;
+        }
+        ClassDesc d = frame.chain.get(frame.index);
+        if ((d.flags & SC_SERIALIZABLE) != 0) {
+            if (frame.count < d.fieldTypes.length) {
+                int size = primitiveSize(d.fieldTypes[frame.count]);
+                if (size > 0) {
+                    p = skip(p, size);
+                    frame.count++;
+                    return p;
+                }
+                push(Kind.CONTENT);
+                frame.count++;
+                return p;
+            }
+            if ((d.flags & SC_WRITE_METHOD) != 0 && !frame.annotated) {
+                frame.annotated = true;
+                push(Kind.ANNOTATION);
+                return p;
+            }
+        } else if ((d.flags & SC_EXTERNALIZABLE) != 0) {
+            if ((d.flags & SC_BLOCK_DATA) == 0) {
+                throw new StreamCorruptedException("Externalizable data without block mode: " + d.name);
+            }
+            if (!frame.annotated) {
+                frame.annotated = true;
+                push(Kind.ANNOTATION);
+                return p;
+            }
+        }
+        frame.index++; // Next class down the hierarchy
+        frame.count = 0;
+        frame.annotated = false;
+        return p;
+    }
+
+    private int array(Frame frame, int p) throws StreamCorruptedException {
+        if (frame.step == ELEMENTS) {
+            if (frame.index == frame.count) {
+                stack.pop();
+                return p;
+            }
+            frame.index++;
+            push(Kind.CONTENT);
+            return p;
+        }
+        need(p, 4);
+        int size = buf.getInt(p);
+        if (size < 0) {
+            throw new StreamCorruptedException("Invalid array size " + size);
+        }
+        int primitiveSize = primitiveSize(frame.desc.name.charAt(1));
+        if (primitiveSize > 0) {
+            long bytes = (long) size * primitiveSize;
+            if (bytes > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Array too large: " + size + " elements");
+            }
+            p = skip(p + 4, (int) bytes);
+            stack.pop();
+            return p;
+        }
+        frame.count = size;
+        frame.step = ELEMENTS;
+        return p + 4;
+    }
+
+    private Object handle(int handle) throws StreamCorruptedException {
+        int index = handle - baseWireHandle;
+        if (index < 0 || index >= handles.size()) {
+            throw new StreamCorruptedException("Invalid handle " + Integer.toHexString(handle));
+        }
+        return handles.get(index);
+    }
+
+    private static int primitiveSize(char type) {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'J':
+            case 'D':
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private byte u8(int p) {
+        need(p, 1);
+        return buf.get(p);
+    }
+
+    private int utfLength(int p) {
+        need(p, 2);
+        return Short.toUnsignedInt(buf.getShort(p));
+    }
+
+    // Class names are only needed to tell array component types, which are ASCII
+    private String utf(int p, int len) {
+        need(p, len);
+        byte[] bytes = new byte[len];
+        buf.get(p, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private int skip(int p, int len) {
+        need(p, len);
+        return p + len;
+    }
+
+    private void need(int p, int len) {
+        if (len < 0 || p + len < 0) {
+            throw new IndexOutOfBoundsException("Invalid length " + len);
+        }
+        if (p + len > limit) {
+            throw INCOMPLETE;
+        }
+    }
+}
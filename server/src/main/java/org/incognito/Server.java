@@ -1,5 +1,8 @@
 package org.incognito;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class Server {
@@ -9,13 +12,55 @@ public class Server {
         // Initialize socket connection and listen for clients
         logger.fine("Starting Server...");
 
-        for (String arg : args) {
-            if (arg.equals("--dev")) {
-                logger.info("Development mode enabled");
+        ServerConfig config = ServerConfig.load(args);
+        if (config.isDevMode()) {
+            logger.info("Development mode enabled");
+        }
+        logger.info(config.describe());
+
+        int clusterNodes = config.getClusterNodes();
+        ClusterBus bus = clusterNodes > 1 ? new LoopbackBus() : null;
+        Connection server = null;
+        List<Connection> nodes = new ArrayList<>();
+        for (int node = 0; node < clusterNodes; node++) {
+            if (server != null) {
+                // Every node but the last accepts on its own thread
+                Thread nodeThread = new Thread(server::start, "cluster-node-" + (node - 1));
+                nodeThread.start();
+            }
+            int port = config.getPort() == 0 ? 0 : config.getPort() + node;
+            server = new Connection(config.getEngine(), config.getEventLoops(), port, config.getBacklog(),
+                    config.getAcceptors());
+            config.applyTo(server);
+            nodes.add(server);
+            if (config.isJmxEnabled()) {
+                server.getMetrics().registerMBean("org.incognito:type=Server,port=" + server.getLocalPort());
+            }
+            if (bus != null) {
+                server.joinCluster(bus, "node-" + node);
+                logger.info("Cluster node node-" + node + " listening on port " + server.getLocalPort());
             }
         }
 
-        Connection server = new Connection();
+        if (config.getAdminPort() > 0) {
+            try {
+                AdminEndpoint admin = new AdminEndpoint(config.getAdminPort(), nodes);
+                logger.info("Metrics on 127.0.0.1:" + admin.getLocalPort());
+            } catch (IOException e) {
+                ErrorHandler.handleServerError("Cannot open the admin port " + config.getAdminPort(), e, false);
+            }
+        }
+
+        // On Ctrl-C or SIGTERM, clients are drained and told when to come back
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Connection node : nodes) {
+                Connection.DrainReport report = node.stop();
+                // Logging has its own shutdown hook and may already be closed
+                System.err.println("Port " + node.getLocalPort() + ": drained " + report.drained() + " of "
+                        + report.connections() + " connections in " + report.elapsedMillis() + " ms");
+            }
+            config.closeJournal();
+        }, "server-shutdown"));
 
         logger.info("Server ready");
         server.start(); // this function handles client connectio\ns - it is blocking.
@@ -0,0 +1,455 @@
+package org.incognito;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Server settings, from lowest to highest precedence: built-in defaults, a
+ * named profile, a properties file and the command line. A setting has the
+ * same name everywhere: {@code presence-window=0} in the file is
+ * {@code --presence-window=0} on the command line.
+ *
+ * The file is given with {@code --config=path}, otherwise
+ * {@value #DEFAULT_FILE} in the working directory is read if there is one. The
+ * profile is chosen with {@code --profile=name}, or {@code profile=name} in the
+ * file. An invalid value is replaced by the default, with a warning.
+ */
+public final class ServerConfig {
+    private static final Logger logger = Logger.getLogger(ServerConfig.class.getName());
+
+    public static final String DEFAULT_FILE = "server.properties";
+    public static final String DEFAULT_PROFILE = "default";
+
+    // Every setting and its default, in the order they are logged
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("port", String.valueOf(Connection.DEFAULT_PORT));
+        DEFAULTS.put("engine", "thread-pool");
+        DEFAULTS.put("event-loops", "0"); // One per processor
+        DEFAULTS.put("acceptors", "1");
+        DEFAULTS.put("backlog", "0"); // System default
+        DEFAULTS.put("cluster-nodes", "1");
+        DEFAULTS.put("tcp-no-delay", "false");
+        DEFAULTS.put("send-buffer", "0"); // Bytes, 0 for the system default
+        DEFAULTS.put("receive-buffer", "0");
+        DEFAULTS.put("read-buffer", "8192");
+        DEFAULTS.put("binary-only", "false");
+        DEFAULTS.put("slow-consumer", "drop-presence");
+        DEFAULTS.put("outbound-queue", "1024");
+        DEFAULTS.put("presence-window", "100"); // Milliseconds
+        DEFAULTS.put("pending-timeout", "300"); // Seconds, as the other timeouts
+        DEFAULTS.put("heartbeat", "15");
+        DEFAULTS.put("idle-timeout", "45");
+        DEFAULTS.put("handshake-timeout", "10");
+        DEFAULTS.put("max-connections", "10000");
+        DEFAULTS.put("max-per-ip", "50");
+        DEFAULTS.put("rate-limit.control", "5:20"); // perSecond:burst, or off
+        DEFAULTS.put("rate-limit.chat", "20:50");
+        DEFAULTS.put("rate-limit.key-exchange", "2:10");
+        DEFAULTS.put("rate-limit-strikes", "50");
+        DEFAULTS.put("max-room-members", "256");
+        DEFAULTS.put("drain-timeout", "5");
+        DEFAULTS.put("reconnect-window", "30");
+        DEFAULTS.put("chat-log-overflow", "drop"); // Or block, when the chat log buffer is full
+        DEFAULTS.put("journal", "Logs/Journal/events.journal"); // Or off
+        DEFAULTS.put("log-max-size", "10"); // MiB, 0 for no limit, as the two below
+        DEFAULTS.put("log-max-age", "24"); // Hours
+        DEFAULTS.put("log-keep", "7"); // Compressed segments of each log
+        DEFAULTS.put("jmx", "true"); // Metrics as MBeans
+        DEFAULTS.put("admin-port", "0"); // Loopback port for metrics as text, 0 for none
+    }
+
+    private static final Map<String, Map<String, String>> PROFILES = Map.of(
+            DEFAULT_PROFILE, Map.of(),
+            // Small messages go out at once and presence changes are not batched
+            "low-latency", Map.of(
+                    "engine", "virtual-threads",
+                    "tcp-no-delay", "true",
+                    "presence-window", "0"),
+            // Many mostly idle connections: few threads, small buffers, batched presence
+            "high-density", Map.of(
+                    "engine", "nio",
+                    "read-buffer", "2048",
+                    "send-buffer", "16384",
+                    "receive-buffer", "16384",
+                    "outbound-queue", "256",
+                    "presence-window", "500",
+                    "heartbeat", "30",
+                    "idle-timeout", "120",
+                    "max-connections", "100000"));
+
+    private final Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+    // Where each value came from: default, profile, file or command line
+    private final Map<String, String> sources = new HashMap<>();
+    private String profile = DEFAULT_PROFILE;
+    private boolean devMode;
+
+    private int port;
+    private Connection.Engine engine;
+    private int eventLoops;
+    private int acceptors;
+    private int backlog;
+    private int clusterNodes;
+    private Connection.SocketTuning socketTuning;
+    private boolean binaryOnly;
+    private Connection.SlowConsumerPolicy slowConsumerPolicy;
+    private int outboundQueue;
+    private long presenceWindowMillis;
+    private long pendingTimeoutSeconds;
+    private long heartbeatSeconds;
+    private long idleTimeoutSeconds;
+    private long handshakeTimeoutSeconds;
+    private int maxConnections;
+    private int maxPerAddress;
+    private final Map<Connection.MessageClass, Connection.RateLimit> rateLimits = new EnumMap<>(
+            Connection.MessageClass.class);
+    private int rateLimitStrikes;
+    private int maxRoomMembers;
+    private long drainTimeoutSeconds;
+    private long reconnectWindowSeconds;
+    private AsyncLogWriter.OverflowPolicy chatLogOverflow;
+    private String journalFile; // Null when off
+    private LogRotator.Policy logRotation;
+    private boolean jmx;
+    private int adminPort;
+    private EventJournal journal; // Opened by the first applyTo, shared by every node, closed by closeJournal
+
+    private ServerConfig() {
+        for (String name : DEFAULTS.keySet()) {
+            sources.put(name, "default");
+        }
+    }
+
+    /**
+     * Reads the file named on the command line, or the default one if present,
+     * and applies the profile, the file and the arguments on top of the defaults.
+     */
+    public static ServerConfig load(String[] args) {
+        Map<String, String> arguments = parseArguments(args);
+        String configFile = arguments.remove("config");
+        Path file = Path.of(configFile != null ? configFile : DEFAULT_FILE);
+        Map<String, String> fileValues = new LinkedHashMap<>();
+        if (configFile != null || Files.isRegularFile(file)) {
+            fileValues = readFile(file);
+        }
+        return load(fileValues, file.toString(), arguments);
+    }
+
+    // Precedence: defaults, profile, file, arguments
+    static ServerConfig load(Map<String, String> fileValues, String fileName, Map<String, String> arguments) {
+        ServerConfig config = new ServerConfig();
+        fileValues = new LinkedHashMap<>(fileValues);
+        arguments = new LinkedHashMap<>(arguments);
+        String profile = arguments.remove("profile");
+        String fileProfile = fileValues.remove("profile");
+        config.devMode = Boolean.parseBoolean(arguments.remove("dev"));
+        config.applyProfile(profile != null ? profile : fileProfile);
+        config.putAll(fileValues, fileName);
+        config.putAll(arguments, "command line");
+        config.validate();
+        return config;
+    }
+
+    // --name=value becomes name=value, a bare --name is true
+    static Map<String, String> parseArguments(String[] args) {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                logger.warning("Ignoring argument " + arg + ", expected --name=value");
+                continue;
+            }
+            int equals = arg.indexOf('=');
+            String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+            String value = equals < 0 ? "true" : arg.substring(equals + 1);
+            if (name.equals("rate-limit")) {
+                // --rate-limit=chat:20:50 or --rate-limit=chat:off
+                int separator = value.indexOf(':');
+                if (separator < 0) {
+                    logger.warning("Invalid rate limit " + arg + ", expected kind:perSecond:burst or kind:off");
+                    continue;
+                }
+                name = "rate-limit." + value.substring(0, separator);
+                value = value.substring(separator + 1);
+            }
+            arguments.put(name, value);
+        }
+        return arguments;
+    }
+
+    private static Map<String, String> readFile(Path file) {
+        Map<String, String> fileValues = new LinkedHashMap<>();
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            ErrorHandler.handleServerError("Cannot read server configuration " + file + ", using the defaults", e,
+                    false);
+            return fileValues;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            fileValues.put(name, properties.getProperty(name).trim());
+        }
+        return fileValues;
+    }
+
+    private void applyProfile(String name) {
+        if (name == null) {
+            return;
+        }
+        Map<String, String> settings = PROFILES.get(name);
+        if (settings == null) {
+            logger.warning("Unknown profile " + name + ", using " + DEFAULT_PROFILE + "; profiles are "
+                    + String.join(", ", PROFILES.keySet()));
+            return;
+        }
+        profile = name;
+        putAll(settings, "profile " + name);
+    }
+
+    private void putAll(Map<String, String> settings, String source) {
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            if (!DEFAULTS.containsKey(setting.getKey())) {
+                logger.warning("Unknown setting " + setting.getKey() + " in " + source + ", ignored");
+                continue;
+            }
+            values.put(setting.getKey(), setting.getValue());
+            sources.put(setting.getKey(), source);
+        }
+    }
+
+    private void validate() {
+        port = intSetting("port", 0);
+        engine = enumSetting("engine", Connection.Engine.class);
+        eventLoops = intSetting("event-loops", 0);
+        acceptors = intSetting("acceptors", 1);
+        backlog = intSetting("backlog", 0);
+        clusterNodes = intSetting("cluster-nodes", 1);
+        socketTuning = new Connection.SocketTuning(booleanSetting("tcp-no-delay"), intSetting("send-buffer", 0),
+                intSetting("receive-buffer", 0), intSetting("read-buffer", 512));
+        binaryOnly = booleanSetting("binary-only");
+        slowConsumerPolicy = enumSetting("slow-consumer", Connection.SlowConsumerPolicy.class);
+        outboundQueue = intSetting("outbound-queue", 1);
+        presenceWindowMillis = longSetting("presence-window", 0);
+        pendingTimeoutSeconds = longSetting("pending-timeout", 1);
+        heartbeatSeconds = longSetting("heartbeat", 0);
+        idleTimeoutSeconds = longSetting("idle-timeout", 1);
+        if (heartbeatSeconds > 0 && idleTimeoutSeconds <= heartbeatSeconds) {
+            idleTimeoutSeconds = heartbeatSeconds * 3;
+            logger.warning("Idle timeout must be longer than the heartbeat interval, using " + idleTimeoutSeconds
+                    + " s");
+            values.put("idle-timeout", String.valueOf(idleTimeoutSeconds));
+        }
+        handshakeTimeoutSeconds = longSetting("handshake-timeout", 1);
+        maxConnections = intSetting("max-connections", 1);
+        maxPerAddress = intSetting("max-per-ip", 1);
+        for (Connection.MessageClass messageClass : Connection.MessageClass.values()) {
+            rateLimits.put(messageClass, rateLimitSetting(
+                    "rate-limit." + messageClass.name().toLowerCase().replace('_', '-')));
+        }
+        rateLimitStrikes = intSetting("rate-limit-strikes", 0);
+        maxRoomMembers = intSetting("max-room-members", 2);
+        drainTimeoutSeconds = longSetting("drain-timeout", 0);
+        reconnectWindowSeconds = longSetting("reconnect-window", 1);
+        chatLogOverflow = enumSetting("chat-log-overflow", AsyncLogWriter.OverflowPolicy.class);
+        journalFile = values.get("journal").equals("off") ? null : values.get("journal");
+        logRotation = new LogRotator.Policy(longSetting("log-max-size", 0) * 1024 * 1024,
+                longSetting("log-max-age", 0) * 3_600_000, intSetting("log-keep", 0));
+        jmx = booleanSetting("jmx");
+        adminPort = intSetting("admin-port", 0);
+        if (adminPort > 65535) {
+            useDefault("admin-port", ", not a port");
+            adminPort = 0;
+        }
+    }
+
+    private void useDefault(String name, String reason) {
+        logger.warning("Invalid " + name + " " + values.get(name) + " from " + sources.get(name) + reason
+                + ", using " + DEFAULTS.get(name));
+        values.put(name, DEFAULTS.get(name));
+        sources.put(name, "default");
+    }
+
+    private long longSetting(String name, long min) {
+        long value;
+        try {
+            value = Long.parseLong(values.get(name));
+        } catch (NumberFormatException e) {
+            useDefault(name, "");
+            value = Long.parseLong(values.get(name));
+        }
+        if (value < min) {
+            useDefault(name, ", must be at least " + min);
+            value = Long.parseLong(values.get(name));
+        }
+        return value;
+    }
+
+    private int intSetting(String name, int min) {
+        long value = longSetting(name, min);
+        if (value > Integer.MAX_VALUE) {
+            useDefault(name, ", too large");
+            value = Long.parseLong(values.get(name));
+        }
+        return (int) value;
+    }
+
+    private boolean booleanSetting(String name) {
+        String value = values.get(name);
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            useDefault(name, "");
+        }
+        return Boolean.parseBoolean(values.get(name));
+    }
+
+    // Names are written in lower case with dashes: thread-pool, drop-presence
+    private <E extends Enum<E>> E enumSetting(String name, Class<E> type) {
+        try {
+            return Enum.valueOf(type, values.get(name).toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            useDefault(name, "");
+            return Enum.valueOf(type, values.get(name).toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // perSecond:burst, or off for no limit (null)
+    private Connection.RateLimit rateLimitSetting(String name) {
+        String value = values.get(name);
+        if (value.equals("off")) {
+            return null;
+        }
+        String[] parts = value.split(":");
+        try {
+            if (parts.length == 2) {
+                Connection.RateLimit limit = new Connection.RateLimit(Double.parseDouble(parts[0]),
+                        Integer.parseInt(parts[1]));
+                if (limit.perSecond() > 0 && limit.burst() > 0) {
+                    return limit;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Falls back to the default below
+        }
+        useDefault(name, ", expected perSecond:burst or off");
+        return rateLimitSetting(name);
+    }
+
+    /** Applies every setting but those the constructor takes (engine, port...). */
+    public void applyTo(Connection server) {
+        server.setSocketTuning(socketTuning);
+        server.setLegacyClientsAllowed(!binaryOnly);
+        server.setSlowConsumerPolicy(slowConsumerPolicy);
+        server.setOutboundQueueLimits(outboundQueue, Math.max(1, outboundQueue / 4));
+        server.setPresenceWindowMillis(presenceWindowMillis);
+        server.setPendingRequestTimeoutMillis(pendingTimeoutSeconds * 1000);
+        server.setHeartbeat(heartbeatSeconds * 1000, idleTimeoutSeconds * 1000);
+        server.setConnectionLimits(maxConnections, maxPerAddress);
+        server.setHandshakeTimeoutMillis(handshakeTimeoutSeconds * 1000);
+        for (Map.Entry<Connection.MessageClass, Connection.RateLimit> limit : rateLimits.entrySet()) {
+            server.setRateLimit(limit.getKey(), limit.getValue());
+        }
+        server.setRateLimitStrikes(rateLimitStrikes);
+        server.setMaxRoomMembers(maxRoomMembers);
+        server.setDrainTimeoutMillis(drainTimeoutSeconds * 1000);
+        server.setReconnectHintMillis(1000, reconnectWindowSeconds * 1000);
+        ChatSessionLogger.setOverflowPolicy(chatLogOverflow); // Shared by every node of the process
+        ChatSessionLogger.setRotation(logRotation);
+        LocalLogger.setRotation(logRotation);
+        server.setEventJournal(journal());
+    }
+
+    // Null when off or when the file cannot be opened
+    private EventJournal journal() {
+        if (journal == null && journalFile != null) {
+            try {
+                journal = EventJournal.open(Path.of(journalFile));
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Cannot open journal " + journalFile + ", events are not journaled: "
+                        + e.getMessage());
+                journalFile = null;
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Closes the journal that applyTo opened, writing what is buffered. The
+     * nodes do not close it, as they share it; call this once every node has
+     * stopped.
+     */
+    public void closeJournal() {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // One line per setting, with where its value came from
+    public String describe() {
+        StringBuilder description = new StringBuilder("Effective settings (profile ").append(profile).append("):");
+        for (Map.Entry<String, String> setting : values.entrySet()) {
+            description.append(System.lineSeparator()).append("  ").append(setting.getKey()).append(" = ")
+                    .append(setting.getValue());
+            String source = sources.get(setting.getKey());
+            if (!source.equals("default")) {
+                description.append(" (").append(source).append(')');
+            }
+        }
+        return description.toString();
+    }
+
+    String get(String name) {
+        return values.get(name);
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public boolean isDevMode() {
+        return devMode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Connection.Engine getEngine() {
+        return engine;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmx;
+    }
+
+    // 0 when there is no admin endpoint
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    public Connection.SocketTuning getSocketTuning() {
+        return socketTuning;
+    }
+}
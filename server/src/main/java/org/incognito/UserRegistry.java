@@ -0,0 +1,65 @@
+package org.incognito;
+
+import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registered users, keyed by a normalized form of their username so that names
+ * differing only in case (or in Unicode composition) are the same user.
+ *
+ * Claiming a name is a single atomic step: of two clients registering the same
+ * name at once, exactly one succeeds. The client keeps the name as it typed it.
+ */
+class UserRegistry {
+    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Case-folded form used as key. Independent of the default locale: with a
+     * Turkish locale "I".toLowerCase() would not be "i".
+     */
+    static String normalize(String username) {
+        String composed = Normalizer.normalize(username, Normalizer.Form.NFC);
+        // Upper then lower case also folds characters like the sharp s and final sigma
+        return composed.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Claims a username for a client.
+     *
+     * @return false if the name, in any case, is already taken
+     */
+    boolean register(String username, ClientHandler client) {
+        return clients.putIfAbsent(normalize(username), client) == null;
+    }
+
+    /**
+     * Releases a username, only if it still belongs to this client.
+     */
+    boolean unregister(String username, ClientHandler client) {
+        return clients.remove(normalize(username), client);
+    }
+
+    boolean isTaken(String username) {
+        return clients.containsKey(normalize(username));
+    }
+
+    ClientHandler get(String username) {
+        return username == null ? null : clients.get(normalize(username));
+    }
+
+    boolean contains(ClientHandler client) {
+        String username = client.getUsername();
+        return username != null && get(username) == client;
+    }
+
+    Collection<ClientHandler> clients() {
+        return clients.values();
+    }
+
+    int size() {
+        return clients.size();
+    }
+}
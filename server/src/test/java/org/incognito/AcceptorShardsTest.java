@@ -0,0 +1,73 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AcceptorShardsTest {
+
+    @Test
+    void threadPoolShardsShareThePortAndTheUsers() throws Exception {
+        checkShards(Connection.Engine.THREAD_POOL);
+    }
+
+    @Test
+    void nioShardsShareThePortAndTheUsers() throws Exception {
+        checkShards(Connection.Engine.NIO);
+    }
+
+    private static void checkShards(Connection.Engine engine) throws Exception {
+        Connection server = new Connection(engine, 2, 0, 0, 4);
+        Thread serverThread = new Thread(server::start, "shards-server-" + engine);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            List<MessageOutput> outputs = new ArrayList<>();
+            List<MessageInput> inputs = new ArrayList<>();
+            int clients = 40;
+            for (int i = 0; i < clients; i++) {
+                Socket socket = new Socket("localhost", server.getLocalPort());
+                sockets.add(socket);
+                WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream());
+                MessageOutput out = MessageOutput.binary(socket.getOutputStream());
+                MessageInput in = MessageInput.binary(socket.getInputStream());
+                out.writeMessage("USERLIST:user" + i);
+                assertEquals("USERNAME_ACCEPTED", in.readMessage());
+                outputs.add(out);
+                inputs.add(in);
+            }
+
+            long[] accepted = server.getAcceptedPerAcceptor();
+            assertEquals(clients, Arrays.stream(accepted).sum());
+            if (server.getAcceptorCount() > 1) {
+                assertTrue(Arrays.stream(accepted).filter(count -> count > 0).count() > 1,
+                        "Connections should be spread over the acceptors: " + Arrays.toString(accepted));
+            }
+
+            // The first and last clients pair up wherever they were accepted
+            outputs.get(0).writeMessage("PRIVATE_CHAT:user0:shared-session");
+            outputs.get(clients - 1).writeMessage("PRIVATE_CHAT:user" + (clients - 1) + ":shared-session");
+            assertEquals("PEER_CONNECTED:user" + (clients - 1) + ":shared-session", awaitPeer(inputs.get(0)));
+            assertEquals("PEER_CONNECTED:user0:shared-session", awaitPeer(inputs.get(clients - 1)));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.stop();
+        }
+    }
+
+    private static String awaitPeer(MessageInput in) throws Exception {
+        while (true) {
+            if (in.readMessage() instanceof String text && text.startsWith("PEER_CONNECTED:")) {
+                return text;
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    @Test
+    void countsConnectionsPerAddressAndInTotal() throws Exception {
+        AdmissionControl admission = new AdmissionControl(3, 2);
+        InetAddress first = InetAddress.getByName("192.0.2.1");
+        InetAddress second = InetAddress.getByName("192.0.2.2");
+
+        assertNull(admission.admit(first));
+        assertNull(admission.admit(first));
+        assertNotNull(admission.admit(first), "Third connection from one address");
+        assertNull(admission.admit(second));
+        assertNotNull(admission.admit(second), "Server full");
+        assertEquals(3, admission.getConnectionCount());
+        assertEquals(2, admission.getRejectedCount());
+
+        admission.release(first);
+        assertNull(admission.admit(second));
+    }
+
+    @Test
+    void refusesFloodsAndClosesSilentConnectionsWithThreadPool() throws Exception {
+        checkAdmission(Connection.Engine.THREAD_POOL);
+    }
+
+    @Test
+    void refusesFloodsAndClosesSilentConnectionsWithNio() throws Exception {
+        checkAdmission(Connection.Engine.NIO);
+    }
+
+    private static void checkAdmission(Connection.Engine engine) throws Exception {
+        Connection server = new Connection(engine, 1, 0, 16);
+        server.setConnectionLimits(100, 2);
+        server.setHandshakeTimeoutMillis(300);
+        Thread serverThread = new Thread(server::start, "admission-server-" + engine);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            Socket registered = new Socket("localhost", server.getLocalPort());
+            WireCodec.clientHandshake(registered.getInputStream(), registered.getOutputStream());
+            MessageOutput out = MessageOutput.binary(registered.getOutputStream());
+            MessageInput in = MessageInput.binary(registered.getInputStream());
+            out.writeMessage("USERLIST:alice");
+            assertEquals("USERNAME_ACCEPTED", in.readMessage());
+
+            Socket silent = new Socket("localhost", server.getLocalPort());
+            WireCodec.clientHandshake(silent.getInputStream(), silent.getOutputStream());
+
+            // Over the per-address limit: both kinds of client are told why
+            try (Socket refused = new Socket("localhost", server.getLocalPort())) {
+                ConnectionRejectedException e = assertThrows(ConnectionRejectedException.class,
+                        () -> WireCodec.clientHandshake(refused.getInputStream(), refused.getOutputStream()));
+                assertEquals(AdmissionControl.TOO_MANY_FROM_ADDRESS, e.getMessage());
+            }
+            try (Socket refused = new Socket("localhost", server.getLocalPort())) {
+                new ObjectOutputStream(refused.getOutputStream()).flush();
+                assertEquals(AdmissionControl.TOO_MANY_FROM_ADDRESS,
+                        new ObjectInputStream(refused.getInputStream()).readObject());
+            }
+            assertEquals(2, server.getRejectedConnections());
+
+            // The connection that never registered is closed, the registered one stays
+            assertEquals(-1, silent.getInputStream().read());
+            await(() -> server.getConnectionCount() == 1);
+            assertEquals(1, server.getHandshakeTimeouts());
+            assertNotNull(server.getClientByUsername("alice"));
+
+            // Its slot is free again
+            try (Socket next = new Socket("localhost", server.getLocalPort())) {
+                assertEquals(WireCodec.VERSION, WireCodec.clientHandshake(next.getInputStream(), next.getOutputStream()));
+            }
+
+            registered.close();
+            silent.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,81 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.SimpleFormatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncLogWriterTest {
+
+    private static final int THREADS = 4;
+    private static final int RECORDS = 2000;
+
+    @Test
+    void blockingWritersLoseNothingAndKeepTheirOrder() throws Exception {
+        Path file = Files.createTempFile("async-log", ".log");
+        try {
+            AsyncLogWriter writer = new AsyncLogWriter(file, new SimpleFormatter(), "test", 8,
+                    AsyncLogWriter.OverflowPolicy.BLOCK);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                threads.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < RECORDS; i++) {
+                        writer.log(Level.INFO, "log", "record " + thread + ":" + i);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(writer.flush(5000));
+
+            List<String> records = records(file);
+            assertEquals(THREADS * RECORDS, records.size());
+            assertEquals(0, writer.getDroppedCount());
+            int[] next = new int[THREADS];
+            for (String record : records) {
+                String[] parts = record.substring("INFO: record ".length()).split(":");
+                int thread = Integer.parseInt(parts[0]);
+                assertEquals(next[thread]++, Integer.parseInt(parts[1]), "Records of one thread out of order");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void droppedRecordsAreCountedAndReported() throws Exception {
+        Path file = Files.createTempFile("async-log", ".log");
+        try {
+            AsyncLogWriter writer = new AsyncLogWriter(file, new SimpleFormatter(), "test", 1,
+                    AsyncLogWriter.OverflowPolicy.DROP);
+            for (int i = 0; i < RECORDS * 10; i++) {
+                writer.log(Level.INFO, "log", "record " + i);
+            }
+            assertTrue(writer.flush(5000));
+            writer.log(Level.INFO, "log", "last"); // Carries the count of the last drops
+            assertTrue(writer.flush(5000));
+
+            long written = records(file).stream().filter(record -> !record.equals("INFO: last")).count();
+            assertEquals(RECORDS * 10, written + writer.getDroppedCount());
+            if (writer.getDroppedCount() > 0) {
+                String log = Files.readString(file);
+                assertTrue(log.contains("log records dropped"), log);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // The message lines written by SimpleFormatter
+    private static List<String> records(Path file) throws Exception {
+        return Files.readAllLines(file).stream().filter(line -> line.startsWith("INFO: ")).toList();
+    }
+}
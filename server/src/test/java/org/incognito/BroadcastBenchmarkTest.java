@@ -0,0 +1,85 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the CPU time of one broadcast when every recipient encodes the
+ * message itself with the time when it is encoded once and the same bytes are
+ * written to each recipient.
+ *
+ * Recipients are half binary and half legacy outputs writing to a null stream,
+ * so the figures cover encoding and output buffering but not the network. Run
+ * with -Dincognito.broadcast.recipients=10,100,1000,10000 for other sizes.
+ */
+class BroadcastBenchmarkTest {
+
+    private static final int[] RECIPIENTS = parse(System.getProperty("incognito.broadcast.recipients", "10,100,1000"));
+    private static final int ROUNDS = 50;
+
+    private record Result(int recipients, long perRecipientNanos, long sharedNanos) {
+        @Override
+        public String toString() {
+            return String.format("%6d recipients: %9.1f us/broadcast encoding per recipient, %9.1f us shared (x%.1f)",
+                    recipients, perRecipientNanos / 1000.0, sharedNanos / 1000.0,
+                    (double) perRecipientNanos / Math.max(sharedNanos, 1));
+        }
+    }
+
+    @Test
+    void encodingOnceCostsLessThanEncodingPerRecipient() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (int recipients : RECIPIENTS) {
+            List<MessageOutput> outputs = outputs(recipients);
+            measure(outputs, false); // Warm up both paths
+            measure(outputs, true);
+            results.add(new Result(recipients, measure(outputs, false), measure(outputs, true)));
+        }
+        results.forEach(System.out::println);
+
+        Result largest = results.get(results.size() - 1);
+        assertTrue(largest.sharedNanos() < largest.perRecipientNanos(),
+                "Encoding once should be cheaper with many recipients: " + largest);
+    }
+
+    private static List<MessageOutput> outputs(int recipients) throws IOException {
+        List<MessageOutput> outputs = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            OutputStream sink = OutputStream.nullOutputStream();
+            outputs.add(i % 2 == 0 ? MessageOutput.binary(sink) : MessageOutput.serialized(sink));
+        }
+        return outputs;
+    }
+
+    // CPU time of this thread per broadcast, averaged over the rounds
+    private static long measure(List<MessageOutput> outputs, boolean shared) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            // A fresh message each round, as a broadcast never repeats one
+            Object message = "USERLIST:alice,bob,carol,dave,erin,frank,grace,heidi:" + round;
+            Object sent = shared ? EncodedMessage.of(message) : message;
+            for (MessageOutput output : outputs) {
+                output.writeMessage(sent);
+            }
+        }
+        return (threads.getCurrentThreadCpuTime() - start) / ROUNDS;
+    }
+
+    private static int[] parse(String counts) {
+        String[] parts = counts.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,180 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterTest {
+
+    private static final class Client {
+        final Socket socket;
+        final MessageOutput out;
+        final PresenceTracker tracker = new PresenceTracker(new PresenceTracker.Listener() {
+            @Override
+            public void usersReset(List<String> users) {
+            }
+
+            @Override
+            public void userAdded(String username) {
+            }
+
+            @Override
+            public void userRemoved(String username) {
+            }
+        });
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+
+        Client(Connection server, String username) throws Exception {
+            socket = new Socket("localhost", server.getLocalPort());
+            WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream());
+            out = MessageOutput.binary(socket.getOutputStream());
+            MessageInput in = MessageInput.binary(socket.getInputStream());
+            out.writeMessage("USERLIST:" + username);
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        Object message = in.readMessage();
+                        if (message instanceof String text && Presence.isPresenceMessage(text)) {
+                            String resync = tracker.handle(text);
+                            if (resync != null) {
+                                out.writeMessage(resync);
+                            }
+                        } else {
+                            received.add(message);
+                        }
+                    }
+                } catch (Exception e) {
+                    // Socket closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        Object await(Predicate<Object> expected) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (true) {
+                Object message = received.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                assertNotNull(message, "Expected message not received");
+                if (expected.test(message)) {
+                    return message;
+                }
+            }
+        }
+
+        void await(String expected) throws InterruptedException {
+            await(message -> expected.equals(message));
+        }
+
+        void awaitUsers(Set<String> expected) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!expected.equals(new TreeSet<>(tracker.getUsers())) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, new TreeSet<>(tracker.getUsers()));
+        }
+    }
+
+    private static Connection startNode(ClusterBus bus, String nodeId, Connection.Engine engine) {
+        Connection server = new Connection(engine, 1, 0);
+        server.setPresenceWindowMillis(0);
+        server.joinCluster(bus, nodeId);
+        Thread thread = new Thread(server::start, "cluster-test-" + nodeId);
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    @Test
+    void usersOfDifferentNodesSeeAndTalkToEachOther() throws Exception {
+        LoopbackBus bus = new LoopbackBus();
+        Connection first = startNode(bus, "first", Connection.Engine.NIO);
+        Connection second = startNode(bus, "second", Connection.Engine.THREAD_POOL);
+        try {
+            Client alice = new Client(first, "alice");
+            alice.await("USERNAME_ACCEPTED");
+            Client bob = new Client(second, "bob");
+            bob.await("USERNAME_ACCEPTED");
+
+            // Names are unique across the cluster
+            Client impostor = new Client(second, "ALICE");
+            impostor.await("USERNAME_TAKEN");
+            impostor.socket.close();
+
+            alice.awaitUsers(Set.of("alice", "bob"));
+            bob.awaitUsers(Set.of("alice", "bob"));
+
+            // Pairing by session ID across nodes
+            alice.out.writeMessage("PRIVATE_CHAT:alice:cross-node");
+            alice.await("WAITING_FOR_PEER:cross-node");
+            bob.out.writeMessage("PRIVATE_CHAT:bob:cross-node");
+            alice.await("PEER_CONNECTED:bob:cross-node");
+            bob.await("PEER_CONNECTED:alice:cross-node");
+
+            Client carol = new Client(second, "carol");
+            carol.await("USERNAME_ACCEPTED");
+            carol.awaitUsers(Set.of("carol"));
+
+            // Chat messages and key exchanges reach the peer's node
+            alice.out.writeMessage(new ChatMessage("alice", "ciphertext"));
+            ChatMessage chat = (ChatMessage) bob.await(message -> message instanceof ChatMessage);
+            assertEquals("ciphertext", chat.getEncryptedContent());
+            bob.out.writeMessage(new KeyExchangeMessage(KeyExchangeMessage.Type.PUBLIC_KEY_OFFER, "bob", "alice"));
+            KeyExchangeMessage offer = (KeyExchangeMessage) alice.await(message -> message instanceof KeyExchangeMessage);
+            assertEquals("bob", offer.getSenderUsername());
+
+            // bob leaves: the session ends on both nodes and alice is available again
+            bob.socket.close();
+            alice.await("PEER_DISCONNECTED:bob");
+            carol.awaitUsers(Set.of("alice", "carol"));
+
+            // A stopped node takes its users along
+            second.stop();
+            alice.awaitUsers(Set.of("alice"));
+            alice.socket.close();
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    void waitingUserIsOfferedAgainWhenAMeetingFails() throws Exception {
+        LoopbackBus bus = new LoopbackBus();
+        Connection first = startNode(bus, "first", Connection.Engine.NIO);
+        Connection second = startNode(bus, "second", Connection.Engine.THREAD_POOL);
+        try {
+            Client alice = new Client(first, "alice");
+            alice.await("USERNAME_ACCEPTED");
+            alice.out.writeMessage("PRIVATE_CHAT:alice:retry");
+            alice.await("WAITING_FOR_PEER:retry");
+
+            // A node meets alice on the bus, which forgets her, but cannot open the session
+            assertEquals(new ClusterBus.Member("first", "alice"),
+                    bus.rendezvous("retry", new ClusterBus.Member("second", "bob")));
+            bus.send("first", new ClusterMessage(ClusterMessage.Type.SESSION_REFUSED, "second", "bob", "alice",
+                    "retry", null));
+
+            // Her node offers her again, and the next peer meets her
+            Client carol = new Client(second, "carol");
+            carol.await("USERNAME_ACCEPTED");
+            carol.out.writeMessage("PRIVATE_CHAT:carol:retry");
+            alice.await("PEER_CONNECTED:carol:retry");
+            carol.await("PEER_CONNECTED:alice:retry");
+            alice.socket.close();
+            carol.socket.close();
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+}
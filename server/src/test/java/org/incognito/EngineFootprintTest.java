@@ -0,0 +1,111 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures what idle connections cost on each engine: platform threads (pool
+ * threads, or the carriers running virtual threads) and heap per connection.
+ *
+ * Connections open their object streams and then stay silent, like lobby users
+ * waiting for a peer. Heap figures include the test's own client sockets, and
+ * the stacks of platform threads live outside the heap. Run with -Dincognito.footprint.connections=50000 (and a
+ * matching file descriptor limit) for a full-size measurement.
+ */
+class EngineFootprintTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("incognito.footprint.connections", 200);
+
+    private record Footprint(Connection.Engine engine, int platformThreads, int carrierThreads, long heapBytes) {
+        @Override
+        public String toString() {
+            return String.format("%-16s %6d connections: +%5d platform threads (%d carriers), %7.1f KiB heap/connection",
+                    engine, CONNECTIONS, platformThreads, carrierThreads, heapBytes / 1024.0 / CONNECTIONS);
+        }
+    }
+
+    @Test
+    void virtualThreadsHoldIdleConnectionsWithFewPlatformThreads() throws Exception {
+        Footprint pool = measure(Connection.Engine.THREAD_POOL);
+        Footprint virtual = measure(Connection.Engine.VIRTUAL_THREADS);
+        Footprint nio = measure(Connection.Engine.NIO);
+        System.out.println(pool);
+        System.out.println(virtual);
+        System.out.println(nio);
+
+        assertTrue(pool.platformThreads() >= CONNECTIONS, "Thread pool should use a thread per connection");
+        assertTrue(virtual.platformThreads() < CONNECTIONS / 2,
+                "Virtual threads should not need a platform thread per connection: " + virtual);
+        assertTrue(virtual.carrierThreads() <= Runtime.getRuntime().availableProcessors() + 1,
+                "Carriers should stay bounded by the scheduler parallelism: " + virtual);
+    }
+
+    private static Footprint measure(Connection.Engine engine) throws Exception {
+        Connection server = new Connection(engine, 2, 0);
+        server.setConnectionLimits(CONNECTIONS, CONNECTIONS); // Every connection comes from localhost
+        Thread serverThread = new Thread(server::start, "footprint-server-" + engine);
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        settle();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        int carriersBefore = countCarriers();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                Socket socket = new Socket("localhost", server.getLocalPort());
+                new ObjectInputStream(socket.getInputStream()); // Waits for the server's stream header
+                new ObjectOutputStream(socket.getOutputStream()).flush();
+                sockets.add(socket);
+            }
+            Thread.sleep(500); // Let the handlers park in their first read
+
+            settle();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+            int carriers = countCarriers() - carriersBefore;
+            long heap = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+            return new Footprint(engine, threads, Math.max(carriers, 0), Math.max(heap, 0));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.stop();
+        }
+    }
+
+    // Waits for threads of a previous measurement to exit and for garbage to be collected
+    private static void settle() throws InterruptedException {
+        int stableReads = 0;
+        int lastCount = -1;
+        for (int i = 0; i < 50 && stableReads < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+            int count = ManagementFactory.getThreadMXBean().getThreadCount();
+            stableReads = count == lastCount ? stableReads + 1 : 0;
+            lastCount = count;
+        }
+    }
+
+    // Platform threads of the default virtual thread scheduler
+    private static int countCarriers() {
+        int carriers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("ForkJoinPool-") && thread.getName().contains("worker")) {
+                carriers++;
+            }
+        }
+        return carriers;
+    }
+}
@@ -0,0 +1,95 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventJournalTest {
+
+    @Test
+    void decoderReadsBackEveryEventWithItsNames() throws Exception {
+        Path file = Files.createTempFile("events", ".journal");
+        Files.delete(file); // The journal writes its header into a new file
+        try {
+            EventJournal journal = EventJournal.open(file);
+            journal.record(EventJournal.Type.SESSION_OPENED, "alice", "bob", "s-1", 0);
+            journal.record(EventJournal.Type.MESSAGE_FORWARDED, "alice", "bob", "s-1", 120);
+            journal.record(EventJournal.Type.ROOM_MESSAGE, "carol", null, "lobby, east", 7);
+            journal.record(EventJournal.Type.USER_JOINED, "a".repeat(100), null, null, 0);
+            journal.close();
+
+            // Reopening restarts the IDs, which now mean other names
+            journal = EventJournal.open(file);
+            journal.record(EventJournal.Type.SESSION_CLOSED, "bob", "alice", "s-1", 0);
+            journal.close();
+            assertEquals(0, Files.size(file) % EventJournal.RECORD_SIZE);
+
+            List<String> csv = decode(file, true);
+            assertEquals(List.of(
+                    "time,event,user,peer,session,value",
+                    "START,,,,0",
+                    "SESSION_OPENED,alice,bob,s-1,0",
+                    "MESSAGE_FORWARDED,alice,bob,s-1,120",
+                    "ROOM_MESSAGE,carol,,\"lobby, east\",7",
+                    "USER_JOINED," + "a".repeat(100) + ",,,0",
+                    "START,,,,0",
+                    "SESSION_CLOSED,bob,alice,s-1,0"), csv.stream().map(line -> line.startsWith("time") ? line
+                            : line.substring(line.indexOf(',') + 1)).toList());
+
+            List<String> text = decode(file, false);
+            assertEquals(7, text.size());
+            assertTrue(text.get(2).endsWith("MESSAGE_FORWARDED alice -> bob in s-1, 120 bytes"), text.get(2));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void recordingKnownNamesDoesNotAllocate() throws Exception {
+        Path file = Files.createTempFile("events", ".journal");
+        Files.delete(file);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try {
+            EventJournal journal = EventJournal.open(file);
+            String user = "alice";
+            String peer = "bob";
+            String session = "session-1";
+            for (int i = 0; i < 20_000; i++) { // Warm up, and define the names
+                journal.record(EventJournal.Type.MESSAGE_FORWARDED, user, peer, session, i);
+            }
+
+            long thread = Thread.currentThread().threadId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100_000; i++) {
+                journal.record(EventJournal.Type.MESSAGE_FORWARDED, user, peer, session, i);
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            journal.close();
+
+            // Far less than one byte per event; handing full buffers to the flusher allocates a little
+            assertTrue(allocated < 16 * 1024, allocated + " bytes allocated for 100000 events");
+            assertEquals(0, journal.getDroppedEvents());
+            assertEquals(120_001, decode(file, true).size() - 1);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<String> decode(Path file, boolean csv) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(file)) {
+            EventJournalDecoder.decode(in, new PrintStream(out, true, StandardCharsets.UTF_8), csv);
+        }
+        return out.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+}
@@ -0,0 +1,50 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashedWheelTimerTest {
+
+    @Test
+    void runsDueTasksAndSkipsCancelledOnes() throws Exception {
+        // Small wheel, so that the longer deadlines need extra turns
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, 8);
+        try {
+            int tasks = 20_000;
+            CountDownLatch done = new CountDownLatch(tasks / 2);
+            AtomicInteger early = new AtomicInteger();
+            AtomicInteger ranCancelled = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < tasks; i++) {
+                long delay = 20 + i % 300;
+                boolean cancel = i % 2 == 1;
+                HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+                    if (cancel) {
+                        ranCancelled.incrementAndGet();
+                    } else if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                        early.incrementAndGet();
+                    }
+                    done.countDown();
+                }, delay, TimeUnit.MILLISECONDS);
+                if (cancel) {
+                    assertTrue(timeout.cancel());
+                    assertFalse(timeout.cancel());
+                }
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS), "Timer should run every task due");
+            Thread.sleep(50);
+            assertEquals(0, early.get(), "No task may run before its deadline");
+            assertEquals(0, ranCancelled.get());
+            assertEquals(0, timer.pending());
+            assertEquals(tasks / 2, timer.expiredCount());
+        } finally {
+            timer.stop();
+        }
+    }
+}
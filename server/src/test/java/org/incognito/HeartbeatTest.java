@@ -0,0 +1,77 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeartbeatTest {
+
+    private static Socket register(Connection server, String username, int protocolVersion, boolean answerPings)
+            throws Exception {
+        Socket socket = new Socket("localhost", server.getLocalPort());
+        WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream(), protocolVersion);
+        MessageOutput out = MessageOutput.binary(socket.getOutputStream());
+        MessageInput in = MessageInput.binary(socket.getInputStream());
+        out.writeMessage("USERLIST:" + username);
+        assertEquals("USERNAME_ACCEPTED", in.readMessage());
+
+        if (answerPings) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        if (in.readMessage() instanceof String text && text.startsWith(Heartbeat.PING)) {
+                            out.writeMessage(Heartbeat.pong(text));
+                        }
+                    }
+                } catch (Exception e) {
+                    // Socket closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return socket;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void silentClientsAreClosedAndLiveOnesMeasured() throws Exception {
+        Connection server = new Connection(Connection.Engine.NIO, 1, 0);
+        server.setHeartbeat(100, 500);
+        Thread serverThread = new Thread(server::start, "heartbeat-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            Socket live = register(server, "live", WireCodec.VERSION, true);
+            Socket halfOpen = register(server, "half-open", WireCodec.VERSION, false);
+            Socket legacy = register(server, "legacy", 2, false);
+
+            await(() -> server.getClientByUsername("half-open") == null);
+            assertEquals(1, server.getIdleConnectionsClosed());
+            await(() -> server.getRoundTripMicros().containsKey("live"));
+
+            // Answering pings keeps a client registered, older clients are not pinged
+            Thread.sleep(700);
+            assertNotNull(server.getClientByUsername("live"));
+            assertNotNull(server.getClientByUsername("legacy"));
+            assertEquals(1, server.getIdleConnectionsClosed());
+
+            live.close();
+            halfOpen.close();
+            legacy.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
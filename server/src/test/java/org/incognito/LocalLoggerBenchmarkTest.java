@@ -0,0 +1,104 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the lines per second of the file behind LocalLogger with the way it
+ * used to write: opening, appending to and closing the file for every line.
+ * The rates are only printed, as timings vary on a loaded machine; run with
+ * -Dincognito.locallog.lines=200000 for a longer measurement, which also
+ * asserts that the buffered channel is faster. Both write to temporary files,
+ * never to the process's own log.
+ */
+class LocalLoggerBenchmarkTest {
+
+    private static final String LINES_PROPERTY = "incognito.locallog.lines";
+    private static final int LINES = Integer.getInteger(LINES_PROPERTY, 20_000);
+
+    @Test
+    void bufferedChannelWritesFasterThanOpeningTheFilePerLine() throws Exception {
+        Path dir = Files.createTempDirectory("local-logger");
+        Path before = dir.resolve("before.log");
+        Path after = dir.resolve("after.log");
+        try {
+            BufferedLogFile log = new BufferedLogFile(after, LogRotator.Policy.NONE);
+            writePerLine(before, LINES / 10); // Warm up both paths
+            for (int i = 0; i < LINES / 10; i++) {
+                log.log("INFO", "warm-up " + i);
+            }
+
+            long start = System.nanoTime();
+            writePerLine(before, LINES);
+            double perLineRate = rate(start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < LINES; i++) {
+                log.log("INFO", "benchmark line " + i);
+            }
+            log.flush(); // Counted: the lines are on disk once it returns
+            double channelRate = rate(start);
+
+            System.out.printf("LocalLogger, %d lines: %,.0f lines/s opening the file per line, %,.0f lines/s "
+                    + "buffered channel (x%.1f)%n", LINES, perLineRate, channelRate, channelRate / perLineRate);
+
+            long expected = 0;
+            for (int i = 0; i < LINES / 10; i++) {
+                expected += ("INFO: warm-up " + i + System.lineSeparator()).length();
+            }
+            for (int i = 0; i < LINES; i++) {
+                expected += ("INFO: benchmark line " + i + System.lineSeparator()).length();
+            }
+            assertEquals(expected, Files.size(after), "Every line should be written");
+            if (System.getProperty(LINES_PROPERTY) != null) {
+                assertTrue(channelRate > perLineRate, "Buffered channel should be faster");
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    @Test
+    void linesAreWrittenWithinTheFlushInterval() throws Exception {
+        Path dir = Files.createTempDirectory("local-logger");
+        Path file = dir.resolve("local.log");
+        try {
+            BufferedLogFile log = new BufferedLogFile(file, LogRotator.Policy.NONE);
+            log.log("WARNING", "flushed by time");
+            long deadline = System.nanoTime() + 50 * BufferedLogFile.FLUSH_INTERVAL_MILLIS * 1_000_000;
+            while (!Files.exists(file) || !Files.readString(file).contains("WARNING: flushed by time")) {
+                assertTrue(System.nanoTime() < deadline, "Line not written by the periodic flush");
+                Thread.sleep(BufferedLogFile.FLUSH_INTERVAL_MILLIS / 4);
+            }
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    // The former LocalLogger.log: open, append, close for every line
+    private static void writePerLine(Path file, int lines) throws Exception {
+        for (int i = 0; i < lines; i++) {
+            Files.write(file, ("INFO: benchmark line " + i + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static void deleteAll(Path dir) throws Exception {
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static double rate(long start) {
+        return LINES / ((System.nanoTime() - start) / 1e9);
+    }
+}
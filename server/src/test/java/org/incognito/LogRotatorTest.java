@@ -0,0 +1,108 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.SimpleFormatter;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogRotatorTest {
+
+    private static final int RECORDS = 2000;
+
+    @Test
+    void rotatedSegmentsAreCompressedWithoutLosingRecords() throws Exception {
+        Path directory = Files.createTempDirectory("rotation");
+        try {
+            Path file = directory.resolve("chat.log");
+            AsyncLogWriter writer = new AsyncLogWriter(file, new SimpleFormatter(), "test", 64,
+                    AsyncLogWriter.OverflowPolicy.BLOCK);
+            writer.setRotation(new LogRotator.Policy(8 * 1024, 0, 0)); // Keeps every segment
+            write(writer);
+            LogRotator.awaitCompression(5000);
+
+            List<Path> segments = segments(directory);
+            assertTrue(segments.size() > 1, "Expected several segments, got " + segments);
+            assertTrue(Files.size(file) < 8 * 1024 + 4096, "The current file should have been rotated");
+            List<String> records = new ArrayList<>();
+            for (Path segment : segments) {
+                records.addAll(records(decompress(segment)));
+            }
+            records.addAll(records(Files.readString(file)));
+            for (int i = 0; i < RECORDS; i++) { // In order across segments
+                assertEquals("INFO: record " + i, records.get(i));
+            }
+            assertEquals(RECORDS, records.size());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void onlyTheNewestSegmentsAreKept() throws Exception {
+        Path directory = Files.createTempDirectory("rotation");
+        try {
+            Path file = directory.resolve("chat.log");
+            AsyncLogWriter writer = new AsyncLogWriter(file, new SimpleFormatter(), "test", 64,
+                    AsyncLogWriter.OverflowPolicy.BLOCK);
+            writer.setRotation(new LogRotator.Policy(0, 1, 3)); // Rotated with every batch
+            write(writer);
+            LogRotator.awaitCompression(5000);
+
+            List<Path> segments = segments(directory);
+            assertEquals(3, segments.size(), segments.toString());
+            List<String> newest = records(decompress(segments.get(2)));
+            assertFalse(newest.isEmpty());
+            int last = Integer.parseInt(newest.get(newest.size() - 1).substring("INFO: record ".length()));
+            assertTrue(last > RECORDS / 2, "The newest segment should hold the last records, not " + last);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // Batches of ten, each flushed, so that the writer checks rotation often
+    private static void write(AsyncLogWriter writer) {
+        for (int i = 0; i < RECORDS; i++) {
+            writer.log(Level.INFO, "log", "record " + i);
+            if (i % 10 == 9) {
+                assertTrue(writer.flush(5000));
+            }
+        }
+        assertTrue(writer.flush(5000));
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log.gz")).sorted().toList();
+        }
+    }
+
+    private static String decompress(Path segment) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(segment))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<String> records(String log) {
+        return log.lines().filter(line -> line.startsWith("INFO: ")).toList();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
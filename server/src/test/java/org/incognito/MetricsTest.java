@@ -0,0 +1,133 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 200_000;
+
+    // Keeps its messages queued, as no writer runs for it
+    private static final class QueuedClient extends ClientHandler {
+        QueuedClient(Connection server, String username) {
+            super(server, new Socket()); // Never connected
+            setUsername(username);
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+    }
+
+    @Test
+    void relayedMessagesKeyExchangesAndGaugesAreCounted() throws Exception {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setPresenceWindowMillis(0);
+        Metrics metrics = server.getMetrics();
+        try {
+            List<QueuedClient> clients = new ArrayList<>();
+            for (String name : List.of("alice", "bob", "carol")) {
+                QueuedClient client = new QueuedClient(server, name);
+                assertTrue(server.registerUser(name, client));
+                server.joinRoom(client, "lobby");
+                clients.add(client);
+            }
+            server.forwardPrivateMessage(clients.get(0), ChatFrame.of(new ChatMessage("alice", "ciphertext")));
+            server.handleKeyExchange(clients.get(0),
+                    new KeyExchangeMessage(KeyExchangeMessage.Type.PUBLIC_KEY_OFFER, "alice", "bob"));
+
+            assertEquals(2, metrics.get("messages.relayed"), "One per room member but the sender");
+            assertEquals(1, metrics.get("key-exchanges.public-key-offer"));
+            assertEquals(0, metrics.get("key-exchanges.exchange-error"));
+            assertEquals(3, metrics.get("users"));
+            assertEquals(0, metrics.get("sessions.active"));
+            long queued = 0;
+            for (QueuedClient client : clients) {
+                queued += client.getOutboundQueueDepth();
+            }
+            assertEquals(queued, metrics.get("outbound.queued"));
+            assertTrue(queued > 0);
+
+            ObjectName name = new ObjectName("org.incognito:type=Server,port=test-" + System.nanoTime());
+            metrics.registerMBean(name.toString());
+            try {
+                MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+                assertEquals(2L, beans.getAttribute(name, "messages.relayed"));
+                assertEquals(3L, beans.getAttribute(name, "users"));
+                assertEquals(metrics.snapshot().size(), beans.getMBeanInfo(name).getAttributes().length);
+            } finally {
+                metrics.unregisterMBean();
+            }
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void adminEndpointAnswersWithPlainText() throws Exception {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        try (AdminEndpoint admin = new AdminEndpoint(0, List.of(server));
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), admin.getLocalPort())) {
+            InputStream in = socket.getInputStream();
+            String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals(server.getMetrics().format(), text);
+            assertTrue(text.lines().anyMatch(line -> line.equals("users 0")), text);
+            assertTrue(text.lines().allMatch(line -> line.matches("[a-z.-]+ \\d+")), text);
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Threads add while the counter is read: reads never go back, and no increment is lost
+    @Test
+    void counterKeepsEveryConcurrentIncrement() throws Exception {
+        Metrics metrics = new Metrics();
+        LongAdder counter = metrics.counter("test.increments", "Incremented by the test");
+        ObjectName name = new ObjectName("org.incognito:type=Server,port=test-" + System.nanoTime());
+        metrics.registerMBean(name.toString());
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    for (int i = 0; i < INCREMENTS; i++) {
+                        counter.increment();
+                    }
+                }));
+            }
+            long last = 0;
+            while (threads.stream().anyMatch(Thread::isAlive)) {
+                long read = (Long) beans.getAttribute(name, "test.increments");
+                assertTrue(read >= last, "Read " + read + " after " + last);
+                last = read;
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            long expected = (long) THREADS * INCREMENTS;
+            assertEquals(expected, metrics.get("test.increments"));
+            assertEquals(expected, beans.getAttribute(name, "test.increments"));
+            ReflectionException e = assertThrows(ReflectionException.class,
+                    () -> beans.invoke(name, "reset", new Object[0], new String[0]));
+            assertInstanceOf(NoSuchMethodException.class, e.getTargetException());
+        } finally {
+            metrics.unregisterMBean();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers private chat pairing from many threads. Every client asks for two
+ * session IDs at once, and several clients compete for each ID, so joins race
+ * with each other and with the client's own second request.
+ */
+class PairingStressTest {
+
+    private static final int CLIENTS = 400;
+    private static final int SESSION_IDS = 100;
+    private static final int ROUNDS = 20;
+
+    // Keeps its messages queued, so the test can read them back
+    private static final class QueuedClient extends ClientHandler {
+        QueuedClient(Connection server, String username) {
+            super(server, new Socket()); // Never connected
+            setUsername(username);
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+
+        List<String> replies() {
+            List<String> replies = new ArrayList<>();
+            Object message;
+            while ((message = getOutbound().poll()) != null) {
+                if (message instanceof EncodedMessage encoded) {
+                    message = encoded.getMessage(); // Presence updates are encoded once for everyone
+                }
+                replies.add((String) message);
+            }
+            return replies;
+        }
+    }
+
+    @Test
+    void everyClientJoinsAtMostOneSessionOfExactlyTwo() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        Random random = new Random(42);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+                server.setOutboundQueueLimits(16, 16);
+                List<QueuedClient> clients = new ArrayList<>();
+                List<Runnable> requests = new ArrayList<>();
+                for (int i = 0; i < CLIENTS; i++) {
+                    QueuedClient client = new QueuedClient(server, "user" + i);
+                    clients.add(client);
+                    for (int r = 0; r < 2; r++) {
+                        String sessionId = "session" + random.nextInt(SESSION_IDS);
+                        requests.add(() -> server.handlePrivateChatRequest(client, sessionId, client.getUsername()));
+                    }
+                }
+                Collections.shuffle(requests, random);
+
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> done = new ArrayList<>();
+                for (Runnable request : requests) {
+                    done.add(pool.submit(() -> {
+                        start.await();
+                        request.run();
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : done) {
+                    future.get();
+                }
+
+                // sessionId -> users told they are connected in it
+                Map<String, List<String>> members = new HashMap<>();
+                Map<String, String> peers = new HashMap<>();
+                for (QueuedClient client : clients) {
+                    List<String> connected = new ArrayList<>();
+                    for (String reply : client.replies()) {
+                        if (reply.startsWith("PEER_CONNECTED:")) {
+                            connected.add(reply);
+                        }
+                    }
+                    assertTrue(connected.size() <= 1, client.getUsername() + " joined twice: " + connected);
+                    if (!connected.isEmpty()) {
+                        String[] parts = connected.get(0).split(":");
+                        String peer = parts[1];
+                        String sessionId = parts[2];
+                        assertNotEquals(client.getUsername(), peer);
+                        members.computeIfAbsent(sessionId, id -> new ArrayList<>()).add(client.getUsername());
+                        peers.put(client.getUsername(), peer);
+                    }
+                }
+                for (Map.Entry<String, List<String>> session : members.entrySet()) {
+                    List<String> users = session.getValue();
+                    assertEquals(2, users.size(), "Session " + session.getKey() + " has members " + users);
+                    assertEquals(users.get(1), peers.get(users.get(0)));
+                    assertEquals(users.get(0), peers.get(users.get(1)));
+                }
+                assertFalse(members.isEmpty());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void pendingRequestsExpireAndLeaveWithTheirClient() throws Exception {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setPendingRequestTimeoutMillis(200);
+        server.setPresenceWindowMillis(0);
+        try {
+            QueuedClient alice = new QueuedClient(server, "alice");
+            QueuedClient bob = new QueuedClient(server, "bob");
+            assertTrue(server.registerUser("alice", alice));
+            assertTrue(server.registerUser("bob", bob));
+            alice.replies();
+            server.handlePrivateChatRequest(alice, "abandoned", "alice");
+            server.handlePrivateChatRequest(bob, "left", "bob");
+            server.handlePrivateChatRequest(bob, "left-too", "bob");
+            assertEquals(3, server.getPendingPrivateChatCount());
+
+            // Leaving drops every request of the client at once
+            server.removeUser("bob", bob);
+            assertEquals(1, server.getPendingPrivateChatCount());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (server.getPendingPrivateChatCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, server.getPendingPrivateChatCount());
+            assertEquals(1, server.getExpiredPendingRequests());
+            assertTrue(alice.replies().contains("PEER_WAIT_EXPIRED:abandoned"));
+
+            // A new request for the same ID waits again
+            server.handlePrivateChatRequest(alice, "abandoned", "alice");
+            assertEquals(List.of("WAITING_FOR_PEER:abandoned"), alice.replies());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTest {
+
+    private static final class RecordingListener implements PresenceTracker.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void usersReset(List<String> users) {
+            events.add("reset " + users);
+        }
+
+        @Override
+        public void userAdded(String username) {
+            events.add("+" + username);
+        }
+
+        @Override
+        public void userRemoved(String username) {
+            events.add("-" + username);
+        }
+    }
+
+    @Test
+    void trackerAppliesDeltasInOrderAndResyncsOnGap() {
+        RecordingListener listener = new RecordingListener();
+        PresenceTracker tracker = new PresenceTracker(listener);
+
+        // Deltas before the first snapshot are already part of it
+        assertNull(tracker.handle(Presence.delta(3, List.of(new Presence.Update(Presence.Change.JOIN, "carol")))));
+        assertNull(tracker.handle(Presence.snapshot(4, List.of("alice", "bob"))));
+        assertNull(tracker.handle(Presence.delta(5, List.of(
+                new Presence.Update(Presence.Change.JOIN, "carol"),
+                new Presence.Update(Presence.Change.BUSY, "alice")))));
+        assertNull(tracker.handle(Presence.delta(5, List.of(new Presence.Update(Presence.Change.LEAVE, "bob")))));
+        assertEquals(List.of("reset [alice, bob]", "+carol", "-alice"), listener.events);
+        assertEquals(List.of("bob", "carol"), tracker.getUsers());
+
+        // Version 6 went missing: one resync request, further deltas wait for the snapshot
+        assertEquals(Presence.sync(5),
+                tracker.handle(Presence.delta(7, List.of(new Presence.Update(Presence.Change.LEAVE, "bob")))));
+        assertNull(tracker.handle(Presence.delta(8, List.of(new Presence.Update(Presence.Change.LEAVE, "carol")))));
+        assertNull(tracker.handle(Presence.snapshot(8, List.of("dave"))));
+        assertEquals(List.of("dave"), tracker.getUsers());
+        assertEquals(8, tracker.getVersion());
+    }
+
+    private static final class Client {
+        final Socket socket;
+        final MessageOutput out;
+        final PresenceTracker tracker = new PresenceTracker(new RecordingListener());
+        final AtomicInteger presenceMessages = new AtomicInteger();
+        final BlockingQueue<String> presenceLog = new LinkedBlockingQueue<>();
+        volatile String lastUserList;
+
+        Client(Connection server, String username, int protocolVersion) throws Exception {
+            socket = new Socket("localhost", server.getLocalPort());
+            WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream(), protocolVersion);
+            out = MessageOutput.binary(socket.getOutputStream());
+            MessageInput in = MessageInput.binary(socket.getInputStream());
+            out.writeMessage("USERLIST:" + username);
+            assertEquals("USERNAME_ACCEPTED", in.readMessage());
+
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        if (in.readMessage() instanceof String text) {
+                            if (Presence.isPresenceMessage(text)) {
+                                presenceMessages.incrementAndGet();
+                                presenceLog.add(text);
+                                String resync = tracker.handle(text);
+                                if (resync != null) {
+                                    out.writeMessage(resync);
+                                }
+                            } else if (text.startsWith("USERLIST:")) {
+                                lastUserList = text.substring("USERLIST:".length());
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    // Socket closed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void await(String expected) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            String message;
+            do {
+                message = presenceLog.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                assertNotNull(message, "Never received " + expected);
+            } while (!message.equals(expected));
+        }
+
+        Set<String> legacyUsers() {
+            Set<String> users = new TreeSet<>();
+            if (lastUserList != null && !lastUserList.isEmpty()) {
+                users.addAll(List.of(lastUserList.split(",")));
+            }
+            return users;
+        }
+    }
+
+    private static void awaitUsers(Set<String> expected, Supplier<Set<String>> actual) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!expected.equals(actual.get()) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, actual.get());
+    }
+
+    @Test
+    void clientsFollowJoinsSessionsAndLeaves() throws Exception {
+        Connection server = new Connection(Connection.Engine.NIO, 2, 0);
+        Thread serverThread = new Thread(server::start, "presence-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            Client alice = new Client(server, "alice", WireCodec.VERSION);
+            Client bob = new Client(server, "bob", WireCodec.VERSION);
+            Client legacy = new Client(server, "legacy", 1);
+            Client carol = new Client(server, "carol", WireCodec.VERSION);
+
+            Set<String> everyone = Set.of("alice", "bob", "carol", "legacy");
+            for (Client client : List.of(alice, bob, carol)) {
+                awaitUsers(everyone, () -> new TreeSet<>(client.tracker.getUsers()));
+            }
+            awaitUsers(everyone, legacy::legacyUsers);
+
+            // alice and bob pair up and are no longer offered to the others
+            alice.out.writeMessage("PRIVATE_CHAT:alice:session-1");
+            bob.out.writeMessage("PRIVATE_CHAT:bob:session-1");
+            awaitUsers(Set.of("carol", "legacy"), () -> new TreeSet<>(carol.tracker.getUsers()));
+            awaitUsers(Set.of("carol", "legacy"), legacy::legacyUsers);
+
+            // bob leaves: alice is available again
+            bob.socket.close();
+            awaitUsers(Set.of("alice", "carol", "legacy"), () -> new TreeSet<>(carol.tracker.getUsers()));
+            awaitUsers(Set.of("alice", "carol", "legacy"), () -> new TreeSet<>(alice.tracker.getUsers()));
+            awaitUsers(Set.of("alice", "carol", "legacy"), legacy::legacyUsers);
+
+            // A client that asks for a snapshot gets the same view
+            long version = carol.tracker.getVersion();
+            carol.out.writeMessage(Presence.sync(version - 1));
+            Thread.sleep(100);
+            assertEquals(version, carol.tracker.getVersion());
+            assertEquals(Set.of("alice", "carol", "legacy"), new TreeSet<>(carol.tracker.getUsers()));
+
+            for (Client client : List.of(alice, legacy, carol)) {
+                client.socket.close();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void userListRequestsAreAnsweredToTheRequesterOnly() throws Exception {
+        Connection server = new Connection(Connection.Engine.NIO, 1, 0);
+        server.setPresenceWindowMillis(0);
+        Thread serverThread = new Thread(server::start, "userlist-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            Client alice = new Client(server, "alice", WireCodec.VERSION);
+            Client bob = new Client(server, "bob", WireCodec.VERSION);
+            awaitUsers(Set.of("alice", "bob"), () -> new TreeSet<>(alice.tracker.getUsers()));
+            awaitUsers(Set.of("alice", "bob"), () -> new TreeSet<>(bob.tracker.getUsers()));
+            int bobMessages = bob.presenceMessages.get();
+
+            // Up to date: a not-modified answer, nothing for the others
+            alice.out.writeMessage(alice.tracker.userListRequest());
+            alice.await(Presence.notModified(alice.tracker.getVersion()));
+            // Behind: a fresh snapshot
+            alice.out.writeMessage(Presence.request(alice.tracker.getVersion() - 1));
+            alice.await(Presence.snapshot(alice.tracker.getVersion(), List.of("alice", "bob")));
+            Thread.sleep(100);
+            assertEquals(bobMessages, bob.presenceMessages.get());
+
+            alice.socket.close();
+            bob.socket.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void changesWithinAWindowArePublishedTogether() throws Exception {
+        Connection server = new Connection(Connection.Engine.NIO, 2, 0);
+        server.setPresenceWindowMillis(300);
+        Thread serverThread = new Thread(server::start, "presence-window-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            Client observer = new Client(server, "observer", WireCodec.VERSION);
+            awaitUsers(Set.of("observer"), () -> new TreeSet<>(observer.tracker.getUsers()));
+            long versionBefore = observer.tracker.getVersion();
+            PresenceBroadcaster.Stats statsBefore = server.getPresenceStats();
+
+            // A burst of logins, some of which leave again right away
+            List<Client> clients = new ArrayList<>();
+            Set<String> expected = new TreeSet<>(Set.of("observer"));
+            for (int i = 0; i < 20; i++) {
+                Client client = new Client(server, "user" + i, WireCodec.VERSION);
+                if (i % 4 == 0) {
+                    client.socket.close();
+                } else {
+                    clients.add(client);
+                    expected.add("user" + i);
+                }
+            }
+            awaitUsers(expected, () -> new TreeSet<>(observer.tracker.getUsers()));
+
+            PresenceBroadcaster.Stats stats = server.getPresenceStats();
+            long flushes = stats.flushes() - statsBefore.flushes();
+            assertTrue(flushes <= 3, "Burst should take a few windows, not one update per change: " + stats);
+            assertTrue(observer.tracker.getVersion() - versionBefore <= flushes);
+            assertTrue(stats.largestBatch() > 1, stats.toString());
+            // Joins cancelled by a leave in the same window were never published
+            assertTrue(stats.published() - statsBefore.published() < stats.changes() - statsBefore.changes(),
+                    stats.toString());
+
+            for (Client client : clients) {
+                client.socket.close();
+            }
+            observer.socket.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Handler whose queue is only read by the test
+    private static final class QueuedClient extends ClientHandler {
+        QueuedClient(Connection server, int protocolVersion) {
+            super(server, new Socket()); // Never connected
+            setProtocolVersion(protocolVersion);
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+
+        Object lastQueued() {
+            Object last = null;
+            for (Object message; (message = getOutbound().poll()) != null;) {
+                last = message;
+            }
+            return last;
+        }
+    }
+
+    @Test
+    void userListIsEncodedOncePerVersion() {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setPresenceWindowMillis(0);
+        try {
+            QueuedClient[] legacy = { new QueuedClient(server, 0), new QueuedClient(server, 0) };
+            QueuedClient[] aware = { new QueuedClient(server, WireCodec.VERSION),
+                    new QueuedClient(server, WireCodec.VERSION) };
+            assertTrue(server.registerUser("legacy0", legacy[0]));
+            assertTrue(server.registerUser("legacy1", legacy[1]));
+            assertTrue(server.registerUser("aware0", aware[0]));
+            assertTrue(server.registerUser("aware1", aware[1]));
+
+            for (QueuedClient[] pair : List.of(legacy, aware)) {
+                server.sendUserList(pair[0]);
+                server.sendUserList(pair[1]);
+                Object first = pair[0].lastQueued();
+                assertInstanceOf(EncodedMessage.class, first);
+                assertSame(first, pair[1].lastQueued(), "Every request of a version shares one encoding");
+            }
+
+            assertTrue(server.registerUser("newcomer", new QueuedClient(server, 0)));
+            server.sendUserList(legacy[0]);
+            EncodedMessage updated = (EncodedMessage) legacy[0].lastQueued();
+            assertTrue(((String) updated.getMessage()).contains("newcomer"), updated.getMessage().toString());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimitTest {
+
+    @Test
+    void bucketAllowsBurstThenSustainedRate() {
+        long second = TimeUnit.SECONDS.toNanos(1);
+        RateLimiter limiter = new RateLimiter(
+                Map.of(Connection.MessageClass.CHAT, new Connection.RateLimit(2, 3)), 2, 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RateLimiter.Decision.ALLOWED, limiter.check(Connection.MessageClass.CHAT, 0));
+        }
+        assertEquals(RateLimiter.Decision.THROTTLED, limiter.check(Connection.MessageClass.CHAT, 0));
+        assertTrue(limiter.isThrottling());
+        // Unlimited kinds are not affected
+        assertEquals(RateLimiter.Decision.ALLOWED, limiter.check(Connection.MessageClass.CONTROL, 0));
+
+        // Half a second refills one token at 2 per second
+        assertEquals(RateLimiter.Decision.ALLOWED, limiter.check(Connection.MessageClass.CHAT, second / 2));
+        assertEquals(RateLimiter.Decision.THROTTLED, limiter.check(Connection.MessageClass.CHAT, second / 2));
+        // Two strikes used up
+        assertEquals(RateLimiter.Decision.DISCONNECT, limiter.check(Connection.MessageClass.CHAT, second / 2));
+    }
+
+    @Test
+    void floodingClientIsThrottledThenDisconnected() throws Exception {
+        Connection server = new Connection(Connection.Engine.NIO, 1, 0);
+        server.setRateLimit(Connection.MessageClass.CONTROL, new Connection.RateLimit(1, 5));
+        server.setRateLimitStrikes(20);
+        Thread serverThread = new Thread(server::start, "rate-limit-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream());
+            MessageOutput out = MessageOutput.binary(socket.getOutputStream());
+            MessageInput in = MessageInput.binary(socket.getInputStream());
+            out.writeMessage("USERLIST:flooder");
+            assertEquals("USERNAME_ACCEPTED", in.readMessage());
+
+            for (int i = 0; i < 100; i++) {
+                try {
+                    out.writeMessage("REQUEST_USERLIST");
+                } catch (IOException e) {
+                    break; // Already disconnected
+                }
+            }
+
+            // A few answers, one warning, then the connection is closed
+            int errors = 0;
+            int userLists = 0;
+            try {
+                while (true) {
+                    Object message = in.readMessage();
+                    if (message == null) {
+                        break;
+                    }
+                    if (message instanceof String text && text.startsWith("ERROR:")) {
+                        errors++;
+                    } else if (message instanceof String text && text.startsWith(Presence.SNAPSHOT)) {
+                        userLists++;
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by the server
+            }
+            assertEquals(1, errors);
+            assertTrue(userLists <= 6, "Only the burst should be answered, got " + userLists);
+            // Strikes are forgiven over time, so a slow run may throttle a few more
+            assertTrue(server.getThrottledMessages().get(Connection.MessageClass.CONTROL) >= 20);
+            assertEquals(1, (long) server.getRateLimitDisconnects().get(Connection.MessageClass.CONTROL));
+            assertEquals(0, (long) server.getThrottledMessages().get(Connection.MessageClass.CHAT));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomTest {
+
+    // Keeps its messages queued, so the test can read them back
+    private static final class QueuedClient extends ClientHandler {
+        QueuedClient(Connection server, String username) {
+            super(server, new Socket()); // Never connected
+            setUsername(username);
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+
+        List<Object> messages() {
+            List<Object> messages = new ArrayList<>();
+            Object message;
+            while ((message = getOutbound().poll()) != null) {
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        List<String> replies() {
+            List<String> replies = new ArrayList<>();
+            for (Object message : messages()) {
+                if (message instanceof EncodedMessage encoded) {
+                    message = encoded.getMessage();
+                }
+                if (message instanceof String text) {
+                    replies.add(text);
+                }
+            }
+            return replies;
+        }
+    }
+
+    @Test
+    void roomMessagesAreEncodedOnceForEveryMember() {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setPresenceWindowMillis(0);
+        try {
+            QueuedClient alice = register(server, "alice");
+            QueuedClient bob = register(server, "bob");
+            QueuedClient carol = register(server, "carol");
+            QueuedClient dave = register(server, "dave");
+            for (QueuedClient client : List.of(alice, bob, carol, dave)) {
+                client.messages();
+            }
+
+            server.joinRoom(alice, "lobby");
+            server.joinRoom(bob, "lobby");
+            server.joinRoom(carol, "lobby");
+            assertEquals(1, server.getRoomCount());
+            assertEquals(List.of(Room.joined("lobby", List.of("alice", "bob", "carol"))), carol.replies());
+            assertEquals(List.of(Room.joined("lobby", List.of("alice", "bob")),
+                    Room.memberJoined("lobby", "carol")), bob.replies());
+            // Room membership is not presence: nobody outside the room hears about it
+            assertEquals(List.of(), dave.replies());
+
+            alice.messages();
+            ChatFrame frame = ChatFrame.of(new ChatMessage("alice", "ciphertext"));
+            server.forwardPrivateMessage(alice, frame);
+            List<Object> toBob = bob.messages();
+            List<Object> toCarol = carol.messages();
+            assertEquals(1, toBob.size());
+            assertSame(toBob.get(0), toCarol.get(0), "Members should share one encoding");
+            assertSame(frame, ((EncodedMessage) toBob.get(0)).getMessage());
+            assertEquals(List.of(), alice.messages());
+            assertEquals(List.of(), dave.messages());
+
+            // No private chat while in a room
+            server.handlePrivateChatRequest(alice, "session", "alice");
+            assertEquals(List.of("ERROR:Leave the room first."), alice.replies());
+
+            server.leaveRoom(bob, true);
+            assertEquals(List.of(Room.left("lobby")), bob.replies());
+            assertEquals(List.of(Room.memberLeft("lobby", "bob")), carol.replies());
+
+            server.removeUser("carol", carol);
+            assertTrue(alice.replies().contains(Room.memberLeft("lobby", "carol")));
+            server.leaveRoom(alice, true);
+            assertEquals(0, server.getRoomCount(), "An empty room should be dropped");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void fullRoomsAndInvalidNamesAreRefused() {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setPresenceWindowMillis(0);
+        server.setMaxRoomMembers(2);
+        try {
+            QueuedClient alice = register(server, "alice");
+            QueuedClient bob = register(server, "bob");
+            QueuedClient carol = register(server, "carol");
+            server.joinRoom(alice, "small");
+            server.joinRoom(bob, "small");
+            carol.messages();
+
+            server.joinRoom(carol, "small");
+            assertEquals(List.of("ERROR:Room is full."), carol.replies());
+            server.joinRoom(carol, "no spaces");
+            assertEquals(List.of("ERROR:Invalid room name."), carol.replies());
+
+            // Joining another room leaves the first one
+            alice.messages();
+            bob.messages();
+            server.joinRoom(alice, "other");
+            assertEquals(List.of(Room.left("small"), Room.joined("other", List.of("alice"))), alice.replies());
+            assertEquals(List.of(Room.memberLeft("small", "alice")), bob.replies());
+            assertEquals(2, server.getRoomCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static QueuedClient register(Connection server, String username) {
+        QueuedClient client = new QueuedClient(server, username);
+        assertTrue(server.registerUser(username, client));
+        return client;
+    }
+}
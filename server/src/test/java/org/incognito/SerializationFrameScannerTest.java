@@ -0,0 +1,140 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SerializationFrameScannerTest {
+
+    private static final String SHARED = "REQUEST_USERLIST";
+
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (Object obj : objects) {
+            out.writeObject(obj);
+            if (obj instanceof KeyExchangeMessage) {
+                out.reset();
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object[] sampleMessages() {
+        KeyExchangeMessage keyMsg = new KeyExchangeMessage(KeyExchangeMessage.Type.PUBLIC_KEY_OFFER, "alice", "bob");
+        keyMsg.setPayload("public-key");
+        return new Object[] {
+                "USERLIST:alice",
+                SHARED,
+                new ChatMessage("alice", "c2VjcmV0"),
+                SHARED, // Written again as a back-reference
+                new ChatMessage("alice", "bW9yZQ=="), // Class descriptor is a back-reference
+                keyMsg,
+                new KeyExchangeMessage(KeyExchangeMessage.Type.EXCHANGE_COMPLETE, "bob", "alice"),
+                new int[] { 1, 2, 3 },
+                new String[] { "a", null, "b" },
+                null,
+                "x".repeat(70000) // TC_LONGSTRING
+        };
+    }
+
+    @Test
+    void findsEveryObjectWhenBytesArriveOneAtATime() throws Exception {
+        Object[] messages = sampleMessages();
+        byte[] stream = serialize(messages);
+
+        SerializationFrameScanner scanner = new SerializationFrameScanner();
+        ByteBuffer buffer = ByteBuffer.allocate(stream.length);
+        List<Integer> lengths = new ArrayList<>();
+        int start = 4; // Stream header
+        for (int i = 0; i < stream.length; i++) {
+            buffer.put(stream[i]);
+            if (i + 1 <= start) {
+                continue;
+            }
+            ByteBuffer view = buffer.duplicate().flip().position(start);
+            int length = scanner.scan(view);
+            if (length > 0) {
+                lengths.add(length);
+                start += length;
+            }
+        }
+
+        assertEquals(messages.length, lengths.size());
+        assertEquals(stream.length, start);
+
+        // Each boundary must match what ObjectInputStream actually consumes
+        ByteArrayInputStream source = new ByteArrayInputStream(stream);
+        ObjectInputStream in = new ObjectInputStream(source);
+        int consumed = 4;
+        for (int i = 0; i < messages.length; i++) {
+            Object obj = in.readObject();
+            consumed += lengths.get(i);
+            assertEquals(stream.length - consumed, source.available());
+            if (messages[i] instanceof String text) {
+                assertEquals(text, obj);
+            }
+        }
+    }
+
+    @Test
+    void incompleteObjectDoesNotCommitHandles() throws Exception {
+        byte[] stream = serialize("first", new ChatMessage("a", "b"), "first");
+        SerializationFrameScanner scanner = new SerializationFrameScanner();
+
+        int total = 4;
+        ByteBuffer partial = ByteBuffer.wrap(stream, 4, 3);
+        assertEquals(-1, scanner.scan(partial));
+
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer view = ByteBuffer.wrap(stream, total, stream.length - total);
+            int length = scanner.scan(view);
+            assertTrue(length > 0);
+            total += length;
+        }
+        assertEquals(stream.length, total);
+    }
+
+    @Test
+    void rejectsDeepNesting() throws Exception {
+        Object[] nested = new Object[1];
+        Object[] inner = nested;
+        for (int i = 0; i < SerializationFrameScanner.MAX_DEPTH; i++) {
+            Object[] next = new Object[1];
+            inner[0] = next;
+            inner = next;
+        }
+        byte[] stream = serialize((Object) nested);
+        assertThrows(StreamCorruptedException.class,
+                () -> new SerializationFrameScanner().scan(ByteBuffer.wrap(stream, 4, stream.length - 4)));
+
+        // Array headers sharing one class descriptor, far deeper than the thread stack allows
+        byte[] header = serialize((Object) new Object[1]);
+        ByteBuffer bytes = ByteBuffer.allocate(600_000);
+        bytes.put(header, 4, header.length - 5); // Up to the first element
+        while (bytes.remaining() >= 10) {
+            bytes.put(ObjectOutputStream.TC_ARRAY).put(ObjectOutputStream.TC_REFERENCE)
+                    .putInt(ObjectOutputStream.baseWireHandle).putInt(1);
+        }
+        bytes.flip();
+        assertThrows(StreamCorruptedException.class, () -> new SerializationFrameScanner().scan(bytes));
+    }
+
+    @Test
+    void rejectsGarbage() {
+        SerializationFrameScanner scanner = new SerializationFrameScanner();
+        assertThrows(StreamCorruptedException.class,
+                () -> scanner.scan(ByteBuffer.wrap(new byte[] { 0x01, 0x02, 0x03 })));
+    }
+}
@@ -0,0 +1,77 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerConfigTest {
+
+    @Test
+    void argumentsOverrideTheFileWhichOverridesTheProfile() throws Exception {
+        Path file = Files.createTempFile("incognito-server", ".properties");
+        try {
+            Files.writeString(file, """
+                    profile=high-density
+                    presence-window=250
+                    outbound-queue=128
+                    rate-limit.chat=off
+                    """);
+            ServerConfig config = ServerConfig.load(new String[] {
+                    "--config=" + file, "--outbound-queue=64", "--rate-limit=control:1:2", "--tcp-no-delay" });
+
+            assertEquals("high-density", config.getProfile());
+            assertEquals(Connection.Engine.NIO, config.getEngine()); // Profile
+            assertEquals("250", config.get("presence-window")); // File over profile
+            assertEquals("64", config.get("outbound-queue")); // Arguments over file
+            assertEquals("off", config.get("rate-limit.chat"));
+            assertEquals("1:2", config.get("rate-limit.control"));
+            assertEquals(new Connection.SocketTuning(true, 16384, 16384, 2048), config.getSocketTuning());
+
+            String description = config.describe();
+            assertTrue(description.contains("outbound-queue = 64 (command line)"), description);
+            assertTrue(description.contains("presence-window = 250 (" + file + ")"), description);
+            assertTrue(description.contains("engine = nio (profile high-density)"), description);
+            assertTrue(description.contains("max-room-members = 256" + System.lineSeparator()), description);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void invalidValuesFallBackToTheDefaults() {
+        ServerConfig config = ServerConfig.load(Map.of("engine", "carrier-pigeon", "heartbeat", "20"), "test",
+                Map.of("profile", "no-such-profile", "acceptors", "0", "idle-timeout", "10",
+                        "rate-limit.chat", "fast", "read-buffer", "lots"));
+
+        assertEquals(ServerConfig.DEFAULT_PROFILE, config.getProfile());
+        assertEquals(Connection.Engine.THREAD_POOL, config.getEngine());
+        assertEquals(1, config.getAcceptors());
+        assertEquals("60", config.get("idle-timeout")); // Must be longer than the heartbeat
+        assertEquals("20:50", config.get("rate-limit.chat"));
+        assertEquals(Connection.SocketTuning.DEFAULT, config.getSocketTuning());
+    }
+
+    @Test
+    void tuningIsAppliedToAcceptedConnections() throws Exception {
+        ServerConfig config = ServerConfig.load(Map.of(), "test", Map.of("profile", "low-latency", "port", "0",
+                "journal", "off"));
+        assertEquals(Connection.Engine.VIRTUAL_THREADS, config.getEngine());
+        Connection server = new Connection(config.getEngine(), config.getEventLoops(), config.getPort());
+        config.applyTo(server);
+        try (ServerSocket listener = new ServerSocket(0);
+                Socket client = new Socket("localhost", listener.getLocalPort());
+                Socket accepted = listener.accept()) {
+            server.tune(accepted);
+            assertTrue(accepted.getTcpNoDelay());
+            assertTrue(accepted.getKeepAlive());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShutdownTest {
+
+    private static final int CLIENTS = 20;
+
+    @Test
+    void clientsAreDrainedAndToldWhenToReconnect() throws Exception {
+        for (Connection.Engine engine : List.of(Connection.Engine.THREAD_POOL, Connection.Engine.NIO)) {
+            Connection server = new Connection(engine, 2, 0);
+            server.setReconnectHintMillis(2000, 4000);
+            Thread serverThread = new Thread(server::start, "shutdown-server-" + engine);
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            List<Socket> sockets = new ArrayList<>();
+            List<ObjectInputStream> inputs = new ArrayList<>();
+            try {
+                for (int i = 0; i < CLIENTS; i++) {
+                    Socket socket = new Socket("localhost", server.getLocalPort());
+                    socket.setSoTimeout(5000);
+                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    out.writeObject("USERLIST:user" + i);
+                    out.flush();
+                    assertEquals("USERNAME_ACCEPTED", in.readObject());
+                    sockets.add(socket);
+                    inputs.add(in);
+                }
+
+                long until = System.currentTimeMillis() + 5000;
+                while (server.getPresenceStats().changes() < CLIENTS && System.currentTimeMillis() < until) {
+                    Thread.sleep(10); // Joins published, no flush scheduled
+                }
+                long flushes = server.getPresenceStats().flushes();
+                Connection.DrainReport report = server.stop();
+                // At most a flush already under way: departures are not published
+                assertTrue(server.getPresenceStats().flushes() <= flushes + 1,
+                        engine + ": " + server.getPresenceStats());
+                assertEquals(CLIENTS, report.connections(), engine.toString());
+                assertEquals(CLIENTS, report.drained(), engine + ": " + report);
+                assertSame(report, server.stop(), "Stopping again should not drain again");
+
+                List<Long> delays = new ArrayList<>();
+                for (ObjectInputStream in : inputs) {
+                    delays.add(readReconnectHint(in));
+                }
+                for (long delay : delays) {
+                    assertTrue(delay >= 2000 && delay <= 4000, engine + ": hint " + delay);
+                }
+                assertTrue(delays.stream().distinct().count() > 1, "Clients should get different delays: " + delays);
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    // Skips the presence updates, returns the delay of the shutdown notice
+    private static long readReconnectHint(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        while (true) {
+            Object message;
+            try {
+                message = in.readObject();
+            } catch (EOFException e) {
+                fail("Connection closed before the shutdown notice");
+                return -1;
+            }
+            if (message instanceof String text && text.startsWith(ServerShutdown.NOTICE)) {
+                return ServerShutdown.parseReconnectAfter(text);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A client that stops reading must not hold up the others: its outbound queue
+ * fills up and the slow-consumer policy applies, while the other clients keep
+ * receiving their messages.
+ */
+class SlowConsumerTest {
+
+    // Long username so each user list update is large and socket buffers fill quickly
+    private static final String STALLED_USER = "stalled-" + "x".repeat(30000);
+
+    private static final class Client implements AutoCloseable {
+        final Socket socket = new Socket();
+        final MessageOutput out;
+        final MessageInput in;
+
+        Client(Connection server, String username, int receiveBuffer) throws Exception {
+            if (receiveBuffer > 0) {
+                socket.setReceiveBufferSize(receiveBuffer);
+            }
+            socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+            socket.setSoTimeout(10000);
+            // Protocol version 1: user list updates are full lists, which may be dropped
+            WireCodec.clientHandshake(socket.getInputStream(), socket.getOutputStream(), 1);
+            out = MessageOutput.binary(socket.getOutputStream());
+            in = MessageInput.binary(socket.getInputStream());
+            out.writeMessage("USERLIST:" + username);
+            assertEquals("USERNAME_ACCEPTED", in.readMessage());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // Keeps its messages queued, as no writer runs for it
+    private static final class QueuedClient extends ClientHandler {
+        QueuedClient(Connection server, String username) {
+            super(server, new Socket()); // Never connected
+            setUsername(username);
+        }
+
+        @Override
+        protected void scheduleDrain() {
+        }
+    }
+
+    private static Connection startServer(Connection.Engine engine, Connection.SlowConsumerPolicy policy) {
+        Connection server = new Connection(engine, 2, 0);
+        server.setSlowConsumerPolicy(policy);
+        server.setOutboundQueueLimits(64, 16);
+        server.setPresenceWindowMillis(0); // One user list per change
+        Thread serverThread = new Thread(server::start, "slow-consumer-server-" + engine);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    // Makes the server broadcast the user list until the condition holds: visitors
+    // log in and out one at a time, so that the reading client never falls behind
+    private static void floodUntil(Connection server, AtomicInteger received, BooleanSupplier condition)
+            throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        for (int visitor = 0; !condition.getAsBoolean(); visitor++) {
+            assertTrue(System.nanoTime() < deadline, "Slow-consumer policy never applied");
+            int before = received.get();
+            new Client(server, "visitor-" + visitor, 0).close();
+            while (received.get() == before && !condition.getAsBoolean()) {
+                assertTrue(System.nanoTime() < deadline, "Active client stopped receiving messages");
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // Reads everything the client receives on a background thread
+    private static AtomicInteger drainInBackground(Client client) {
+        AtomicInteger received = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    client.in.readMessage();
+                    received.incrementAndGet();
+                }
+            } catch (Exception e) {
+                // Socket closed at the end of the test
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return received;
+    }
+
+    private void assertStalledClientDisconnected(Connection.Engine engine) throws Exception {
+        Connection server = startServer(engine, Connection.SlowConsumerPolicy.DISCONNECT);
+        try (Client stalled = new Client(server, STALLED_USER, 4096);
+                Client active = new Client(server, "active", 0)) {
+            AtomicInteger received = drainInBackground(active);
+
+            floodUntil(server, received, () -> server.getSlowConsumerDisconnects() > 0);
+            assertEquals(1, server.getSlowConsumerDisconnects());
+
+            // The active client is still served
+            int before = received.get();
+            active.out.writeMessage("REQUEST_USERLIST");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (received.get() == before && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(received.get() > before, "Active client stopped receiving messages");
+            assertFalse(server.getOutboundQueueDepths().containsKey(STALLED_USER));
+
+            // The stalled client finds its connection closed once it reads again
+            assertThrows(IOException.class, () -> {
+                while (true) {
+                    stalled.in.readMessage();
+                }
+            });
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void stalledClientIsDisconnectedWithThreadPool() throws Exception {
+        assertStalledClientDisconnected(Connection.Engine.THREAD_POOL);
+    }
+
+    @Test
+    void stalledClientIsDisconnectedWithNio() throws Exception {
+        assertStalledClientDisconnected(Connection.Engine.NIO);
+    }
+
+    @Test
+    void presenceUpdatesAreDroppedForStalledClient() throws Exception {
+        Connection server = startServer(Connection.Engine.VIRTUAL_THREADS,
+                Connection.SlowConsumerPolicy.DROP_PRESENCE);
+        try (Client stalled = new Client(server, STALLED_USER, 4096);
+                Client active = new Client(server, "active", 0)) {
+            AtomicInteger received = drainInBackground(active);
+
+            floodUntil(server, received, () -> server.getDroppedOutboundMessages() > 0
+                    && server.getOutboundQueueDepths().getOrDefault(STALLED_USER, 0) >= 16);
+
+            assertEquals(0, server.getSlowConsumerDisconnects());
+            assertTrue(server.getOutboundQueueDepths().get(STALLED_USER) <= 64);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void presenceDoesNotWaitForStalledClientWithBlock() {
+        Connection server = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+        server.setSlowConsumerPolicy(Connection.SlowConsumerPolicy.BLOCK);
+        server.setOutboundQueueLimits(4, 4);
+        server.setSendTimeoutMillis(10_000);
+        server.setPresenceWindowMillis(0);
+        try {
+            QueuedClient stalled = new QueuedClient(server, "stalled");
+            assertTrue(server.registerUser("stalled", stalled));
+            for (int i = 0; stalled.getOutboundQueueDepth() < 4; i++) {
+                stalled.send("filler " + i);
+            }
+
+            // Announcing the visitor overflows the stalled queue instead of waiting for room
+            long start = System.nanoTime();
+            QueuedClient visitor = new QueuedClient(server, "visitor");
+            assertTrue(server.registerUser("visitor", visitor));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(elapsedMillis < 5_000, "Registration waited " + elapsedMillis + " ms");
+            assertTrue(stalled.isClosed());
+            assertEquals(1, server.getSlowConsumerDisconnects());
+            assertFalse(server.getOutboundQueueDepths().containsKey("stalled"));
+        } finally {
+            server.stop();
+        }
+    }
+}
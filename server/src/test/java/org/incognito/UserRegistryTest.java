@@ -0,0 +1,81 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRegistryTest {
+
+    private static final Connection SERVER = new Connection(Connection.Engine.THREAD_POOL, 0, 0);
+
+    private static ClientHandler client() {
+        return new ClientHandler(SERVER, null);
+    }
+
+    @Test
+    void namesDifferingOnlyInCaseAreTheSameUser() {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.forLanguageTag("tr")); // Where "I".toLowerCase() is a dotless i
+        try {
+            UserRegistry registry = new UserRegistry();
+            ClientHandler alice = client();
+            assertTrue(registry.register("Alice", alice));
+            assertFalse(registry.register("ALICE", client()));
+            assertFalse(registry.register("alice", client()));
+            assertTrue(registry.isTaken("aLiCe"));
+            assertSame(alice, registry.get("ALICE"));
+
+            assertTrue(registry.register("STRASSE", client()));
+            assertTrue(registry.isTaken("stra\u00dfe")); // Sharp s
+
+            // Only the owner releases a name
+            assertFalse(registry.unregister("alice", client()));
+            assertTrue(registry.unregister("alice", alice));
+            assertFalse(registry.isTaken("Alice"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void concurrentLoginsClaimANameOnce() throws Exception {
+        UserRegistry registry = new UserRegistry();
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(registry.register("user" + i, client()));
+        }
+
+        int threads = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                String name = "contested" + round;
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    String variant = t % 2 == 0 ? name : name.toUpperCase(Locale.ROOT);
+                    results.add(pool.submit(() -> {
+                        start.await();
+                        return registry.register(variant, client());
+                    }));
+                }
+                start.countDown();
+                int winners = 0;
+                for (Future<Boolean> result : results) {
+                    winners += result.get() ? 1 : 0;
+                }
+                assertEquals(1, winners, "Exactly one login should get " + name);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(100_200, registry.size());
+    }
+}
@@ -0,0 +1,86 @@
+package org.incognito;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WireCodecTest {
+
+    private static Object roundTrip(Object message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageOutput.binary(bytes).writeMessage(message);
+        return MessageInput.binary(new ByteArrayInputStream(bytes.toByteArray())).readMessage();
+    }
+
+    @Test
+    void roundTripsEveryMessageKind() throws Exception {
+        assertEquals("USERLIST:\u00e0lice", roundTrip("USERLIST:\u00e0lice")); // Not ASCII
+        assertEquals("", roundTrip(""));
+
+        ChatMessage chat = (ChatMessage) roundTrip(new ChatMessage("alice", "c2VjcmV0"));
+        assertEquals("alice", chat.getSender());
+        assertEquals("c2VjcmV0", chat.getEncryptedContent());
+
+        KeyExchangeMessage keyMsg = new KeyExchangeMessage(KeyExchangeMessage.Type.PUBLIC_KEY_OFFER, "bob", "alice");
+        keyMsg.setPayload("x".repeat(70000));
+        KeyExchangeMessage decoded = (KeyExchangeMessage) roundTrip(keyMsg);
+        assertEquals(keyMsg.getType(), decoded.getType());
+        assertEquals("bob", decoded.getSenderUsername());
+        assertEquals("alice", decoded.getTargetUsername());
+        assertEquals(keyMsg.getSessionId(), decoded.getSessionId());
+        assertEquals(keyMsg.getPayload(), decoded.getPayload());
+
+        assertNull(((KeyExchangeMessage) roundTrip(
+                new KeyExchangeMessage(KeyExchangeMessage.Type.EXCHANGE_COMPLETE, "bob", "alice"))).getPayload());
+    }
+
+    @Test
+    void rejectsMalformedFrames() {
+        byte[] frame = WireCodec.encode(new ChatMessage("alice", "text"));
+        ByteBuffer truncated = ByteBuffer.wrap(frame, 4, frame.length - 6);
+        assertThrows(ProtocolException.class, () -> WireCodec.decode(truncated));
+        assertThrows(ProtocolException.class, () -> WireCodec.decode(ByteBuffer.wrap(new byte[] { 42 })));
+        assertThrows(ProtocolException.class, () -> WireCodec.checkFrameLength(WireCodec.MAX_FRAME_LENGTH + 1));
+    }
+
+    @Test
+    void rejectsKeyExchangeWithoutSenderOrTarget() {
+        // Length prefix, type, key exchange type, then "bob" and "alice" with their lengths
+        byte[] frame = WireCodec.encode(new KeyExchangeMessage(KeyExchangeMessage.Type.PUBLIC_KEY_OFFER, "bob", "alice"));
+        ByteBuffer noSender = ByteBuffer.allocate(frame.length - 4 - 3);
+        noSender.put(frame, 4, 2).putShort((short) 0xFFFF).put(frame, 11, frame.length - 11).flip();
+        ByteBuffer noTarget = ByteBuffer.allocate(frame.length - 4 - 5);
+        noTarget.put(frame, 4, 7).putShort((short) 0xFFFF).put(frame, 18, frame.length - 18).flip();
+
+        for (ByteBuffer body : new ByteBuffer[] { noSender, noTarget }) {
+            ProtocolException e = assertThrows(ProtocolException.class, () -> WireCodec.decode(body));
+            assertEquals("Key exchange without sender/target", e.getMessage());
+        }
+    }
+
+    @Test
+    void relaysChatFramesWithoutDecoding() throws Exception {
+        byte[] frame = WireCodec.encode(new ChatMessage("alice", "c2VjcmV0"));
+        Object read = MessageInput.binary(new ByteArrayInputStream(frame), true).readMessage();
+        ChatFrame chatFrame = assertInstanceOf(ChatFrame.class, read);
+        assertArrayEquals(frame, WireCodec.encode(chatFrame));
+        assertEquals("c2VjcmV0", chatFrame.getMessage().getEncryptedContent());
+
+        byte[] forged = frame.clone();
+        forged[6] = 0x7F; // Sender length past the end of the frame
+        assertThrows(ProtocolException.class,
+                () -> MessageInput.binary(new ByteArrayInputStream(forged), true).readMessage());
+    }
+
+    @Test
+    void negotiatesTheLowestCommonVersion() throws Exception {
+        assertEquals(WireCodec.VERSION, WireCodec.negotiate(WireCodec.encodeClientHello(WireCodec.VERSION + 5)));
+        assertThrows(ProtocolException.class, () -> WireCodec.negotiate(WireCodec.encodeClientHello(0)));
+        assertThrows(ProtocolException.class, () -> WireCodec.negotiate(new byte[] { (byte) 0xAC, (byte) 0xED, 0, 5, 1 }));
+    }
+}
@@ -0,0 +1,224 @@
+package org.incognito;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Writes log records to a file on a background thread, so that logging never
+ * does I/O on the caller's thread.
+ *
+ * Callers put records into a bounded ring buffer; the writer takes everything
+ * buffered at once, formats it and writes it with a single flush. When the
+ * buffer is full the {@link OverflowPolicy} decides whether the record is
+ * dropped or the caller waits. Dropped records are counted, and the count is
+ * written to the file once there is room again. The file is rotated by the
+ * writer too, as set with {@link #setRotation}.
+ */
+public final class AsyncLogWriter {
+
+    public enum OverflowPolicy {
+        DROP, // Never wait, lose the record
+        BLOCK // Wait for the writer to make room
+    }
+
+    private final Path file;
+    private final Formatter formatter;
+    private final String sourceClassName;
+    private volatile OverflowPolicy overflowPolicy;
+
+    // Ring buffer: records from head to head + size, wrapping around
+    private final LogRecord[] ring;
+    private int head;
+    private int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // Incremented by the writer after each batch is on disk
+    private long written;
+    private long accepted;
+    private final Condition batchWritten = lock.newCondition();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDrops;
+    private Writer out;
+    private final LogRotator rotator;
+
+    /**
+     * @param sourceClassName shown as the origin of every record, as the
+     *                        synchronous handler would have inferred it
+     */
+    public AsyncLogWriter(Path file, Formatter formatter, String sourceClassName, int capacity,
+            OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.file = file;
+        this.formatter = formatter;
+        this.sourceClassName = sourceClassName;
+        this.ring = new LogRecord[capacity];
+        this.overflowPolicy = overflowPolicy;
+        this.rotator = new LogRotator(file, LogRotator.Policy.NONE);
+
+        Thread writer = new Thread(this::writeLoop, "log-writer-" + file.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still buffered is written when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "log-flush-" + file.getFileName()));
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    // Rotation is done by the writer thread, between two batches
+    public void setRotation(LogRotator.Policy policy) {
+        rotator.setPolicy(policy);
+    }
+
+    /**
+     * Buffers a record for the writer. Never does I/O; waits only with
+     * {@link OverflowPolicy#BLOCK} when the buffer is full.
+     *
+     * @param method shown as the origin of the record, with the source class
+     */
+    public void log(Level level, String method, String message) {
+        LogRecord record = new LogRecord(level, message);
+        record.setSourceClassName(sourceClassName);
+        record.setSourceMethodName(method);
+        lock.lock();
+        try {
+            while (size == ring.length) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            ring[(head + size) % ring.length] = record;
+            size++;
+            accepted++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records lost to a full buffer
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every record buffered so far is written.
+     *
+     * @return false if that took longer than the timeout
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            long target = accepted;
+            while (written < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                batchWritten.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        LogRecord[] batch = new LogRecord[ring.length];
+        while (true) {
+            int count;
+            lock.lock();
+            try {
+                while (size == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                count = size;
+                for (int i = 0; i < count; i++) {
+                    int slot = (head + i) % ring.length;
+                    batch[i] = ring[slot];
+                    ring[slot] = null;
+                }
+                head = (head + count) % ring.length;
+                size = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            write(batch, count);
+
+            lock.lock();
+            try {
+                written += count;
+                batchWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // One flush per batch; an I/O error loses the batch but not the writer
+    private void write(LogRecord[] batch, int count) {
+        try {
+            if (out == null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+                rotator.opened();
+            }
+            long drops = dropped.get();
+            if (drops > reportedDrops) {
+                LogRecord notice = new LogRecord(Level.WARNING, (drops - reportedDrops)
+                        + " log records dropped, the buffer was full");
+                notice.setSourceClassName(AsyncLogWriter.class.getName());
+                notice.setSourceMethodName("log");
+                out.write(formatter.format(notice));
+                reportedDrops = drops;
+            }
+            for (int i = 0; i < count; i++) {
+                out.write(formatter.format(batch[i]));
+                batch[i] = null;
+            }
+            out.flush();
+            if (rotator.getPolicy().rotates() && rotator.due(Files.size(file))) {
+                out.close();
+                out = null; // Reopened with the next batch
+                rotator.rotate();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error while writing log " + file + ": " + e.getMessage());
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            out = null; // Reopened with the next batch
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.incognito;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends lines to a file through one channel kept open for the life of the
+ * process. Lines are collected in a buffer and written together when it fills
+ * up, at most {@link #FLUSH_INTERVAL_MILLIS} after they were logged, and when
+ * the process exits. The file is rotated as set by {@link #setRotation}.
+ */
+final class BufferedLogFile {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel; // Opened with the first write
+    private final LogRotator rotator;
+
+    BufferedLogFile(Path file, LogRotator.Policy rotation) {
+        this.file = file;
+        this.rotator = new LogRotator(file, rotation);
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "log-flush-" + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-shutdown-" + file.getFileName()));
+    }
+
+    void setRotation(LogRotator.Policy policy) {
+        rotator.setPolicy(policy);
+    }
+
+    // Writes what is buffered
+    void flush() {
+        lock.lock();
+        try {
+            writeBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void log(String level, String message) {
+        byte[] line = (level + ": " + message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (line.length > buffer.remaining()) {
+                writeBuffer();
+            }
+            if (line.length > buffer.capacity()) {
+                write(ByteBuffer.wrap(line)); // Too long to be buffered
+            } else {
+                buffer.put(line);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private void writeBuffer() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    // Called with the lock held; on error the lines are lost and the file reopened next time
+    private void write(ByteBuffer bytes) {
+        try {
+            if (channel == null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                rotator.opened();
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            if (rotator.getPolicy().rotates() && rotator.due(channel.size())) {
+                channel.close();
+                channel = null; // The next write starts a new file
+                rotator.rotate(); // A rename; compressed in the background
+            }
+        } catch (IOException e) {
+            System.err.println("Error while logging: " + e.getMessage());
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            channel = null;
+        }
+    }
+}
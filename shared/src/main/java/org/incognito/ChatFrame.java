@@ -0,0 +1,55 @@
+package org.incognito;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * A ChatMessage as it travels through the server. The server cannot read the
+ * ciphertext, so a message received from a binary client is kept as the raw
+ * {@link WireCodec} frame and written to binary recipients unchanged; it is only
+ * decoded for recipients still speaking Java serialization. Either form is
+ * computed at most once, however many recipients there are.
+ */
+public final class ChatFrame {
+    private volatile byte[] frame; // Length prefix included
+    private volatile ChatMessage message;
+
+    private ChatFrame(byte[] frame, ChatMessage message) {
+        this.frame = frame;
+        this.message = message;
+    }
+
+    /**
+     * @param frame a complete TYPE_CHAT frame, length prefix included; not copied
+     */
+    public static ChatFrame wrap(byte[] frame) {
+        return new ChatFrame(frame, null);
+    }
+
+    public static ChatFrame of(ChatMessage message) {
+        return new ChatFrame(null, message);
+    }
+
+    public byte[] getBytes() {
+        byte[] bytes = frame;
+        if (bytes == null) {
+            bytes = WireCodec.encode(message);
+            frame = bytes;
+        }
+        return bytes;
+    }
+
+    public ChatMessage getMessage() throws ProtocolException {
+        ChatMessage decoded = message;
+        if (decoded == null) {
+            decoded = (ChatMessage) WireCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4));
+            message = decoded;
+        }
+        return decoded;
+    }
+
+    // Size of the encoded message, without decoding it
+    public int length() {
+        return getBytes().length;
+    }
+}
@@ -1,41 +1,70 @@
 package org.incognito;
 
-import java.util.logging.Logger;
-import java.util.logging.FileHandler;
+import java.nio.file.Path;
+import java.util.logging.Level;
 import java.util.logging.SimpleFormatter;
-import java.io.IOException;
 
+/**
+ * Log of chat session events, in Logs/ChatLogs. It is called on the threads
+ * relaying messages, so records are handed to an {@link AsyncLogWriter} and
+ * written in the background.
+ *
+ * The buffer holds {@code -Dincognito.chatlog.capacity} records (default 8192).
+ * When it is full, records are dropped unless {@code -Dincognito.chatlog.overflow=block}
+ * or {@link #setOverflowPolicy} makes callers wait. The file is rotated and
+ * its old segments gzipped as set by {@link #setRotation}.
+ */
 public class ChatSessionLogger {
-    private static final Logger logger = Logger.getLogger(ChatSessionLogger.class.getName());
+    private static final String LOG_FILE_PATH = "Logs/ChatLogs/chat_sessions.log";
+
+    private static final AsyncLogWriter writer = new AsyncLogWriter(Path.of(LOG_FILE_PATH), new SimpleFormatter(),
+            ChatSessionLogger.class.getName(), Integer.getInteger("incognito.chatlog.capacity", 8192),
+            overflowPolicy(System.getProperty("incognito.chatlog.overflow", "drop")));
 
     static {
+        writer.setRotation(LogRotator.Policy.DEFAULT);
+    }
+
+    private static AsyncLogWriter.OverflowPolicy overflowPolicy(String name) {
         try {
-            java.io.File logDir = new java.io.File("Logs");
-            if (!logDir.exists()) {
-                logDir.mkdirs(); // Crea la cartella se non esiste
-            }
-            java.io.File chatLogDir = new java.io.File("Logs/ChatLogs");
-            if (!chatLogDir.exists()) {
-                chatLogDir.mkdirs(); // Crea la sottocartella se non esiste
-            }
-            FileHandler fileHandler = new FileHandler("Logs/ChatLogs/chat_sessions.log", true);
-            fileHandler.setFormatter(new SimpleFormatter());
-            logger.addHandler(fileHandler);
-            logger.setUseParentHandlers(false); // Disabilita il logging sulla console
-        } catch (IOException e) {
-            System.err.println("Error while configuring logger: " + e.getMessage());
+            return AsyncLogWriter.OverflowPolicy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown chat log overflow policy " + name + ", dropping records");
+            return AsyncLogWriter.OverflowPolicy.DROP;
         }
     }
 
     public static void logInfo(String message) {
-        logger.info(message);
+        writer.log(Level.INFO, "logInfo", message);
     }
 
     public static void logWarning(String message) {
-        logger.warning(message);
+        writer.log(Level.WARNING, "logWarning", message);
     }
 
     public static void logSevere(String message) {
-        logger.severe(message);
+        writer.log(Level.SEVERE, "logSevere", message);
+    }
+
+    public static void setOverflowPolicy(AsyncLogWriter.OverflowPolicy overflowPolicy) {
+        writer.setOverflowPolicy(overflowPolicy);
+    }
+
+    // Replaces LogRotator.Policy.DEFAULT
+    public static void setRotation(LogRotator.Policy policy) {
+        writer.setRotation(policy);
+    }
+
+    public static long getDroppedCount() {
+        return writer.getDroppedCount();
+    }
+
+    /**
+     * Waits until every record logged so far is written.
+     *
+     * @return false if that took longer than the timeout
+     */
+    public static boolean flush(long timeoutMillis) {
+        return writer.flush(timeoutMillis);
     }
-}
\ No newline at end of file
+}
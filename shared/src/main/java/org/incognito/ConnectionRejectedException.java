@@ -0,0 +1,15 @@
+package org.incognito;
+
+import java.net.ProtocolException;
+
+/**
+ * The server turned the connection away before the handshake, for example
+ * because it is full. Connecting again the old way would not help.
+ */
+public class ConnectionRejectedException extends ProtocolException {
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionRejectedException(String reason) {
+        super(reason);
+    }
+}
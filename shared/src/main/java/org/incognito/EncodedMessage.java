@@ -0,0 +1,81 @@
+package org.incognito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A message sent to many connections at once. It is encoded at most once per
+ * wire format, however many recipients there are, and every recipient is
+ * written the same bytes.
+ *
+ * The Java serialization form can be shared because serialized outputs reset
+ * their stream after every message (see {@link MessageOutput#serialized}): each
+ * message is then written against an empty handle table, so its bytes do not
+ * depend on what the connection sent before.
+ */
+public final class EncodedMessage {
+    // Stream magic and version, written by the ObjectOutputStream constructor
+    private static final int HEADER_LENGTH = 4;
+
+    private final Object message;
+    private volatile byte[] frame;
+    private volatile byte[] serialized;
+
+    private EncodedMessage(Object message) {
+        this.message = message;
+    }
+
+    /**
+     * @param message a String, ChatMessage, {@link ChatFrame} or KeyExchangeMessage
+     */
+    public static EncodedMessage of(Object message) {
+        return message instanceof EncodedMessage encoded ? encoded : new EncodedMessage(message);
+    }
+
+    public Object getMessage() {
+        return message;
+    }
+
+    // Binary protocol frame, length prefix included. Must not be modified.
+    public byte[] getFrame() {
+        byte[] bytes = frame;
+        if (bytes == null) {
+            bytes = WireCodec.encode(message);
+            frame = bytes;
+        }
+        return bytes;
+    }
+
+    // Read-only view of the frame, with a position of its own
+    public ByteBuffer frameBuffer() {
+        return ByteBuffer.wrap(getFrame()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Java serialization of the message followed by a stream reset, without the
+     * stream header. Must not be modified.
+     */
+    public byte[] getSerialized() {
+        byte[] bytes = serialized;
+        if (bytes == null) {
+            try {
+                Object object = message instanceof ChatFrame chatFrame ? chatFrame.getMessage() : message;
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(buffer);
+                out.writeObject(object);
+                out.reset();
+                out.flush();
+                byte[] stream = buffer.toByteArray();
+                bytes = Arrays.copyOfRange(stream, HEADER_LENGTH, stream.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot serialize " + message.getClass().getName(), e);
+            }
+            serialized = bytes;
+        }
+        return bytes;
+    }
+}
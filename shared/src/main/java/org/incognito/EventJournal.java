@@ -0,0 +1,330 @@
+package org.incognito;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Binary journal of session activity: who joined, paired, relayed how many
+ * bytes to whom, in which session or room. Read it with
+ * {@link EventJournalDecoder}.
+ *
+ * The file starts with a header record and holds fixed-size records of
+ * {@value #RECORD_SIZE} bytes, big-endian:
+ *
+ * <pre>
+ * long  time     milliseconds since the epoch
+ * short type     {@link Type} ordinal
+ * short unused
+ * int   user     name IDs, 0 for none
+ * int   peer
+ * int   session
+ * int   value    bytes relayed, recipients...
+ * int   unused
+ * </pre>
+ *
+ * User, session and room names are interned: the first time a name is used, a
+ * {@link Type#NAME} record gives its ID (in the user field) and its length in
+ * UTF-8 bytes (in the value field), and the name follows, padded to a whole
+ * record. A {@link Type#START} record, written each time the journal is opened
+ * and when the name table is full, forgets every ID given before.
+ *
+ * Once a name is known, recording an event does not allocate, and it never
+ * touches the file: the record goes into a direct buffer, and a full buffer is
+ * swapped for an empty one and handed to the flusher thread, which writes it.
+ * The flusher also writes the partly filled buffer every
+ * {@value #FLUSH_INTERVAL_MILLIS} ms, and the shutdown hook when the process
+ * exits. Should the disk fall so far behind that {@value #MAX_BUFFERS} buffers
+ * wait to be written, events are dropped and counted rather than stalling the
+ * caller; the next event then follows a START record, so that names are
+ * defined again. Names longer than {@value #MAX_NAME_BYTES} bytes are cut.
+ */
+public final class EventJournal implements Closeable {
+
+    public enum Type {
+        START, // Journal opened, or name table reset
+        NAME, // Defines a name ID
+        USER_JOINED,
+        USER_LEFT,
+        SESSION_WAITING, // user waits in session
+        SESSION_OPENED, // user and peer in session
+        SESSION_CLOSED, // user left session, peer was in it
+        MESSAGE_FORWARDED, // user to peer in session, value bytes
+        ROOM_JOINED, // user in room (session field), value members
+        ROOM_LEFT, // user from room, value members left
+        ROOM_MESSAGE, // user in room, value recipients
+        BROADCAST_MESSAGE // user to everyone, value recipients
+    }
+
+    public static final int RECORD_SIZE = 32;
+    public static final int VERSION = 1;
+    static final int MAGIC = 0x494e434a; // "INCJ"
+    static final long FLUSH_INTERVAL_MILLIS = 200;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFERS = 32;
+    private static final int MAX_NAME_BYTES = 1024;
+    private static final int MAX_NAMES = 1 << 16;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock(); // Buffers and names
+    private final ReentrantLock writeLock = new ReentrantLock(); // The channel, so that buffers go out in order
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int buffers = 2;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>(MAX_BUFFERS); // Holds a spare once the full ones are written
+    private final Deque<ByteBuffer> full = new ArrayDeque<>(MAX_BUFFERS);
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final Runnable flushTask = this::flush;
+    private final Thread shutdownHook;
+    private boolean closed;
+    private boolean resync; // Events were dropped, names must be defined again
+    private long dropped;
+
+    private EventJournal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "journal-flush-" + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(flushTask, "journal-shutdown-" + file.getFileName());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Opens the journal for appending, creating it and its directory if needed.
+     */
+    public static EventJournal open(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        EventJournal journal = new EventJournal(file, channel);
+        journal.lock.lock();
+        try {
+            if (channel.size() == 0) {
+                journal.buffer.putInt(MAGIC).putInt(VERSION).put(new byte[RECORD_SIZE - 8]);
+            }
+            journal.putRecord(Type.START, 0, 0, 0, 0);
+        } finally {
+            journal.lock.unlock();
+        }
+        return journal;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Records one event. Names may be null. Never waits for the disk.
+     */
+    public void record(Type type, String user, String peer, String session, int value) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (resync || ids.size() > MAX_NAMES - 3) {
+                if (!reserve(RECORD_SIZE)) {
+                    drop();
+                    return;
+                }
+                ids.clear(); // Names are defined again as they come
+                resync = false;
+                putRecord(Type.START, 0, 0, 0, 0);
+            }
+            int userId = id(user);
+            int peerId = id(peer);
+            int sessionId = id(session);
+            if (userId < 0 || peerId < 0 || sessionId < 0 || !reserve(RECORD_SIZE)) {
+                drop();
+                return;
+            }
+            putRecord(type, userId, peerId, sessionId, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Events dropped because every buffer was waiting to be written
+    public long getDroppedEvents() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes what is buffered, on the calling thread: the flusher, the
+     * shutdown hook, or whoever closes the journal.
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+            boolean current = true;
+            while (true) {
+                ByteBuffer next;
+                lock.lock();
+                try {
+                    next = full.poll();
+                    if (next == null && current && buffer.position() > 0 && !free.isEmpty()) {
+                        next = buffer; // The one being filled goes out once, the full ones first
+                        buffer = free.poll();
+                        current = false;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (next == null) {
+                    return;
+                }
+                next.flip();
+                write(next);
+                next.clear();
+                lock.lock();
+                try {
+                    free.add(next);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        long lost;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lost = dropped;
+        } finally {
+            lock.unlock();
+        }
+        flusher.shutdown();
+        flush();
+        writeLock.lock();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing journal " + file + ": " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+        if (lost > 0) {
+            System.err.println("Journal " + file + " dropped " + lost + " events, the disk was too slow");
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+    }
+
+    // Called with the lock held; -1 if there is no room for the definition
+    private int id(String name) {
+        if (name == null) {
+            return 0;
+        }
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_NAME_BYTES);
+        int padded = (length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+        if (!reserve(RECORD_SIZE + padded)) {
+            return -1;
+        }
+        int newId = ids.size() + 1;
+        ids.put(name, newId);
+        putRecord(Type.NAME, newId, 0, 0, length);
+        buffer.put(bytes, 0, length);
+        buffer.position(buffer.position() + padded - length); // Padding, left as it is
+        return newId;
+    }
+
+    /**
+     * Called with the lock held. Makes room for the given bytes in the buffer
+     * being filled, swapping a full one for an empty one that the flusher will
+     * write. False if every buffer is waiting to be written.
+     */
+    private boolean reserve(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        ByteBuffer next = free.poll();
+        if (next == null) {
+            if (buffers == MAX_BUFFERS) {
+                return false;
+            }
+            next = ByteBuffer.allocateDirect(BUFFER_SIZE); // Kept once allocated
+            buffers++;
+        }
+        full.add(buffer);
+        buffer = next;
+        flusher.execute(flushTask);
+        return true;
+    }
+
+    // Called with the lock held; whatever was defined so far is forgotten
+    private void drop() {
+        dropped++;
+        resync = true;
+    }
+
+    // Called with the lock held, after reserve
+    private void putRecord(Type type, int user, int peer, int session, int value) {
+        buffer.putLong(System.currentTimeMillis())
+                .putShort((short) type.ordinal())
+                .putShort((short) 0)
+                .putInt(user)
+                .putInt(peer)
+                .putInt(session)
+                .putInt(value)
+                .putInt(0);
+    }
+
+    // Called with the write lock held; on error the records are lost
+    private void write(ByteBuffer bytes) {
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            System.err.println("Error while writing journal " + file + ": " + e.getMessage());
+            bytes.position(bytes.limit());
+        }
+    }
+}
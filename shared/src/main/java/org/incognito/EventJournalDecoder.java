@@ -0,0 +1,160 @@
+package org.incognito;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns an {@link EventJournal} file into text, one event per line, or CSV.
+ *
+ * <pre>
+ * java -cp shared.jar org.incognito.EventJournalDecoder [--csv] &lt;journal&gt;
+ * </pre>
+ */
+public final class EventJournalDecoder {
+
+    private static final String CSV_HEADER = "time,event,user,peer,session,value";
+
+    private EventJournalDecoder() {
+    }
+
+    public static void main(String[] args) {
+        boolean csv = false;
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("--csv")) {
+                csv = true;
+            } else if (file == null && !arg.startsWith("--")) {
+                file = arg;
+            } else {
+                file = null;
+                break;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: EventJournalDecoder [--csv] <journal>");
+            System.exit(2);
+        }
+        try (InputStream in = Files.newInputStream(Path.of(file))) {
+            int events = decode(in, System.out, csv);
+            System.out.flush();
+            System.err.println(events + " events");
+        } catch (IOException e) {
+            System.err.println("Cannot decode " + file + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes every event of the journal, except the name definitions.
+     *
+     * @return the number of events written
+     * @throws IOException if the stream is not a journal, or ends in the
+     *                     middle of a record
+     */
+    public static int decode(InputStream stream, PrintStream out, boolean csv) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != EventJournal.MAGIC) {
+            throw new IOException("Not an event journal");
+        }
+        int version = in.readInt();
+        if (version != EventJournal.VERSION) {
+            throw new IOException("Unsupported journal version " + version);
+        }
+        in.skipNBytes(EventJournal.RECORD_SIZE - 8);
+        if (csv) {
+            out.println(CSV_HEADER);
+        }
+
+        EventJournal.Type[] types = EventJournal.Type.values();
+        Map<Integer, String> names = new HashMap<>();
+        int events = 0;
+        while (true) {
+            long time;
+            try {
+                time = in.readLong();
+            } catch (EOFException e) {
+                return events;
+            }
+            int type = in.readUnsignedShort();
+            in.skipNBytes(2);
+            int user = in.readInt();
+            int peer = in.readInt();
+            int session = in.readInt();
+            int value = in.readInt();
+            in.skipNBytes(4);
+            if (type >= types.length) {
+                throw new IOException("Unknown event type " + type);
+            }
+
+            switch (types[type]) {
+                case NAME -> {
+                    byte[] bytes = in.readNBytes(value);
+                    if (bytes.length < value) {
+                        throw new EOFException("Journal ends inside a name");
+                    }
+                    in.skipNBytes(-value & (EventJournal.RECORD_SIZE - 1)); // Padding
+                    names.put(user, new String(bytes, StandardCharsets.UTF_8));
+                    continue;
+                }
+                case START -> names.clear();
+                default -> {
+                }
+            }
+            events++;
+            String event = types[type].name();
+            if (csv) {
+                out.println(Instant.ofEpochMilli(time) + "," + event + "," + csvField(name(names, user)) + ","
+                        + csvField(name(names, peer)) + "," + csvField(name(names, session)) + "," + value);
+            } else {
+                out.println(text(Instant.ofEpochMilli(time), types[type], name(names, user), name(names, peer),
+                        name(names, session), value));
+            }
+        }
+    }
+
+    private static String text(Instant time, EventJournal.Type type, String user, String peer, String session,
+            int value) {
+        String details = switch (type) {
+            case START -> "journal opened";
+            case USER_JOINED -> user + " connected";
+            case USER_LEFT -> user + " disconnected";
+            case SESSION_WAITING -> user + " waiting for a peer in " + session;
+            case SESSION_OPENED -> user + " and " + peer + " paired in " + session;
+            case SESSION_CLOSED -> user + " left " + session + (peer != null ? ", " + peer + " was in it" : "");
+            case MESSAGE_FORWARDED -> user + " -> " + peer + " in " + session + ", " + value + " bytes";
+            case ROOM_JOINED -> user + " joined room " + session + ", " + value + " members";
+            case ROOM_LEFT -> user + " left room " + session + ", " + value + " members left";
+            case ROOM_MESSAGE -> user + " in room " + session + ", " + value + " recipients";
+            case BROADCAST_MESSAGE -> user + " to everyone, " + value + " recipients";
+            case NAME -> "";
+        };
+        return time + " " + type + " " + details;
+    }
+
+    private static String name(Map<Integer, String> names, int id) {
+        if (id == 0) {
+            return null;
+        }
+        return names.getOrDefault(id, "#" + id);
+    }
+
+    private static String csvField(String field) {
+        if (field == null) {
+            return "";
+        }
+        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
+            return "\"" + field.replace("\"", "\"\"") + "\"";
+        }
+        return field;
+    }
+}
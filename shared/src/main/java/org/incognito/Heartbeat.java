@@ -0,0 +1,42 @@
+package org.incognito;
+
+/**
+ * Heartbeat messages, used by the server to find dead connections and to
+ * measure round trip times.
+ *
+ * The server sends {@code PING:<token>} to a client it has not heard from for a
+ * while, and the client answers right away with {@code PONG:<token>}. The token
+ * is opaque to the client. Only clients speaking protocol version
+ * {@link #MIN_PROTOCOL_VERSION} or later are pinged.
+ */
+public final class Heartbeat {
+
+    public static final int MIN_PROTOCOL_VERSION = 3;
+
+    public static final String PING = "PING:";
+    public static final String PONG = "PONG:";
+
+    private Heartbeat() {
+    }
+
+    public static String ping(long token) {
+        return PING + token;
+    }
+
+    // Answer to a PING message
+    public static String pong(String ping) {
+        return PONG + ping.substring(PING.length());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message carries no numeric token
+     */
+    public static long parseToken(String message) {
+        int separator = message.indexOf(':');
+        try {
+            return Long.parseLong(message.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed heartbeat: " + message, e);
+        }
+    }
+}
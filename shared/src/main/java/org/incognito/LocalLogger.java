@@ -1,31 +1,38 @@
 package org.incognito;
 
+import java.nio.file.Path;
+
+/**
+ * Appends lines to Logs/LocalLogger/local.log through a {@link BufferedLogFile}:
+ * one channel kept open for the life of the process, written at most
+ * {@link BufferedLogFile#FLUSH_INTERVAL_MILLIS} after each line. The file is
+ * rotated as set by {@link #setRotation}, {@link LogRotator.Policy#DEFAULT}
+ * unless changed.
+ */
 public class LocalLogger {
-    private static final String LOG_FILE_PATH = "Logs/LocalLogger/local.log";
+    private static final Path LOG_FILE_PATH = Path.of("Logs/LocalLogger/local.log");
+
+    private static final BufferedLogFile file = new BufferedLogFile(LOG_FILE_PATH, LogRotator.Policy.DEFAULT);
 
     public static void logInfo(String message) {
-        log("INFO", message);
+        file.log("INFO", message);
     }
 
     public static void logWarning(String message) {
-        log("WARNING", message);
+        file.log("WARNING", message);
     }
 
     public static void logSevere(String message) {
-        log("SEVERE", message);
+        file.log("SEVERE", message);
+    }
+
+    // Replaces LogRotator.Policy.DEFAULT
+    public static void setRotation(LogRotator.Policy policy) {
+        file.setRotation(policy);
     }
 
-    private static void log(String level, String message) {
-        try {
-            java.io.File logDir = new java.io.File("Logs/LocalLogger");
-            if (!logDir.exists()) {
-                logDir.mkdirs(); // Create the directory if it does not exist
-            }
-            java.nio.file.Files.write(java.nio.file.Paths.get(LOG_FILE_PATH),
-                    (level + ": " + message + System.lineSeparator()).getBytes(),
-                    java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND);
-        } catch (java.io.IOException e) {
-            System.err.println("Error while logging: " + e.getMessage());
-        }
+    // Writes what is buffered
+    public static void flush() {
+        file.flush();
     }
-}
\ No newline at end of file
+}
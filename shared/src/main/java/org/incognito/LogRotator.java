@@ -0,0 +1,192 @@
+package org.incognito;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rotation of one log file, for the writer that owns it. When the file has
+ * grown past the size limit, or was started longer ago than the age limit, the
+ * writer closes it and calls {@link #rotate()}, which only renames it to a
+ * timestamped segment, chat_sessions-20240131-235959-123.log, and reopens
+ * nothing: the writer's next write starts a new file.
+ *
+ * Segments are gzipped on a single low-priority background thread shared by
+ * every log, which then deletes the oldest compressed segments beyond the
+ * number kept. Age is checked when the writer writes, so an idle log is
+ * rotated with its next line.
+ */
+public final class LogRotator {
+
+    /**
+     * Zero means no limit: no rotation by size, by age, or no segment deleted.
+     */
+    public record Policy(long maxBytes, long maxAgeMillis, int keep) {
+        public static final Policy NONE = new Policy(0, 0, 0);
+        public static final Policy DEFAULT = new Policy(10L * 1024 * 1024, TimeUnit.DAYS.toMillis(1), 7);
+
+        public Policy {
+            if (maxBytes < 0 || maxAgeMillis < 0 || keep < 0) {
+                throw new IllegalArgumentException("Rotation limits must not be negative");
+            }
+        }
+
+        public boolean rotates() {
+            return maxBytes > 0 || maxAgeMillis > 0;
+        }
+    }
+
+    private static final DateTimeFormatter SEGMENT_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "log-compressor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final Path file;
+    private final String base; // chat_sessions-
+    private final String extension; // .log
+    private volatile Policy policy;
+    private long startedAt; // Used by the writer's thread only
+
+    public LogRotator(Path file, Policy policy) {
+        this.file = file;
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.base = (dot > 0 ? name.substring(0, dot) : name) + "-";
+        this.extension = dot > 0 ? name.substring(dot) : "";
+        this.policy = policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Called by the writer when it opens the file. A file already there counts
+     * from when it was created.
+     */
+    public void opened() {
+        startedAt = System.currentTimeMillis();
+        try {
+            startedAt = Math.min(startedAt,
+                    Files.readAttributes(file, BasicFileAttributes.class).creationTime().toMillis());
+        } catch (IOException e) {
+            // A new file
+        }
+    }
+
+    /**
+     * @param size the current size of the file
+     * @return true if the writer should close the file and call rotate()
+     */
+    public boolean due(long size) {
+        Policy policy = this.policy;
+        if (size == 0) {
+            return false;
+        }
+        return policy.maxBytes() > 0 && size >= policy.maxBytes()
+                || policy.maxAgeMillis() > 0 && System.currentTimeMillis() - startedAt >= policy.maxAgeMillis();
+    }
+
+    /**
+     * Renames the closed file to a segment, to be compressed in the background.
+     * Errors are reported and the file is left where it is.
+     */
+    public void rotate() {
+        LocalDateTime time = LocalDateTime.now();
+        Path segment;
+        while (true) {
+            segment = file.resolveSibling(base + time.format(SEGMENT_TIME) + extension);
+            try {
+                if (Files.exists(segment.resolveSibling(segment.getFileName() + ".gz"))) {
+                    throw new FileAlreadyExistsException(segment.toString()); // Already compressed
+                }
+                Files.move(file, segment);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                time = time.plusNanos(1_000_000); // Names still sort in rotation order
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Error while rotating log " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+        compressor.execute(this::compressSegments);
+    }
+
+    // On the compressor thread: gzips every segment left, then drops the oldest
+    private void compressSegments() {
+        Path directory = file.toAbsolutePath().getParent();
+        List<Path> plain = new ArrayList<>();
+        List<Path> compressed = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, base + "*")) {
+            for (Path candidate : files) {
+                String name = candidate.getFileName().toString();
+                if (name.endsWith(extension + ".gz")) {
+                    compressed.add(candidate);
+                } else if (name.endsWith(extension)) {
+                    plain.add(candidate); // Including those left by a process that exited meanwhile
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error while listing log segments of " + file + ": " + e.getMessage());
+            return;
+        }
+        for (Path segment : plain) {
+            Path gzip = segment.resolveSibling(segment.getFileName() + ".gz");
+            try {
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip))) {
+                    Files.copy(segment, out);
+                }
+                Files.delete(segment);
+                compressed.add(gzip);
+            } catch (IOException e) {
+                System.err.println("Error while compressing log " + segment + ": " + e.getMessage());
+                try {
+                    Files.deleteIfExists(gzip); // The segment is kept as it is
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+            }
+        }
+
+        int keep = policy.keep();
+        if (keep == 0 || compressed.size() <= keep) {
+            return;
+        }
+        compressed.sort(null); // Timestamped names sort oldest first
+        for (Path old : compressed.subList(0, compressed.size() - keep)) {
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                System.err.println("Error while deleting log " + old + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Waits until the segments rotated so far are compressed
+    static void awaitCompression(long timeoutMillis) throws Exception {
+        compressor.submit(() -> {
+        }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
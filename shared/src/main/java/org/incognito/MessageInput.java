@@ -0,0 +1,73 @@
+package org.incognito;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads messages from a connection, either with the {@link WireCodec} binary
+ * protocol or with Java serialization for older peers.
+ */
+public interface MessageInput extends Closeable {
+
+    /**
+     * Blocks until the next message is received.
+     *
+     * @throws java.io.EOFException if the peer closed the connection
+     */
+    Object readMessage() throws IOException, ClassNotFoundException;
+
+    static MessageInput binary(InputStream in) {
+        return binary(in, false);
+    }
+
+    /**
+     * @param opaqueChat return chat messages as {@link ChatFrame}s holding the
+     *                   received bytes, without decoding them
+     */
+    static MessageInput binary(InputStream in, boolean opaqueChat) {
+        DataInputStream dataIn = new DataInputStream(in);
+        return new MessageInput() {
+            @Override
+            public Object readMessage() throws IOException {
+                int length = WireCodec.checkFrameLength(dataIn.readInt());
+                byte[] frame = new byte[4 + length];
+                ByteBuffer.wrap(frame).putInt(length);
+                dataIn.readFully(frame, 4, length);
+                ByteBuffer body = ByteBuffer.wrap(frame, 4, length);
+                if (opaqueChat && frame[4] == WireCodec.TYPE_CHAT) {
+                    WireCodec.checkChatFrame(body);
+                    return ChatFrame.wrap(frame);
+                }
+                return WireCodec.decode(body);
+            }
+
+            @Override
+            public void close() throws IOException {
+                dataIn.close();
+            }
+        };
+    }
+
+    /**
+     * Opens an ObjectInputStream on the stream, which blocks until the
+     * serialization stream header is received.
+     */
+    static MessageInput serialized(InputStream in) throws IOException {
+        ObjectInputStream objectIn = new ObjectInputStream(in);
+        return new MessageInput() {
+            @Override
+            public Object readMessage() throws IOException, ClassNotFoundException {
+                return objectIn.readObject();
+            }
+
+            @Override
+            public void close() throws IOException {
+                objectIn.close();
+            }
+        };
+    }
+}
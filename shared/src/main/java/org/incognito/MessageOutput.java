@@ -0,0 +1,68 @@
+package org.incognito;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes messages to a connection, either with the {@link WireCodec} binary
+ * protocol or with Java serialization for older peers.
+ */
+public interface MessageOutput extends Closeable {
+
+    /**
+     * Writes one String, ChatMessage, {@link ChatFrame}, KeyExchangeMessage or
+     * {@link EncodedMessage} and flushes it.
+     */
+    void writeMessage(Object message) throws IOException;
+
+    static MessageOutput binary(OutputStream out) {
+        return new MessageOutput() {
+            @Override
+            public void writeMessage(Object message) throws IOException {
+                // One write per frame
+                out.write(message instanceof EncodedMessage encoded ? encoded.getFrame() : WireCodec.encode(message));
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Opens an ObjectOutputStream on the stream, which sends the serialization
+     * stream header right away. The stream is reset after every message, so that
+     * it does not keep a reference to everything ever sent and so that an
+     * {@link EncodedMessage} can be written as it is.
+     */
+    static MessageOutput serialized(OutputStream out) throws IOException {
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.flush();
+        return new MessageOutput() {
+            @Override
+            public void writeMessage(Object message) throws IOException {
+                if (message instanceof EncodedMessage encoded) {
+                    objectOut.flush(); // Nothing buffered may follow the shared bytes
+                    out.write(encoded.getSerialized());
+                    out.flush();
+                    return;
+                }
+                if (message instanceof ChatFrame chatFrame) {
+                    message = chatFrame.getMessage();
+                }
+                objectOut.writeObject(message);
+                objectOut.reset();
+                objectOut.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                objectOut.close();
+            }
+        };
+    }
+}
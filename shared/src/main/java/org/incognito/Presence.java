@@ -0,0 +1,144 @@
+package org.incognito;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Presence messages: which users are online and available for a chat.
+ *
+ * The server numbers every change with a version. A client gets one snapshot
+ * when it registers, {@code PRESENCE_SNAPSHOT:<version>:<users>}, then one delta
+ * per version, {@code PRESENCE_DELTA:<version>:<change>:<user>} (several changes
+ * may share a version). A client that misses a version asks for a new snapshot
+ * with {@code PRESENCE_SYNC:<its version>}. Users and changes are separated by
+ * newlines, which cannot appear in a username typed in the client.
+ *
+ * Only clients speaking protocol version {@link #MIN_PROTOCOL_VERSION} or later
+ * receive these; older ones get the full {@code USERLIST:} on every change.
+ *
+ * {@code REQUEST_USERLIST} asks for the current list, sent to the requester only.
+ * From protocol version {@link #CONDITIONAL_REQUEST_MIN_PROTOCOL_VERSION} a client
+ * passes the version it holds, {@code REQUEST_USERLIST:<version>}, and gets the
+ * short {@code PRESENCE_NOT_MODIFIED:<version>} when its list is up to date.
+ */
+public final class Presence {
+
+    public static final int MIN_PROTOCOL_VERSION = 2;
+    public static final int CONDITIONAL_REQUEST_MIN_PROTOCOL_VERSION = 4;
+
+    public static final String SNAPSHOT = "PRESENCE_SNAPSHOT:";
+    public static final String DELTA = "PRESENCE_DELTA:";
+    public static final String SYNC = "PRESENCE_SYNC:";
+    public static final String NOT_MODIFIED = "PRESENCE_NOT_MODIFIED:";
+    public static final String REQUEST = "REQUEST_USERLIST";
+
+    private static final char SEPARATOR = '\n';
+
+    public enum Change {
+        JOIN, // Registered, available
+        LEAVE, // Disconnected
+        BUSY, // Entered a private chat
+        AVAILABLE; // Left a private chat
+
+        public boolean isAvailable() {
+            return this == JOIN || this == AVAILABLE;
+        }
+    }
+
+    public record Update(Change change, String username) {
+    }
+
+    private Presence() {
+    }
+
+    public static String snapshot(long version, Collection<String> availableUsers) {
+        return SNAPSHOT + version + ":" + String.join(String.valueOf(SEPARATOR), availableUsers);
+    }
+
+    public static String delta(long version, List<Update> updates) {
+        StringBuilder message = new StringBuilder(DELTA).append(version).append(':');
+        for (int i = 0; i < updates.size(); i++) {
+            if (i > 0) {
+                message.append(SEPARATOR);
+            }
+            message.append(updates.get(i).change()).append(':').append(updates.get(i).username());
+        }
+        return message.toString();
+    }
+
+    public static String sync(long version) {
+        return SYNC + version;
+    }
+
+    // Conditional request for the user list held by the client
+    public static String request(long version) {
+        return REQUEST + ":" + version;
+    }
+
+    public static String notModified(long version) {
+        return NOT_MODIFIED + version;
+    }
+
+    public static boolean isPresenceMessage(String message) {
+        return message.startsWith(SNAPSHOT) || message.startsWith(DELTA) || message.startsWith(NOT_MODIFIED);
+    }
+
+    /**
+     * @return the version of a snapshot, delta, sync, request or not-modified
+     *         message
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static long parseVersion(String message) {
+        int start = message.indexOf(':') + 1;
+        int end = message.indexOf(':', start);
+        return Long.parseLong(end < 0 ? message.substring(start) : message.substring(start, end));
+    }
+
+    public static List<String> parseSnapshot(String message) {
+        List<String> users = new ArrayList<>();
+        for (String user : split(body(message))) {
+            if (!user.isEmpty()) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    public static List<Update> parseDelta(String message) {
+        List<Update> updates = new ArrayList<>();
+        for (String entry : split(body(message))) {
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed presence change: " + entry);
+            }
+            updates.add(new Update(Change.valueOf(entry.substring(0, colon)), entry.substring(colon + 1)));
+        }
+        return updates;
+    }
+
+    // Part after PREFIX:version:
+    private static String body(String message) {
+        int start = message.indexOf(':') + 1;
+        int end = message.indexOf(':', start);
+        if (end < 0) {
+            throw new IllegalArgumentException("Malformed presence message");
+        }
+        return message.substring(end + 1);
+    }
+
+    private static List<String> split(String body) {
+        List<String> parts = new ArrayList<>();
+        if (body.isEmpty()) {
+            return parts;
+        }
+        int start = 0;
+        int end;
+        while ((end = body.indexOf(SEPARATOR, start)) >= 0) {
+            parts.add(body.substring(start, end));
+            start = end + 1;
+        }
+        parts.add(body.substring(start));
+        return parts;
+    }
+}
@@ -0,0 +1,116 @@
+package org.incognito;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Client side of the {@link Presence} protocol: applies snapshots and deltas
+ * in version order to the set of available users, and notices missed versions.
+ */
+public class PresenceTracker {
+    private static Logger logger = Logger.getLogger(PresenceTracker.class.getName());
+
+    /** Receives the changes to the available users, on the reading thread. */
+    public interface Listener {
+        void usersReset(List<String> users);
+
+        void userAdded(String username);
+
+        void userRemoved(String username);
+
+        // The server confirmed that the list is up to date
+        default void usersUnchanged() {
+        }
+    }
+
+    private final Listener listener;
+    private final Set<String> users = new LinkedHashSet<>();
+    private long version = -1; // No snapshot yet
+    private boolean resyncRequested;
+
+    public PresenceTracker(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Applies a snapshot or delta message.
+     *
+     * @return a message to send back to the server to resynchronize, or null
+     */
+    public synchronized String handle(String message) {
+        try {
+            long messageVersion = Presence.parseVersion(message);
+            if (message.startsWith(Presence.SNAPSHOT)) {
+                if (messageVersion < version) {
+                    return null; // Older than what we have
+                }
+                version = messageVersion;
+                resyncRequested = false;
+                users.clear();
+                users.addAll(Presence.parseSnapshot(message));
+                listener.usersReset(new ArrayList<>(users));
+                return null;
+            }
+
+            if (message.startsWith(Presence.NOT_MODIFIED)) {
+                if (messageVersion == version) {
+                    listener.usersUnchanged();
+                } else if (messageVersion > version) {
+                    return requestResync(); // A delta went missing
+                }
+                return null;
+            }
+
+            if (version < 0 || messageVersion <= version) {
+                return null; // Before our snapshot, or already part of it
+            }
+            if (messageVersion != version + 1) {
+                logger.info("Missed presence versions " + (version + 1) + " to " + (messageVersion - 1)
+                        + ", requesting a snapshot");
+                return requestResync();
+            }
+            version = messageVersion;
+            for (Presence.Update update : Presence.parseDelta(message)) {
+                if (update.change().isAvailable()) {
+                    if (users.add(update.username())) {
+                        listener.userAdded(update.username());
+                    }
+                } else if (users.remove(update.username())) {
+                    listener.userRemoved(update.username());
+                }
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            logger.warning("Malformed presence message, requesting a snapshot: " + e.getMessage());
+            return requestResync();
+        }
+    }
+
+    // One request at a time, until the snapshot arrives
+    private String requestResync() {
+        if (resyncRequested) {
+            return null;
+        }
+        resyncRequested = true;
+        return Presence.sync(version);
+    }
+
+    /**
+     * @return a request for the current user list, answered with a short
+     *         not-modified message if the list held here is up to date
+     */
+    public synchronized String userListRequest() {
+        return version < 0 ? Presence.REQUEST : Presence.request(version);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized List<String> getUsers() {
+        return new ArrayList<>(users);
+    }
+}
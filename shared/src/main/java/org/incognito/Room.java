@@ -0,0 +1,72 @@
+package org.incognito;
+
+import java.util.Collection;
+
+/**
+ * Group chat room messages.
+ *
+ * A client joins a room with {@code ROOM_JOIN:<room>} and is answered
+ * {@code ROOM_JOINED:<room>:<members>}, the members separated by newlines. A
+ * client is in one conversation at a time: while it is in a room, its chat
+ * messages go to every other member, each encrypted under the room's key. It
+ * leaves with {@code ROOM_LEAVE} and is answered {@code ROOM_LEFT:<room>}.
+ *
+ * Members hear about each other with {@code ROOM_MEMBER_JOINED:<room>:<user>}
+ * and {@code ROOM_MEMBER_LEFT:<room>:<user>}. Nobody else does: joining or
+ * leaving a room does not change a user's presence.
+ */
+public final class Room {
+
+    public static final String JOIN = "ROOM_JOIN:";
+    public static final String LEAVE = "ROOM_LEAVE";
+    public static final String JOINED = "ROOM_JOINED:";
+    public static final String LEFT = "ROOM_LEFT:";
+    public static final String MEMBER_JOINED = "ROOM_MEMBER_JOINED:";
+    public static final String MEMBER_LEFT = "ROOM_MEMBER_LEFT:";
+
+    public static final int MAX_NAME_LENGTH = 32;
+
+    private Room() {
+    }
+
+    // Letters, digits, '-' and '_'
+    public static boolean isValidName(String room) {
+        if (room == null || room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String join(String room) {
+        return JOIN + room;
+    }
+
+    public static String joined(String room, Collection<String> members) {
+        return JOINED + room + ":" + String.join("\n", members);
+    }
+
+    public static String left(String room) {
+        return LEFT + room;
+    }
+
+    public static String memberJoined(String room, String username) {
+        return MEMBER_JOINED + room + ":" + username;
+    }
+
+    public static String memberLeft(String room, String username) {
+        return MEMBER_LEFT + room + ":" + username;
+    }
+
+    // Room named by a message of this class, after its prefix
+    public static String parseRoom(String message) {
+        int start = message.indexOf(':') + 1;
+        int end = message.indexOf(':', start);
+        return end < 0 ? message.substring(start) : message.substring(start, end);
+    }
+}
@@ -0,0 +1,34 @@
+package org.incognito;
+
+/**
+ * Notice sent to every client before the server closes the connections,
+ * {@code SERVER_SHUTDOWN:<millis>}: how long the client should wait before
+ * reconnecting. The server picks a different delay for each client, so that
+ * they do not all come back at once when it restarts.
+ */
+public final class ServerShutdown {
+
+    public static final String NOTICE = "SERVER_SHUTDOWN";
+
+    private ServerShutdown() {
+    }
+
+    public static String notice(long reconnectAfterMillis) {
+        return NOTICE + ":" + reconnectAfterMillis;
+    }
+
+    /**
+     * @return the delay in the notice, or -1 if it carries none (older servers)
+     */
+    public static long parseReconnectAfter(String message) {
+        int separator = message.indexOf(':');
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(message.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.incognito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of the messages exchanged with the server, replacing
+ * Java object serialization.
+ *
+ * Every frame is {@code [int length][byte type][payload]}, where length counts
+ * the type byte and the payload. Short strings (usernames) are written as an
+ * unsigned 16 bit length followed by UTF-8 bytes, long strings (message text,
+ * ciphertext, keys) with a 32 bit length; the maximum length marks null.
+ *
+ * Connection handshake: the server always starts by sending the Java
+ * serialization stream header, which older clients wait for. A binary client
+ * skips it and sends {@link #MAGIC} followed by its protocol version; the server
+ * answers with a HELLO frame carrying the version both sides will speak. Clients
+ * that start with the serialization header instead are served the old way.
+ */
+public final class WireCodec {
+
+    /**
+     * Latest protocol version spoken by this code. 2: presence deltas (see
+     * {@link Presence}). 3: heartbeats (see {@link Heartbeat}). 4: conditional
+     * user list requests.
+     */
+    public static final int VERSION = 4;
+    /** Oldest protocol version still accepted. */
+    public static final int MIN_VERSION = 1;
+
+    public static final byte[] MAGIC = { 'I', 'N', 'C', 'G' };
+    public static final int CLIENT_HELLO_LENGTH = MAGIC.length + 1;
+
+    // java.io.ObjectStreamConstants STREAM_MAGIC and STREAM_VERSION, sent first by the server
+    public static final byte[] SERIALIZATION_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // java.io.ObjectStreamConstants.TC_STRING: cannot start a frame, whose length is below 2^24
+    private static final int TC_STRING = 0x74;
+
+    // Frame types
+    public static final byte TYPE_HELLO = 0;
+    public static final byte TYPE_TEXT = 1; // String commands and notifications
+    public static final byte TYPE_CHAT = 2; // ChatMessage
+    public static final byte TYPE_KEY_EXCHANGE = 3; // KeyExchangeMessage
+
+    private static final int NULL_SHORT = 0xFFFF;
+    private static final int NULL_LONG = -1;
+
+    private WireCodec() {
+    }
+
+    /**
+     * Encodes a String, ChatMessage or KeyExchangeMessage into a complete frame,
+     * length prefix included. A {@link ChatFrame} yields its frame as is.
+     */
+    public static byte[] encode(Object message) {
+        if (message instanceof ChatFrame chatFrame) {
+            return chatFrame.getBytes();
+        } else if (message instanceof String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = allocate(TYPE_TEXT, bytes.length);
+            frame.put(bytes);
+            return frame.array();
+        } else if (message instanceof ChatMessage chatMsg) {
+            byte[] sender = utf8(chatMsg.getSender());
+            byte[] content = utf8(chatMsg.getEncryptedContent());
+            ByteBuffer frame = allocate(TYPE_CHAT, shortStringLength(sender) + longStringLength(content));
+            putShortString(frame, sender);
+            putLongString(frame, content);
+            return frame.array();
+        } else if (message instanceof KeyExchangeMessage keyMsg) {
+            byte[] sender = utf8(keyMsg.getSenderUsername());
+            byte[] target = utf8(keyMsg.getTargetUsername());
+            byte[] payload = utf8(keyMsg.getPayload());
+            ByteBuffer frame = allocate(TYPE_KEY_EXCHANGE,
+                    1 + shortStringLength(sender) + shortStringLength(target) + longStringLength(payload));
+            frame.put((byte) keyMsg.getType().ordinal());
+            putShortString(frame, sender);
+            putShortString(frame, target);
+            putLongString(frame, payload);
+            return frame.array();
+        }
+        throw new IllegalArgumentException("Cannot encode " + (message == null ? "null" : message.getClass().getName()));
+    }
+
+    /**
+     * Decodes one frame body.
+     *
+     * @param frame buffer positioned on the type byte, limited to the end of the
+     *              frame
+     */
+    public static Object decode(ByteBuffer frame) throws ProtocolException {
+        try {
+            byte type = frame.get();
+            switch (type) {
+                case TYPE_TEXT: {
+                    byte[] bytes = new byte[frame.remaining()];
+                    frame.get(bytes);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                case TYPE_CHAT: {
+                    String sender = getShortString(frame);
+                    String content = getLongString(frame);
+                    return new ChatMessage(sender, content);
+                }
+                case TYPE_KEY_EXCHANGE: {
+                    int ordinal = frame.get();
+                    KeyExchangeMessage.Type[] types = KeyExchangeMessage.Type.values();
+                    if (ordinal < 0 || ordinal >= types.length) {
+                        throw new ProtocolException("Unknown key exchange type " + ordinal);
+                    }
+                    String sender = getShortString(frame);
+                    String target = getShortString(frame);
+                    if (sender == null || target == null) {
+                        throw new ProtocolException("Key exchange without sender/target");
+                    }
+                    // The session ID is derived from both usernames by the constructor
+                    KeyExchangeMessage keyMsg = new KeyExchangeMessage(types[ordinal], sender, target);
+                    keyMsg.setPayload(getLongString(frame));
+                    return keyMsg;
+                }
+                default:
+                    throw new ProtocolException("Unexpected frame type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+
+    /**
+     * Checks that a chat frame is well formed by reading only its two length
+     * fields, so it can be relayed without decoding the strings.
+     *
+     * @param frame buffer positioned on the type byte, limited to the end of the
+     *              frame; its position is not changed
+     */
+    public static void checkChatFrame(ByteBuffer frame) throws ProtocolException {
+        int start = frame.position();
+        int end = frame.limit();
+        if (end - start < 1 + 2 + 4 || frame.get(start) != TYPE_CHAT) {
+            throw new ProtocolException("Malformed chat frame");
+        }
+        int senderLength = Short.toUnsignedInt(frame.getShort(start + 1));
+        int contentOffset = start + 1 + 2 + (senderLength == NULL_SHORT ? 0 : senderLength);
+        if (contentOffset + 4 > end) {
+            throw new ProtocolException("Malformed chat frame");
+        }
+        int contentLength = frame.getInt(contentOffset);
+        if (contentOffset + 4 + (contentLength == NULL_LONG ? 0 : contentLength) != end || contentLength < NULL_LONG) {
+            throw new ProtocolException("Malformed chat frame");
+        }
+    }
+
+    /**
+     * Validates a frame length read from the wire.
+     */
+    public static int checkFrameLength(int length) throws ProtocolException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    public static byte[] encodeClientHello(int version) {
+        byte[] hello = Arrays.copyOf(MAGIC, CLIENT_HELLO_LENGTH);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    /**
+     * Checks a client hello and returns the version both sides will speak.
+     *
+     * @throws ProtocolException if the magic is wrong or the client is too old
+     */
+    public static int negotiate(byte[] clientHello) throws ProtocolException {
+        if (!Arrays.equals(clientHello, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new ProtocolException("Bad protocol magic");
+        }
+        int clientVersion = Byte.toUnsignedInt(clientHello[MAGIC.length]);
+        if (clientVersion < MIN_VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + clientVersion);
+        }
+        return Math.min(clientVersion, VERSION);
+    }
+
+    public static byte[] encodeHello(int version) {
+        ByteBuffer frame = allocate(TYPE_HELLO, 1);
+        frame.put((byte) version);
+        return frame.array();
+    }
+
+    /**
+     * Message refusing a connection before the handshake, readable by every
+     * client: the serialization stream header followed by the serialized string.
+     * Older clients read it as the answer to their registration, binary clients
+     * recognize it in {@link #clientHandshake}.
+     */
+    public static byte[] encodeRejection(String reason) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream rejection = new DataOutputStream(bytes);
+            rejection.write(SERIALIZATION_HEADER);
+            rejection.writeByte(TC_STRING);
+            rejection.writeUTF(reason); // Same modified UTF-8 as ObjectOutputStream
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Rejection reason too long", e);
+        }
+    }
+
+    /**
+     * Client side of the handshake, run right after connecting and before any
+     * message stream is opened on the socket. Reads exactly the handshake bytes.
+     *
+     * @return the negotiated protocol version
+     * @throws ProtocolException          if the server does not speak the binary
+     *                                    protocol
+     * @throws ConnectionRejectedException if the server refused the connection
+     */
+    public static int clientHandshake(InputStream in, OutputStream out) throws IOException {
+        return clientHandshake(in, out, VERSION);
+    }
+
+    /**
+     * Handshake offering an older protocol version, as an older client would.
+     */
+    public static int clientHandshake(InputStream in, OutputStream out, int offeredVersion) throws IOException {
+        out.write(encodeClientHello(offeredVersion));
+        out.flush();
+
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[SERIALIZATION_HEADER.length];
+        data.readFully(header);
+        if (!Arrays.equals(header, SERIALIZATION_HEADER)) {
+            throw new ProtocolException("Unexpected server greeting");
+        }
+
+        int first = data.readUnsignedByte();
+        if (first == TC_STRING) {
+            // Turned away before the handshake, see encodeRejection()
+            throw new ConnectionRejectedException(data.readUTF());
+        }
+        int length = checkFrameLength(first << 24 | data.readUnsignedByte() << 16 | data.readUnsignedShort());
+        byte[] body = new byte[length];
+        data.readFully(body);
+        if (length != 2 || body[0] != TYPE_HELLO) {
+            throw new ProtocolException("Server did not accept the binary protocol");
+        }
+        int version = Byte.toUnsignedInt(body[1]);
+        if (version < MIN_VERSION || version > offeredVersion) {
+            throw new ProtocolException("Server chose unsupported protocol version " + version);
+        }
+        return version;
+    }
+
+    private static ByteBuffer allocate(byte type, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + payloadLength);
+        frame.putInt(1 + payloadLength);
+        frame.put(type);
+        return frame;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int shortStringLength(byte[] bytes) {
+        if (bytes != null && bytes.length >= NULL_SHORT) {
+            throw new IllegalArgumentException("String too long for a short field: " + bytes.length + " bytes");
+        }
+        return 2 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static int longStringLength(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putShortString(ByteBuffer frame, byte[] bytes) {
+        frame.putShort((short) (bytes == null ? NULL_SHORT : bytes.length));
+        if (bytes != null) {
+            frame.put(bytes);
+        }
+    }
+
+    private static void putLongString(ByteBuffer frame, byte[] bytes) {
+        frame.putInt(bytes == null ? NULL_LONG : bytes.length);
+        if (bytes != null) {
+            frame.put(bytes);
+        }
+    }
+
+    private static String getShortString(ByteBuffer frame) {
+        int length = Short.toUnsignedInt(frame.getShort());
+        return length == NULL_SHORT ? null : getString(frame, length);
+    }
+
+    private static String getLongString(ByteBuffer frame) throws ProtocolException {
+        int length = frame.getInt();
+        if (length == NULL_LONG) {
+            return null;
+        }
+        if (length < 0 || length > frame.remaining()) {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+        return getString(frame, length);
+    }
+
+    private static String getString(ByteBuffer frame, int length) {
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (!frame.hasArray()) {
+            byte[] bytes = new byte[length];
+            frame.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+                StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+}